@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.TimeZone;
+
+/*
+    Inserts 10,000 weather rows three ways: one SQLiteDatabase.insert per ContentValues with the
+    date normalized through Time, as bulkInsert used to; bulkInsert with its reused statement;
+    and the typed rows.  Logs rows per second and bytes allocated per row for each.  Timings on a
+    shared test device are too noisy to assert on, so only the row counts are checked.
+ */
+public class TestBulkInsertBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    private static final int NUM_ROWS = 10000;
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        mLocationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testBenchmark() {
+        ContentValues[] values = createValues();
+        ContentValues[] legacyValues = createValues();
+        WeatherRow[] rows = createRows();
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            int inserted = legacyBulkInsert(legacyValues);
+            report("insert per row", inserted, System.nanoTime() - start,
+                    Debug.getThreadAllocSize());
+            clear();
+
+            Debug.resetThreadAllocSize();
+            start = System.nanoTime();
+            inserted = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+            report("bulkInsert", inserted, System.nanoTime() - start, Debug.getThreadAllocSize());
+            clear();
+
+            ContentProviderClient client = mContext.getContentResolver()
+                    .acquireContentProviderClient(WeatherEntry.CONTENT_URI);
+            try {
+                WeatherProvider provider = (WeatherProvider) client.getLocalContentProvider();
+                Debug.resetThreadAllocSize();
+                start = System.nanoTime();
+                inserted = provider.bulkInsert(rows);
+                report("typed rows", inserted, System.nanoTime() - start,
+                        Debug.getThreadAllocSize());
+            } finally {
+                client.release();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    public void testTypedRowsMatchContentValues() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{createValues()[0]});
+        String[] expected = readStoredRow();
+        clear();
+
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherEntry.CONTENT_URI);
+        try {
+            ((WeatherProvider) client.getLocalContentProvider()).bulkInsert(
+                    new WeatherRow[]{createRows()[0]});
+        } finally {
+            client.release();
+        }
+        MoreAsserts.assertEquals("Error: The typed row didn't store the same values",
+                expected, readStoredRow());
+    }
+
+    /**
+     * @return every column of the only stored weather row but its _id, as strings
+     */
+    private String[] readStoredRow() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertTrue("Error: No row was stored", cursor.moveToFirst());
+        assertEquals(1, cursor.getCount());
+        String[] row = new String[cursor.getColumnCount() - 1];
+        int column = 0;
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            if (!WeatherEntry._ID.equals(cursor.getColumnName(i))) {
+                row[column++] = cursor.getString(i);
+            }
+        }
+        cursor.close();
+        return row;
+    }
+
+    /**
+     * The old bulkInsert, on the provider's database, with each row encoded for the table as it
+     * is now.
+     */
+    private int legacyBulkInsert(ContentValues[] values) {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                long date = value.getAsLong(WeatherEntry.COLUMN_DATE);
+                Time time = new Time();
+                time.set(date);
+                value.put(WeatherEntry.COLUMN_DATE,
+                        time.setJulianDay(Time.getJulianDay(date, time.gmtoff)));
+                if (db.insert(WeatherEntry.TABLE_NAME, null,
+                        WeatherCodec.encode(value, TimeZone.getDefault())) != -1) {
+                    returnCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            db.close();
+        }
+        return returnCount;
+    }
+
+    private void clear() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    private static void report(String name, int inserted, long nanos, long bytes) {
+        assertEquals("Error: " + name + " didn't insert every row", NUM_ROWS, inserted);
+        Log.i(LOG_TAG, name + ": " + (NUM_ROWS * 1000000000L / nanos) + " rows/s, "
+                + (bytes / NUM_ROWS) + "B allocated per row");
+    }
+
+    private ContentValues[] createValues() {
+        ContentValues[] values = new ContentValues[NUM_ROWS];
+        for (int i = 0; i < NUM_ROWS; i++) {
+            ContentValues row = new ContentValues();
+            row.put(WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+            row.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+            row.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            row.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+            row.put(WeatherEntry.COLUMN_MIN_TEMP, 65 - i % 30);
+            row.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + i % 30);
+            row.put(WeatherEntry.COLUMN_HUMIDITY, 1.2 + 0.01 * (i % 50));
+            row.put(WeatherEntry.COLUMN_PRESSURE, 1.3 - 0.01 * (i % 50));
+            row.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5 + 0.2 * (i % 50));
+            row.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            values[i] = row;
+        }
+        return values;
+    }
+
+    private WeatherRow[] createRows() {
+        WeatherRow[] rows = new WeatherRow[NUM_ROWS];
+        for (int i = 0; i < NUM_ROWS; i++) {
+            WeatherRow row = new WeatherRow();
+            row.locationId = mLocationId;
+            row.date = TestUtilities.TEST_DATE + i * DAY_IN_MILLIS;
+            row.shortDesc = "Asteroids";
+            row.weatherId = 321;
+            row.minTemp = 65 - i % 30;
+            row.maxTemp = 75 + i % 30;
+            row.humidity = 1.2 + 0.01 * (i % 50);
+            row.pressure = 1.3 - 0.01 * (i % 50);
+            row.windSpeed = 5.5 + 0.2 * (i % 50);
+            row.degrees = 1.1;
+            rows[i] = row;
+        }
+        return rows;
+    }
+}
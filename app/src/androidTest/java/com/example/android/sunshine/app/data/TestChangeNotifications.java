@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Stands in for the loaders of the two-pane layout -- the preferred location's list and one of
+    its days -- along with a list of another location, each re-querying its URI whenever it is
+    told of a change the way a CursorLoader does, and counts how often each of them re-queries
+    for each kind of write.
+ */
+public class TestChangeNotifications extends AndroidTestCase {
+
+    private static final String OTHER_LOCATION = "94043";
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+    // Long enough for every notification a write sends to arrive, and be re-queried
+    private static final long SETTLE_MILLIS = 500;
+
+    private long mLocationId;
+    private long mOtherLocationId;
+    private RequeryingObserver mList;
+    private RequeryingObserver mDetail;
+    private RequeryingObserver mOtherList;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mLocationId = insertLocation(TestUtilities.TEST_LOCATION);
+        mOtherLocationId = insertLocation(OTHER_LOCATION);
+
+        mList = new RequeryingObserver(WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE));
+        mDetail = new RequeryingObserver(WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE));
+        mOtherList = new RequeryingObserver(WeatherEntry.buildWeatherLocationWithStartDate(
+                OTHER_LOCATION, TestUtilities.TEST_DATE));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mList.close();
+        mDetail.close();
+        mOtherList.close();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    // A sync's batch re-queries the list and the day on screen once, whatever it wrote
+    public void testSyncBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int day = 0; day < 14; day++) {
+            operations.add(ContentProviderOperation.newUpdate(dayUri(TestUtilities.TEST_LOCATION, day))
+                    .withValues(weatherValues(mLocationId, day))
+                    .build());
+        }
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        assertRequeries(1, 1, 0);
+
+        // The same forecast again writes nothing
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        assertRequeries(0, 0, 0);
+    }
+
+    // A change to one day re-queries the list, but not another day
+    public void testOneDay() {
+        mContext.getContentResolver().update(dayUri(TestUtilities.TEST_LOCATION, 1),
+                weatherValues(mLocationId, 1), null, null);
+        assertRequeries(1, 0, 0);
+
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues(mLocationId, 0));
+        assertRequeries(1, 1, 0);
+    }
+
+    // A bulk insert is announced once, to its own location's observers only
+    public void testBulkInsert() {
+        ContentValues[] days = new ContentValues[14];
+        for (int day = 0; day < days.length; day++) {
+            days[day] = weatherValues(mOtherLocationId, day);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+        assertRequeries(0, 0, 1);
+    }
+
+    // A delete by selection may have touched any location
+    public void testDeleteBySelection() {
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues(mLocationId, 0));
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                weatherValues(mOtherLocationId, 0));
+        assertRequeries(1, 1, 1);
+
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        assertRequeries(1, 1, 1);
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+
+    private static Uri dayUri(String locationSetting, int day) {
+        return WeatherEntry.buildWeatherLocationWithDate(locationSetting,
+                TestUtilities.TEST_DATE + day * DAY_IN_MILLIS);
+    }
+
+    private static ContentValues weatherValues(long locationId, int day) {
+        ContentValues values = TestUtilities.createWeatherValues(locationId);
+        values.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + day * DAY_IN_MILLIS);
+        return values;
+    }
+
+    /**
+     * Waits for the write's notifications to settle, checks how often each observer re-queried,
+     * and starts counting again.
+     */
+    private void assertRequeries(int list, int detail, int otherList) {
+        try {
+            Thread.sleep(SETTLE_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        assertEquals("Error: Wrong number of list re-queries", list, mList.takeCount());
+        assertEquals("Error: Wrong number of detail re-queries", detail, mDetail.takeCount());
+        assertEquals("Error: Wrong number of re-queries for another location",
+                otherList, mOtherList.takeCount());
+    }
+
+    /*
+        Re-queries its URI on a thread of its own whenever it hears of a change to it, as a
+        CursorLoader would, counting the re-queries.
+     */
+    private class RequeryingObserver extends ContentObserver {
+        private final HandlerThread mThread;
+        private final Uri mUri;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        RequeryingObserver(Uri uri) {
+            this(uri, startThread());
+        }
+
+        private RequeryingObserver(Uri uri, HandlerThread thread) {
+            super(new Handler(thread.getLooper()));
+            mThread = thread;
+            mUri = uri;
+            // As Cursor.setNotificationUri registers the loader's cursor
+            mContext.getContentResolver().registerContentObserver(uri, true, this);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            Cursor cursor = mContext.getContentResolver().query(mUri, null, null, null,
+                    WeatherEntry.COLUMN_DATE + " ASC");
+            if (cursor != null) {
+                cursor.getCount();
+                cursor.close();
+            }
+            mCount.incrementAndGet();
+        }
+
+        int takeCount() {
+            return mCount.getAndSet(0);
+        }
+
+        void close() {
+            mContext.getContentResolver().unregisterContentObserver(this);
+            mThread.quit();
+        }
+    }
+
+    private static HandlerThread startThread() {
+        HandlerThread thread = new HandlerThread("RequeryingObserverThread");
+        thread.start();
+        return thread;
+    }
+}
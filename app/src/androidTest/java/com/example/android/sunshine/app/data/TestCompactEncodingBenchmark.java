@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/*
+    Fills one database with 100,000 weather rows the way version 5 stored them, and another with
+    the same rows the way the weather table stores them now, then logs the size of each file and
+    how long the forecast list's query takes on each, decoding included.  Timings on a shared
+    test device are too noisy to assert on, so only the row counts are checked.
+ */
+public class TestCompactEncodingBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestCompactEncodingBenchmark.class.getSimpleName();
+
+    private static final String WIDE_DATABASE_NAME = "benchmark_wide.db";
+    private static final String COMPACT_DATABASE_NAME = "benchmark_compact.db";
+
+    private static final int NUM_LOCATIONS = 10;
+    private static final int DAYS_PER_LOCATION = 10000;
+    private static final int NUM_QUERIES = 20;
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    // The tables as version 5 created them, but for the location's sync columns
+    private static final String[] WIDE_SCHEMA = {
+            "CREATE TABLE location (_id INTEGER PRIMARY KEY,"
+                    + "location_setting TEXT UNIQUE NOT NULL, city_name TEXT NOT NULL, "
+                    + "coord_lat REAL NOT NULL, coord_long REAL NOT NULL);",
+            "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + "location_id INTEGER NOT NULL, date INTEGER NOT NULL, "
+                    + "short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL,"
+                    + "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, "
+                    + "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL, "
+                    + " FOREIGN KEY (location_id) REFERENCES location (_id), "
+                    + " UNIQUE (date, location_id) ON CONFLICT REPLACE);",
+            "CREATE INDEX weather_location_date ON weather (location_id, date);"
+    };
+
+    // What ForecastFragment asks for
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private static final String[] DESCRIPTIONS = {"Clear", "Clouds", "Rain", "Snow", "Fog"};
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WIDE_DATABASE_NAME);
+        mContext.deleteDatabase(COMPACT_DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(WIDE_DATABASE_NAME);
+        mContext.deleteDatabase(COMPACT_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testBenchmark() {
+        SQLiteDatabase wide = openDatabase(WIDE_DATABASE_NAME);
+        SQLiteDatabase compact = openDatabase(COMPACT_DATABASE_NAME);
+        try {
+            for (String statement : WIDE_SCHEMA) {
+                wide.execSQL(statement);
+            }
+            new WeatherDbHelper(mContext).onCreate(compact);
+            fill(wide, false);
+            fill(compact, true);
+
+            report("version 5", wide, time(wide, FORECAST_COLUMNS, false));
+            report("compact", compact, time(compact,
+                    WeatherCodec.decodeProjection(FORECAST_COLUMNS, true), true));
+        } finally {
+            wide.close();
+            compact.close();
+        }
+    }
+
+    private SQLiteDatabase openDatabase(String name) {
+        return mContext.openOrCreateDatabase(name, Context.MODE_PRIVATE, null);
+    }
+
+    private static void fill(SQLiteDatabase db, boolean compact) {
+        TimeZone timeZone = TimeZone.getDefault();
+        ConditionDictionary conditions = new ConditionDictionary();
+        db.beginTransaction();
+        try {
+            for (int location = 0; location < NUM_LOCATIONS; location++) {
+                ContentValues values = new ContentValues();
+                values.put(LocationEntry.COLUMN_LOCATION_SETTING, Integer.toString(99700 + location));
+                values.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+                values.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+                values.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+                long locationId = db.insert(LocationEntry.TABLE_NAME, null, values);
+
+                for (int day = 0; day < DAYS_PER_LOCATION; day++) {
+                    ContentValues weather = createWeatherValues(locationId, day);
+                    if (compact) {
+                        conditions.put(db, weather);
+                        weather = WeatherCodec.encode(weather, timeZone);
+                    }
+                    db.insert(WeatherEntry.TABLE_NAME, null, weather);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        // Leave no free pages behind, so the sizes compare the rows alone
+        db.execSQL("VACUUM");
+        assertEquals(NUM_LOCATIONS * DAYS_PER_LOCATION,
+                DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+    }
+
+    private static ContentValues createWeatherValues(long locationId, int day) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        values.put(WeatherEntry.COLUMN_DATE,
+                WeatherContract.normalizeDate(TestUtilities.TEST_DATE + day * DAY_IN_MILLIS));
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, DESCRIPTIONS[day % DESCRIPTIONS.length]);
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + day % DESCRIPTIONS.length);
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, -10.25 + day % 30);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, 2.5 + day % 30);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, 40 + day % 60);
+        values.put(WeatherEntry.COLUMN_PRESSURE, 990.4 + day % 40);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, 0.5 * (day % 20));
+        values.put(WeatherEntry.COLUMN_DEGREES, day % 360);
+        return values;
+    }
+
+    /**
+     * Runs the forecast list's query for one location from its first day on, reading every
+     * column of every row the way the list does.
+     *
+     * @return the median time the query took, in nanoseconds
+     */
+    private static long time(SQLiteDatabase db, String[] projection, boolean decodeDates) {
+        long[] nanos = new long[NUM_QUERIES];
+        String[] selectionArgs = {"99700", decodeDates
+                ? Integer.toString(WeatherContract.toJulianDay(TestUtilities.TEST_DATE))
+                : Long.toString(WeatherContract.normalizeDate(TestUtilities.TEST_DATE))};
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            long start = System.nanoTime();
+            Cursor cursor = WeatherProvider.sWeatherByLocationSettingQueryBuilder.query(db,
+                    projection, WeatherProvider.sLocationSettingWithStartDateSelection,
+                    selectionArgs, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            if (decodeDates) {
+                cursor = WeatherCodec.decodeDates(cursor);
+            }
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getLong(1);
+                cursor.getString(2);
+                cursor.getDouble(3);
+                cursor.getDouble(4);
+                cursor.getString(5);
+                cursor.getInt(6);
+                cursor.getDouble(7);
+                cursor.getDouble(8);
+                rows++;
+            }
+            cursor.close();
+            nanos[i] = System.nanoTime() - start;
+            assertEquals(DAYS_PER_LOCATION, rows);
+        }
+        Arrays.sort(nanos);
+        return nanos[NUM_QUERIES / 2];
+    }
+
+    private static void report(String name, SQLiteDatabase db, long queryNanos) {
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        Log.i(LOG_TAG, name + ": " + (pageSize * pageCount / 1024) + "KB for "
+                + NUM_LOCATIONS * DAYS_PER_LOCATION + " rows, "
+                + (queryNanos / 1000) + "us to list " + DAYS_PER_LOCATION + " days");
+    }
+}
@@ -21,6 +21,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 
 import java.util.HashSet;
+import java.util.TimeZone;
 
 public class TestDb extends AndroidTestCase {
 
@@ -55,6 +56,8 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherContract.WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherDbHelper.CONDITION_TABLE_NAME);
+        tableNameHashSet.add(WeatherDbHelper.ARCHIVE_TABLE_NAME);
 
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
         SQLiteDatabase db = new WeatherDbHelper(
@@ -91,6 +94,12 @@ public class TestDb extends AndroidTestCase {
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_ETAG);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_FETCHED_AT);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_MAX_AGE);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_FAILURE_COUNT);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_RETRY_AFTER);
 
         int columnNameIndex = c.getColumnIndex("name");
         do {
@@ -141,8 +150,9 @@ public class TestDb extends AndroidTestCase {
         WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        // Second Step (Weather): Create weather values
-        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        // Second Step (Weather): Create weather values, encoded the way the table stores them
+        ContentValues weatherValues = WeatherCodec.encode(
+                TestUtilities.createWeatherValues(locationRowId), TimeZone.getDefault());
 
         // Third Step (Weather): Insert ContentValues into database and get a row ID back
         long weatherRowId = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, weatherValues);
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.Percentiles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Contention benchmark.  A writer runs sync-sized transactions back to back while a few reader
+    threads keep asking for today's forecast, once with the rollback journal and once with
+    write-ahead logging, and logs the readers' latency percentiles for both.  Timings on a
+    shared test device are too noisy to assert on, so only the journal mode and that the reads
+    completed are checked.
+ */
+public class TestDbContention extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDbContention.class.getSimpleName();
+
+    private static final String LOCATION_SETTING = "99705";
+    private static final int NUM_READERS = 3;
+    private static final int NUM_WRITE_TRANSACTIONS = 100;
+    // About one sync's worth: a fortnight for each of a handful of locations
+    private static final int ROWS_PER_TRANSACTION = 14 * 5;
+
+    private static final String TODAY_QUERY =
+            "SELECT " + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", "
+                    + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+                    + " FROM " + WeatherContract.WeatherEntry.TABLE_NAME
+                    + " INNER JOIN " + WeatherContract.LocationEntry.TABLE_NAME
+                    + " ON " + WeatherContract.WeatherEntry.TABLE_NAME + "."
+                    + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = "
+                    + WeatherContract.LocationEntry.TABLE_NAME + "."
+                    + WeatherContract.LocationEntry._ID
+                    + " WHERE " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?"
+                    + " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?";
+
+    private WeatherDbHelper mHelper;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mHelper = new WeatherDbHelper(mContext);
+        mLocationId = mHelper.getWritableDatabase().insert(
+                WeatherContract.LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        assertTrue(mLocationId != -1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testWriteAheadLoggingIsOn() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery("PRAGMA journal_mode", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("wal", cursor.getString(0).toLowerCase(Locale.US));
+        cursor.close();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void testReaderLatencyUnderSyncWrites() throws InterruptedException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        mHelper.setWriteAheadLoggingEnabled(false);
+        long[] journal = run("rollback journal");
+
+        mHelper.setWriteAheadLoggingEnabled(true);
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery("PRAGMA journal_mode", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("wal", cursor.getString(0).toLowerCase(Locale.US));
+        cursor.close();
+        long[] wal = run("write-ahead log");
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "reader p99  rollback journal %7.3fms  write-ahead log %7.3fms",
+                Percentiles.nearestRank(journal, 99) / 1e6,
+                Percentiles.nearestRank(wal, 99) / 1e6));
+    }
+
+    /**
+     * @return every reader query's latency in nanoseconds, sorted
+     */
+    private long[] run(String name) throws InterruptedException {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        final String today = Integer.toString(WeatherContract.toJulianDay(TestUtilities.TEST_DATE));
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final CountDownLatch started = new CountDownLatch(NUM_READERS);
+        final List<List<Long>> latencies = new ArrayList<List<Long>>();
+
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < NUM_READERS; i++) {
+            final List<Long> readerLatencies = new ArrayList<Long>();
+            latencies.add(readerLatencies);
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    while (writing.get()) {
+                        long start = System.nanoTime();
+                        Cursor cursor = db.rawQuery(TODAY_QUERY,
+                                new String[]{LOCATION_SETTING, today});
+                        cursor.moveToFirst();
+                        cursor.close();
+                        readerLatencies.add(System.nanoTime() - start);
+                    }
+                }
+            };
+            readers.add(reader);
+            reader.start();
+        }
+        started.await();
+
+        long writeStart = System.nanoTime();
+        ContentValues values = TestUtilities.createWeatherValues(mLocationId);
+        TimeZone timeZone = TimeZone.getDefault();
+        for (int transaction = 0; transaction < NUM_WRITE_TRANSACTIONS; transaction++) {
+            db.beginTransaction();
+            try {
+                for (int row = 0; row < ROWS_PER_TRANSACTION; row++) {
+                    values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                            TestUtilities.TEST_DATE + row % 14 * 86400000L);
+                    values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, transaction + row);
+                    db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                            WeatherCodec.encode(values, timeZone));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        long writeNanos = System.nanoTime() - writeStart;
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        int count = 0;
+        for (List<Long> readerLatencies : latencies) {
+            count += readerLatencies.size();
+        }
+        long[] sorted = new long[count];
+        int i = 0;
+        for (List<Long> readerLatencies : latencies) {
+            for (long latency : readerLatencies) {
+                sorted[i++] = latency;
+            }
+        }
+        Arrays.sort(sorted);
+        assertTrue("Error: No reads completed with the " + name, sorted.length > 0);
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%-16s writes %6.1fms  reads %6d  p50 %7.3fms  p99 %7.3fms  max %7.3fms",
+                name, writeNanos / 1e6, sorted.length,
+                Percentiles.nearestRank(sorted, 50) / 1e6,
+                Percentiles.nearestRank(sorted, 99) / 1e6,
+                sorted[sorted.length - 1] / 1e6));
+        return sorted;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Creates a database as each earlier version of the app left it, with a location and a day of
+    weather in it, and opens it with the current WeatherDbHelper.  The rows have to survive, and
+    the schema has to come out the same as a freshly created one.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    // The schema of every version upgradeTo builds on, as those versions created it.  Written
+    // out rather than built from the contract, so that later changes to it don't rewrite history.
+    private static final String[][] HISTORICAL_SCHEMAS = {
+            // 2
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY,"
+                            + "location_setting TEXT UNIQUE NOT NULL, city_name TEXT NOT NULL, "
+                            + "coord_lat REAL NOT NULL, coord_long REAL NOT NULL  );",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                            + "location_id INTEGER NOT NULL, date INTEGER NOT NULL, "
+                            + "short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL,"
+                            + "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, "
+                            + "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL, "
+                            + " FOREIGN KEY (location_id) REFERENCES location (_id), "
+                            + " UNIQUE (date, location_id) ON CONFLICT REPLACE);"
+            },
+            // 3
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY,"
+                            + "location_setting TEXT UNIQUE NOT NULL, city_name TEXT NOT NULL, "
+                            + "coord_lat REAL NOT NULL, coord_long REAL NOT NULL, "
+                            + "etag TEXT, last_modified TEXT, "
+                            + "fetched_at INTEGER NOT NULL DEFAULT 0, "
+                            + "max_age INTEGER NOT NULL DEFAULT 0  );",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                            + "location_id INTEGER NOT NULL, date INTEGER NOT NULL, "
+                            + "short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL,"
+                            + "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, "
+                            + "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL, "
+                            + " FOREIGN KEY (location_id) REFERENCES location (_id), "
+                            + " UNIQUE (date, location_id) ON CONFLICT REPLACE);"
+            },
+            // 4
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY,"
+                            + "location_setting TEXT UNIQUE NOT NULL, city_name TEXT NOT NULL, "
+                            + "coord_lat REAL NOT NULL, coord_long REAL NOT NULL, "
+                            + "etag TEXT, last_modified TEXT, "
+                            + "fetched_at INTEGER NOT NULL DEFAULT 0, "
+                            + "max_age INTEGER NOT NULL DEFAULT 0, "
+                            + "failure_count INTEGER NOT NULL DEFAULT 0, "
+                            + "retry_after INTEGER NOT NULL DEFAULT 0  );",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                            + "location_id INTEGER NOT NULL, date INTEGER NOT NULL, "
+                            + "short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL,"
+                            + "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, "
+                            + "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL, "
+                            + " FOREIGN KEY (location_id) REFERENCES location (_id), "
+                            + " UNIQUE (date, location_id) ON CONFLICT REPLACE);"
+            },
+            // 5
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY,"
+                            + "location_setting TEXT UNIQUE NOT NULL, city_name TEXT NOT NULL, "
+                            + "coord_lat REAL NOT NULL, coord_long REAL NOT NULL, "
+                            + "etag TEXT, last_modified TEXT, "
+                            + "fetched_at INTEGER NOT NULL DEFAULT 0, "
+                            + "max_age INTEGER NOT NULL DEFAULT 0, "
+                            + "failure_count INTEGER NOT NULL DEFAULT 0, "
+                            + "retry_after INTEGER NOT NULL DEFAULT 0  );",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                            + "location_id INTEGER NOT NULL, date INTEGER NOT NULL, "
+                            + "short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL,"
+                            + "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, "
+                            + "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL, "
+                            + " FOREIGN KEY (location_id) REFERENCES location (_id), "
+                            + " UNIQUE (date, location_id) ON CONFLICT REPLACE);",
+                    "CREATE INDEX weather_location_date ON weather (location_id, date);"
+            },
+            // 6
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY,"
+                            + "location_setting TEXT UNIQUE NOT NULL, city_name TEXT NOT NULL, "
+                            + "coord_lat REAL NOT NULL, coord_long REAL NOT NULL, "
+                            + "etag TEXT, last_modified TEXT, "
+                            + "fetched_at INTEGER NOT NULL DEFAULT 0, "
+                            + "max_age INTEGER NOT NULL DEFAULT 0, "
+                            + "failure_count INTEGER NOT NULL DEFAULT 0, "
+                            + "retry_after INTEGER NOT NULL DEFAULT 0  );",
+                    "CREATE TABLE condition (_id INTEGER PRIMARY KEY, description TEXT NOT NULL);",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                            + "location_id INTEGER NOT NULL, date INTEGER NOT NULL, "
+                            + "weather_id INTEGER NOT NULL,"
+                            + "min INTEGER NOT NULL, max INTEGER NOT NULL, "
+                            + "humidity INTEGER NOT NULL, pressure INTEGER NOT NULL, "
+                            + "wind INTEGER NOT NULL, degrees INTEGER NOT NULL, "
+                            + " FOREIGN KEY (location_id) REFERENCES location (_id), "
+                            + " UNIQUE (date, location_id) ON CONFLICT REPLACE);",
+                    "CREATE INDEX weather_location_date ON weather (location_id, date);"
+            }
+    };
+
+    // The first version that stores weather compactly
+    private static final int COMPACT_VERSION = 6;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testEveryVersionIsCovered() {
+        assertEquals("Error: Add the schema of the previous version to HISTORICAL_SCHEMAS",
+                WeatherDbHelper.DATABASE_VERSION - WeatherDbHelper.OLDEST_UPGRADABLE_VERSION,
+                HISTORICAL_SCHEMAS.length);
+    }
+
+    public void testUpgradeKeepsRows() {
+        SQLiteDatabase fresh = SQLiteDatabase.create(null);
+        new WeatherDbHelper(mContext).onCreate(fresh);
+        List<String> expectedSchema = describeSchema(fresh);
+        fresh.close();
+
+        for (int i = 0; i < HISTORICAL_SCHEMAS.length; i++) {
+            int version = WeatherDbHelper.OLDEST_UPGRADABLE_VERSION + i;
+            mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+            createOldDatabase(version, HISTORICAL_SCHEMAS[i]);
+
+            WeatherDbHelper helper = new WeatherDbHelper(mContext);
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+            assertEquals("Error: The schema upgraded from version " + version
+                    + " differs from a new one", expectedSchema, describeSchema(db));
+
+            Cursor location = db.query(WeatherContract.LocationEntry.TABLE_NAME, null,
+                    null, null, null, null, null);
+            assertTrue("Error: The location was lost upgrading from version " + version,
+                    location.moveToFirst());
+            assertEquals(TestUtilities.TEST_LOCATION, location.getString(
+                    location.getColumnIndex(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)));
+            assertEquals(0, location.getLong(
+                    location.getColumnIndex(WeatherContract.LocationEntry.COLUMN_RETRY_AFTER)));
+            location.close();
+
+            Cursor weather = db.query(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                    null, null, null, null, null);
+            assertTrue("Error: The weather was lost upgrading from version " + version,
+                    weather.moveToFirst());
+            assertEquals(WeatherContract.toJulianDay(TestUtilities.TEST_DATE), weather.getInt(
+                    weather.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE)));
+            assertEquals(7500, weather.getInt(
+                    weather.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)));
+            assertEquals(550, weather.getInt(
+                    weather.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED)));
+            weather.close();
+
+            Cursor condition = db.query(WeatherDbHelper.CONDITION_TABLE_NAME,
+                    new String[]{WeatherDbHelper.CONDITION_DESCRIPTION},
+                    WeatherDbHelper.CONDITION_ID + " = 321", null, null, null, null);
+            assertTrue("Error: The description was lost upgrading from version " + version,
+                    condition.moveToFirst());
+            assertEquals("Asteroids", condition.getString(0));
+            condition.close();
+            helper.close();
+        }
+    }
+
+    public void testTooOldIsRecreated() {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(WeatherDbHelper.DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        db.execSQL("CREATE TABLE weather (_id INTEGER PRIMARY KEY, date TEXT)");
+        db.setVersion(WeatherDbHelper.OLDEST_UPGRADABLE_VERSION - 1);
+        db.close();
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        SQLiteDatabase fresh = SQLiteDatabase.create(null);
+        helper.onCreate(fresh);
+        assertEquals(describeSchema(fresh), describeSchema(helper.getReadableDatabase()));
+        fresh.close();
+        helper.close();
+    }
+
+    private void createOldDatabase(int version, String[] schema) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(WeatherDbHelper.DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        for (String statement : schema) {
+            db.execSQL(statement);
+        }
+        db.execSQL("INSERT INTO location (_id, location_setting, city_name, coord_lat, coord_long)"
+                + " VALUES (1, ?, 'North Pole', 64.7488, -147.353)",
+                new Object[]{TestUtilities.TEST_LOCATION});
+        if (version >= COMPACT_VERSION) {
+            db.execSQL("INSERT INTO condition (_id, description) VALUES (321, 'Asteroids')");
+            db.execSQL("INSERT INTO weather (location_id, date, weather_id, min, max,"
+                    + " humidity, pressure, wind, degrees)"
+                    + " VALUES (1, ?, 321, 6500, 7500, 120, 130, 550, 110)",
+                    new Object[]{WeatherContract.toJulianDay(TestUtilities.TEST_DATE)});
+        } else {
+            db.execSQL("INSERT INTO weather (location_id, date, short_desc, weather_id, min, max,"
+                    + " humidity, pressure, wind, degrees)"
+                    + " VALUES (1, ?, 'Asteroids', 321, 65, 75, 1.2, 1.3, 5.5, 1.1)",
+                    new Object[]{TestUtilities.TEST_DATE});
+        }
+        db.setVersion(version);
+        db.close();
+    }
+
+    /**
+     * @return every column of every table with its type, constraints and default, followed by
+     * the names of the indexes
+     */
+    private static List<String> describeSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<String>();
+        for (String table : new String[]{WeatherContract.LocationEntry.TABLE_NAME,
+                WeatherDbHelper.CONDITION_TABLE_NAME, WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherDbHelper.ARCHIVE_TABLE_NAME}) {
+            Cursor columns = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            while (columns.moveToNext()) {
+                schema.add(table + "." + columns.getString(columns.getColumnIndex("name"))
+                        + " " + columns.getString(columns.getColumnIndex("type"))
+                        + " notnull=" + columns.getInt(columns.getColumnIndex("notnull"))
+                        + " default=" + columns.getString(columns.getColumnIndex("dflt_value"))
+                        + " pk=" + columns.getInt(columns.getColumnIndex("pk")));
+            }
+            columns.close();
+        }
+        Cursor indexes = db.rawQuery("SELECT tbl_name, name FROM sqlite_master"
+                + " WHERE type = 'index' ORDER BY tbl_name, name", null);
+        while (indexes.moveToNext()) {
+            schema.add("index " + indexes.getString(0) + "." + indexes.getString(1));
+        }
+        indexes.close();
+        return schema;
+    }
+}
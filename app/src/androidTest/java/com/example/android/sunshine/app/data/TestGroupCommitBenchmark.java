@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+/*
+    Group commit benchmark.  A few threads each write a burst of single days at once, as a sync
+    of several locations and the widgets do, through a WriteQueue that groups them and through
+    one that commits each on its own, and logs the commits, commits and writes per second, and
+    the writers' latency percentiles for both.
+ */
+public class TestGroupCommitBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestGroupCommitBenchmark.class.getSimpleName();
+
+    private static final int NUM_WRITERS = 8;
+    private static final int WRITES_PER_WRITER = 100;
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    private static final WriteQueue.Listener NO_LISTENER = new WriteQueue.Listener() {
+        @Override
+        public void onGroupStarted() {
+        }
+
+        @Override
+        public void onGroupCommitted() {
+        }
+
+        @Override
+        public void onGroupRolledBack() {
+        }
+    };
+
+    private WeatherDbHelper mDbHelper;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mDbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        mLocationId = db.insert(LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        new ConditionDictionary().put(db, TestUtilities.createWeatherValues(mLocationId));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testBenchmark() throws Exception {
+        burst("grouped", new WriteQueue(mDbHelper, NO_LISTENER));
+        mDbHelper.getWritableDatabase().delete(WeatherEntry.TABLE_NAME, null, null);
+        burst("one per commit", new WriteQueue(mDbHelper, NO_LISTENER, 0, 1));
+    }
+
+    private void burst(String name, final WriteQueue queue) throws Exception {
+        final long[][] latencies = new long[NUM_WRITERS][WRITES_PER_WRITER];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[NUM_WRITERS];
+        final Throwable[] failure = new Throwable[1];
+        for (int i = 0; i < NUM_WRITERS; i++) {
+            final int writer = i;
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int write = 0; write < WRITES_PER_WRITER; write++) {
+                            long begin = System.nanoTime();
+                            queue.execute(insertDay(writer * WRITES_PER_WRITER + write));
+                            latencies[writer][write] = System.nanoTime() - begin;
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            });
+            writers[i].start();
+        }
+
+        long commitsBefore = queue.getCommitCount();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long elapsedNanos = System.nanoTime() - begin;
+        long commits = queue.getCommitCount() - commitsBefore;
+        queue.quit();
+
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+        int numWrites = NUM_WRITERS * WRITES_PER_WRITER;
+        assertEquals(numWrites, DatabaseUtils.queryNumEntries(
+                mDbHelper.getReadableDatabase(), WeatherEntry.TABLE_NAME));
+
+        long[] all = new long[numWrites];
+        for (int i = 0; i < NUM_WRITERS; i++) {
+            System.arraycopy(latencies[i], 0, all, i * WRITES_PER_WRITER, WRITES_PER_WRITER);
+        }
+        Arrays.sort(all);
+        double seconds = elapsedNanos / 1e9;
+        Log.i(LOG_TAG, name + ": " + numWrites + " writes in " + commits + " commits, "
+                + Math.round(commits / seconds) + " commits/s, "
+                + Math.round(numWrites / seconds) + " writes/s, latency p50 "
+                + (all[numWrites / 2] / 1000) + "us, p95 "
+                + (all[numWrites * 95 / 100] / 1000) + "us");
+    }
+
+    private Callable<Long> insertDay(final int day) {
+        return new Callable<Long>() {
+            @Override
+            public Long call() {
+                ContentValues weather = TestUtilities.createWeatherValues(mLocationId);
+                weather.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                        TestUtilities.TEST_DATE + day * DAY_IN_MILLIS));
+                SQLiteDatabase db = mDbHelper.getWritableDatabase();
+                return db.insertOrThrow(WeatherEntry.TABLE_NAME, null,
+                        WeatherCodec.encode(weather, TimeZone.getDefault()));
+            }
+        };
+    }
+}
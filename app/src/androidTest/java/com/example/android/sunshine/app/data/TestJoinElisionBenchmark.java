@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/*
+    Times a location's weather query both ways the provider can run it, joined to the location
+    table by setting and on the weather table alone by the location's _id, for each shape of
+    projection that needs no location column, and logs the median of each.  Timings on a shared
+    test device are too noisy to assert on, so only that both ways return the same rows is.
+ */
+public class TestJoinElisionBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestJoinElisionBenchmark.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "benchmark_join.db";
+
+    private static final int NUM_LOCATIONS = 20;
+    private static final int DAYS_PER_LOCATION = 1000;
+    private static final int NUM_QUERIES = 50;
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+    private static final String LOCATION_SETTING = "99710";
+
+    private static final String[][] PROJECTIONS = {
+            // A day's temperatures
+            {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_MIN_TEMP},
+            // What the widgets, Muzei and Wear read
+            WeatherRow.COLUMNS,
+            // Every weather column
+            {WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID, WeatherEntry.COLUMN_LOC_KEY,
+                    WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC,
+                    WeatherEntry.COLUMN_WEATHER_ID, WeatherEntry.COLUMN_MIN_TEMP,
+                    WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_HUMIDITY,
+                    WeatherEntry.COLUMN_PRESSURE, WeatherEntry.COLUMN_WIND_SPEED,
+                    WeatherEntry.COLUMN_DEGREES}
+    };
+    private static final String[] PROJECTION_NAMES = {"temperatures", "weather row", "all weather"};
+
+    private static final String SORT_BY_DATE = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private SQLiteDatabase mDb;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDb = mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        new WeatherDbHelper(mContext).onCreate(mDb);
+        fill();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testBenchmark() {
+        String startDay = Integer.toString(WeatherContract.toJulianDay(TestUtilities.TEST_DATE));
+        String[] settingArgs = {LOCATION_SETTING, startDay};
+        String[] idArgs = {Long.toString(mLocationId), startDay};
+
+        for (int i = 0; i < PROJECTIONS.length; i++) {
+            assertFalse(WeatherCodec.referencesLocation(PROJECTIONS[i], SORT_BY_DATE));
+            // The list, from the start date on
+            long join = time(true, PROJECTIONS[i],
+                    WeatherProvider.sLocationSettingWithStartDateSelection, settingArgs,
+                    DAYS_PER_LOCATION);
+            long direct = time(false, PROJECTIONS[i],
+                    WeatherProvider.sLocationIdWithStartDateSelection, idArgs, DAYS_PER_LOCATION);
+            report(PROJECTION_NAMES[i] + ", " + DAYS_PER_LOCATION + " days", join, direct);
+
+            // A single day
+            join = time(true, PROJECTIONS[i], WeatherProvider.sLocationSettingAndDaySelection,
+                    settingArgs, 1);
+            direct = time(false, PROJECTIONS[i], WeatherProvider.sLocationIdAndDaySelection,
+                    idArgs, 1);
+            report(PROJECTION_NAMES[i] + ", one day", join, direct);
+        }
+    }
+
+    private void fill() {
+        TimeZone timeZone = TimeZone.getDefault();
+        ConditionDictionary conditions = new ConditionDictionary();
+        mDb.beginTransaction();
+        try {
+            for (int location = 0; location < NUM_LOCATIONS; location++) {
+                ContentValues values = TestUtilities.createNorthPoleLocationValues();
+                values.put(LocationEntry.COLUMN_LOCATION_SETTING, Integer.toString(99700 + location));
+                long locationId = mDb.insert(LocationEntry.TABLE_NAME, null, values);
+                if (values.getAsString(LocationEntry.COLUMN_LOCATION_SETTING)
+                        .equals(LOCATION_SETTING)) {
+                    mLocationId = locationId;
+                }
+
+                for (int day = 0; day < DAYS_PER_LOCATION; day++) {
+                    ContentValues weather = TestUtilities.createWeatherValues(locationId);
+                    weather.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                            TestUtilities.TEST_DATE + day * DAY_IN_MILLIS));
+                    conditions.put(mDb, weather);
+                    mDb.insert(WeatherEntry.TABLE_NAME, null,
+                            WeatherCodec.encode(weather, timeZone));
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Runs the query, reading every column of every row.
+     *
+     * @return the median time the query took, in nanoseconds
+     */
+    private long time(boolean join, String[] projection, String selection, String[] selectionArgs,
+            int expectedRows) {
+        long[] nanos = new long[NUM_QUERIES];
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            long start = System.nanoTime();
+            Cursor cursor;
+            if (join) {
+                cursor = WeatherProvider.sWeatherByLocationSettingQueryBuilder.query(mDb,
+                        WeatherCodec.decodeProjection(projection, true), selection,
+                        selectionArgs, null, null, SORT_BY_DATE);
+            } else {
+                cursor = mDb.query(WeatherEntry.TABLE_NAME,
+                        WeatherCodec.decodeProjection(projection, false), selection,
+                        selectionArgs, null, null, SORT_BY_DATE);
+            }
+            cursor = WeatherCodec.decodeDates(cursor);
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    cursor.getString(column);
+                }
+                rows++;
+            }
+            cursor.close();
+            nanos[i] = System.nanoTime() - start;
+            assertEquals(expectedRows, rows);
+        }
+        Arrays.sort(nanos);
+        return nanos[NUM_QUERIES / 2];
+    }
+
+    private static void report(String shape, long joinNanos, long directNanos) {
+        Log.i(LOG_TAG, shape + ": " + (joinNanos / 1000) + "us joined, "
+                + (directNanos / 1000) + "us by location _id");
+    }
+}
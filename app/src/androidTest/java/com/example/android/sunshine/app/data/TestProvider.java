@@ -16,20 +16,28 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -179,11 +187,15 @@ public class TestProvider extends AndroidTestCase {
         // Fantastic.  Now that we have a location, add some weather!
         ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
 
-        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+        long weatherRowId = TestUtilities.insertWeatherValues(db, weatherValues);
         assertTrue("Unable to Insert WeatherEntry into the Database", weatherRowId != -1);
 
         db.close();
 
+        // The provider returns the date as the start of its day
+        weatherValues.put(WeatherEntry.COLUMN_DATE,
+                WeatherContract.normalizeDate(TestUtilities.TEST_DATE));
+
         // Test the basic content provider query
         Cursor weatherCursor = mContext.getContentResolver().query(
                 WeatherEntry.CONTENT_URI,
@@ -287,6 +299,404 @@ public class TestProvider extends AndroidTestCase {
     }
 
 
+    /*
+        Updating a single day's URI is an upsert that only writes, and only reports a change,
+        when the values differ from what is stored.  A weather id's description never changes.
+     */
+    public void testUpsertWeatherForDay() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        Uri dayUri = WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        assertEquals("Error: A missing day wasn't inserted",
+                1, mContext.getContentResolver().update(dayUri, new ContentValues(weatherValues), null, null));
+        assertEquals("Error: An unchanged day was written again",
+                0, mContext.getContentResolver().update(dayUri, new ContentValues(weatherValues), null, null));
+
+        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        assertEquals("Error: A changed day wasn't written",
+                1, mContext.getContentResolver().update(dayUri, new ContentValues(weatherValues), null, null));
+
+        // The location key can also come from the URI
+        weatherValues.remove(WeatherEntry.COLUMN_LOC_KEY);
+        assertEquals(0, mContext.getContentResolver().update(dayUri, new ContentValues(weatherValues), null, null));
+
+        // The weather id keeps the first description stored for it
+        ContentValues renamed = new ContentValues(weatherValues);
+        renamed.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        assertEquals("Error: A new description for the weather id was written",
+                0, mContext.getContentResolver().update(dayUri, renamed, null, null));
+
+        Cursor weatherCursor = mContext.getContentResolver().query(dayUri, null, null, null, null);
+        assertEquals("Error: The upsert created a second row for the day", 1, weatherCursor.getCount());
+        weatherValues.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(TestUtilities.TEST_DATE));
+        TestUtilities.validateCursor("testUpsertWeatherForDay.  Error validating upserted day.",
+                weatherCursor, weatherValues);
+    }
+
+    /*
+        The end date and limit parameters of a location's weather URI narrow what the query
+        returns.
+     */
+    public void testWeatherDateRangeAndLimit() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] days = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+        long dayInMillis = 24 * 60 * 60 * 1000;
+
+        Uri rangeUri = WeatherEntry.buildWeatherLocationWithDateRange(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE + dayInMillis, TestUtilities.TEST_DATE + 3 * dayInMillis);
+        Cursor cursor = mContext.getContentResolver().query(rangeUri, null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: The range didn't return its three days", 3, cursor.getCount());
+        cursor.moveToFirst();
+        TestUtilities.validateCurrentRecord("testWeatherDateRangeAndLimit", cursor, days[1]);
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(WeatherEntry.withLimit(rangeUri, 1),
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: The limit wasn't applied", 1, cursor.getCount());
+        cursor.moveToFirst();
+        TestUtilities.validateCurrentRecord("testWeatherDateRangeAndLimit", cursor, days[1]);
+        cursor.close();
+    }
+
+    /*
+        A projection with no location column reads the weather table by the location's _id,
+        which has to follow the location when it is deleted and inserted again.
+     */
+    public void testWeatherOnlyProjection() {
+        String[] projection = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP};
+        Uri locationUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        Cursor cursor = mContext.getContentResolver().query(locationUri, projection, null, null,
+                null);
+        assertEquals("Error: An unknown location had weather", 0, cursor.getCount());
+        cursor.close();
+
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        cursor = mContext.getContentResolver().query(locationUri, projection, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(WeatherContract.normalizeDate(TestUtilities.TEST_DATE), cursor.getLong(0));
+        cursor.close();
+
+        // Take the location's _id for another setting before it comes back
+        deleteAllRecordsFromProvider();
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "94043");
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, otherLocation);
+        locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(locationRowId));
+
+        cursor = mContext.getContentResolver().query(locationUri, projection, null, null, null);
+        assertEquals("Error: The weather wasn't read by the location's new _id",
+                1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Every column of the location table, however recently it was added, makes a query of a
+        location's weather join the location table to read it.
+     */
+    public void testLocationColumnProjection() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        Cursor columns = db.rawQuery("PRAGMA table_info(" + LocationEntry.TABLE_NAME + ")", null);
+        int nameIndex = columns.getColumnIndex("name");
+        while (columns.moveToNext()) {
+            String column = columns.getString(nameIndex);
+            if (!LocationEntry._ID.equals(column)) {
+                assertTrue("Error: A query for " + column + " wouldn't join the location table",
+                        WeatherCodec.referencesLocation(new String[]{column}, null));
+            }
+        }
+        columns.close();
+        db.close();
+
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(locationRowId));
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_RETRY_AFTER},
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(0, cursor.getLong(1));
+        cursor.close();
+    }
+
+    /*
+        The weather URI's date and measurement ranges select rows as a query returns them,
+        however they are stored.
+     */
+    public void testWeatherRangeParameters() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        long dayInMillis = 24 * 60 * 60 * 1000;
+        long thirdDay = TestUtilities.TEST_DATE + 2 * dayInMillis;
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.withMeasurementRange(WeatherEntry.buildWeatherWithDateRange(
+                        thirdDay, 0), WeatherEntry.COLUMN_MAX_TEMP, Double.NEGATIVE_INFINITY, 78.0),
+                null, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationRowId)}, null);
+        assertEquals("Error: The URI didn't select by the date and temperature as given",
+                2, cursor.getCount());
+        cursor.close();
+
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_HUMIDITY, 50);
+        assertEquals(1, mContext.getContentResolver().update(
+                WeatherEntry.buildWeatherWithDateRange(thirdDay, thirdDay), values, null, null));
+        assertEquals(2, mContext.getContentResolver().delete(
+                WeatherEntry.withMeasurementRange(WeatherEntry.CONTENT_URI,
+                        WeatherEntry.COLUMN_MAX_TEMP, 82.5, 90), null, null));
+    }
+
+    /*
+        Selections on the weather table compare its dates and measurements as a query returns
+        them, however they are stored, and refuse to do arithmetic on the date.
+     */
+    public void testWeatherSelectionArgs() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        long dayInMillis = 24 * 60 * 60 * 1000;
+        String thirdDay = Long.toString(
+                WeatherContract.normalizeDate(TestUtilities.TEST_DATE + 2 * dayInMillis));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_DATE + " >= ? AND " + WeatherEntry.COLUMN_MAX_TEMP + " <= ?",
+                new String[]{thirdDay, "78.0"}, null);
+        assertEquals("Error: The selection didn't compare the date and temperature as given",
+                2, cursor.getCount());
+        cursor.close();
+
+        // Whatever the case of the column and the table
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                "DATE >= ? AND Weather.Max <= ?", new String[]{thirdDay, "78.0"}, null);
+        assertEquals("Error: The selection's mixed case columns weren't encoded",
+                2, cursor.getCount());
+        cursor.close();
+
+        // Literals, and measurements in arithmetic or SQL functions
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_DATE + " >= " + thirdDay + " AND max(" +
+                        WeatherEntry.COLUMN_MAX_TEMP + " - " + WeatherEntry.COLUMN_MIN_TEMP +
+                        ", 0) > 10 AND " + WeatherEntry.COLUMN_MAX_TEMP + " <= 78",
+                null, null);
+        assertEquals("Error: The selection's literals and expressions weren't decoded",
+                2, cursor.getCount());
+        cursor.close();
+
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_HUMIDITY, 50);
+        assertEquals(1, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                WeatherEntry.COLUMN_DATE + " = ?", new String[]{thirdDay}));
+        assertEquals(2, mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_MAX_TEMP + " BETWEEN ? AND ?", new String[]{"82.5", "90"}));
+
+        try {
+            mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                    WeatherEntry.COLUMN_DATE + " + ? > ?", new String[]{"1", thirdDay}, null);
+            fail("Error: Arithmetic on the stored date was let through");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /*
+        getCurrentConditions returns today's row through call(), with the same values a query
+        for the day returns, and null for a location with no weather today.
+     */
+    public void testGetCurrentConditions() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        long now = System.currentTimeMillis();
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        mContext.getContentResolver().update(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, now),
+                weatherValues, null, null);
+
+        WeatherRow today = WeatherContract.getCurrentConditions(
+                mContext.getContentResolver(), TestUtilities.TEST_LOCATION);
+        assertNotNull("Error: No current conditions for a location with weather today", today);
+        assertEquals(locationRowId, today.locationId);
+        assertEquals(WeatherContract.normalizeDate(now), today.date);
+        assertEquals("Asteroids", today.shortDesc);
+        assertEquals(321, today.weatherId);
+        assertEquals(65.0, today.minTemp);
+        assertEquals(75.0, today.maxTemp);
+        assertEquals(1.2, today.humidity);
+        assertEquals(1.3, today.pressure);
+        assertEquals(5.5, today.windSpeed);
+        assertEquals(1.1, today.degrees);
+
+        assertNull("Error: Current conditions for a location with no weather",
+                WeatherContract.getCurrentConditions(mContext.getContentResolver(), "00000"));
+    }
+
+    /*
+        Inserting a location that is already stored hands back the stored one rather than
+        failing, and tells the location observers nothing.
+     */
+    public void testInsertLocationTwice() throws Exception {
+        Uri first = mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues());
+
+        CountingObserver locationObserver = new CountingObserver();
+        mContext.getContentResolver().registerContentObserver(
+                LocationEntry.CONTENT_URI, true, locationObserver);
+        Uri second = mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues());
+        assertEquals("Error: The same location got a second row", first, second);
+
+        // Give a stray notification time to arrive
+        Thread.sleep(500);
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        locationObserver.quit();
+        assertEquals("Error: A location already stored was announced as a change",
+                0, locationObserver.getCount());
+    }
+
+    /*
+        A sync's batch -- a new location, its days, and the trim of old days -- commits at once
+        and is announced once per table, after the commit.
+     */
+    public void testApplyBatchNotifiesOnce() throws Exception {
+        CountingObserver weatherObserver = new CountingObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        long dayInMillis = 24 * 60 * 60 * 1000;
+        for (int i = 0; i < 3; i++) {
+            long date = TestUtilities.TEST_DATE + i * dayInMillis;
+            operations.add(ContentProviderOperation.newUpdate(
+                    WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, date))
+                    .withValues(withoutLocation(TestUtilities.createWeatherValues(0)))
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newDelete(
+                WeatherEntry.buildWeatherWithDateRange(0, TestUtilities.TEST_DATE - dayInMillis))
+                .build());
+
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+
+        // Give any stray notifications time to arrive
+        Thread.sleep(500);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        weatherObserver.quit();
+        assertEquals("Error: The batch wasn't announced exactly once", 1, weatherObserver.getCount());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), null, null, null, null);
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        A batch that fails part way leaves nothing behind, tells nobody, and doesn't leave the
+        location it inserted in the provider's cache of location ids.
+     */
+    public void testFailedBatchRollsBack() throws Exception {
+        CountingObserver locationObserver = new CountingObserver();
+        mContext.getContentResolver().registerContentObserver(
+                LocationEntry.CONTENT_URI, true, locationObserver);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        // an update that has to change a row, and won't
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withSelection(LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{"nowhere"})
+                .withValue(LocationEntry.COLUMN_CITY_NAME, "Nowhere")
+                .withExpectedCount(1)
+                .build());
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: The batch should have failed");
+        } catch (OperationApplicationException expected) {
+        }
+
+        Thread.sleep(500);
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        locationObserver.quit();
+        assertEquals("Error: A rolled back batch was announced", 0, locationObserver.getCount());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: The rolled back location is still stored", 0, cursor.getCount());
+        cursor.close();
+
+        // The day's location comes from its URI; it must not resolve to the rolled back id
+        try {
+            mContext.getContentResolver().update(WeatherEntry.buildWeatherLocationWithDate(
+                    TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE),
+                    withoutLocation(TestUtilities.createWeatherValues(0)), null, null);
+            fail("Error: A day was stored for a location that doesn't exist");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static ContentValues withoutLocation(ContentValues values) {
+        values.remove(WeatherEntry.COLUMN_LOC_KEY);
+        return values;
+    }
+
+    /*
+        Counts every change notification it receives, on a thread of its own.
+     */
+    private static class CountingObserver extends ContentObserver {
+        private final HandlerThread mThread;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        CountingObserver() {
+            this(startThread());
+        }
+
+        private CountingObserver(HandlerThread thread) {
+            super(new Handler(thread.getLooper()));
+            mThread = thread;
+        }
+
+        private static HandlerThread startThread() {
+            HandlerThread thread = new HandlerThread("CountingObserverThread");
+            thread.start();
+            return thread;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mCount.incrementAndGet();
+        }
+
+        int getCount() {
+            return mCount.get();
+        }
+
+        void quit() {
+            mThread.quit();
+        }
+    }
+
     // Make sure we can still delete after adding/updating stuff
     //
     // Student: Uncomment this test after you have completed writing the insert functionality
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+    Fills weather.db with synthetic locations and days at each of the SCALES, and times every
+    operation the provider serves, by the match code of its URI.  Each result is a line of JSON,
+    logged under LOG_TAG and written to RESULTS_FILE in the app's files directory, so runs can be
+    compared across schema and index changes:
+
+        adb shell run-as com.example.android.sunshine.app cat files/provider_benchmark.jsonl
+
+    Timings on a shared test device are too noisy to assert on, so only the row counts are.
+ */
+public class TestProviderBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestProviderBenchmark.class.getSimpleName();
+
+    static final String RESULTS_FILE = "provider_benchmark.jsonl";
+
+    // {locations, days per location}.  The suite takes 1 to 1,000 locations and 14 to 3,650
+    // days; the largest, 3.65 million rows, is worth a run of its own before a schema change.
+    private static final int[][] SCALES = {
+            {1, 14},
+            {100, 14},
+            {1000, 14},
+            {10, 365},
+            {1, 3650}
+    };
+    private static final int MAX_LOCATIONS = 1000;
+    private static final int MIN_DAYS = 14;
+    private static final int MAX_DAYS = 3650;
+
+    private static final int NUM_SAMPLES = 20;
+    private static final long SEED = 20151220;
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+    private static final int FIRST_SETTING = 10000;
+    private static final String SORT_BY_DATE = WeatherEntry.COLUMN_DATE + " ASC";
+
+    //location_id = ?
+    private static final String sLocationIdSelection = WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    private WeatherProvider mProvider;
+    private int mFirstDay;
+    private Random mRandom;
+    private Writer mResults;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) client.getLocalContentProvider();
+        client.release();
+        mFirstDay = WeatherContract.toJulianDay(TestUtilities.TEST_DATE);
+        // The same locations and days are picked on every run
+        mRandom = new Random(SEED);
+        mResults = new OutputStreamWriter(
+                mContext.openFileOutput(RESULTS_FILE, Context.MODE_PRIVATE), "UTF-8");
+        clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mResults.close();
+        clear();
+        super.tearDown();
+    }
+
+    // Without locations, compacting drops whatever history is left
+    private void clear() {
+        mProvider.delete(WeatherEntry.CONTENT_URI, null, null);
+        mProvider.delete(LocationEntry.CONTENT_URI, null, null);
+        mProvider.compactHistory(mFirstDay, 0);
+    }
+
+    public void testBenchmark() throws Exception {
+        for (int[] scale : SCALES) {
+            assertTrue("Error: Scale out of range: " + Arrays.toString(scale),
+                    scale[0] >= 1 && scale[0] <= MAX_LOCATIONS
+                            && scale[1] >= MIN_DAYS && scale[1] <= MAX_DAYS);
+            run(scale[0], scale[1]);
+            clear();
+        }
+    }
+
+    private void run(int numLocations, int numDays) throws IOException {
+        long[] locationIds = new long[numLocations];
+
+        // "location", one insert per location
+        Samples samples = new Samples(numLocations);
+        for (int i = 0; i < numLocations; i++) {
+            ContentValues values = locationValues(FIRST_SETTING + i);
+            long start = System.nanoTime();
+            locationIds[i] = ContentUris.parseId(mProvider.insert(LocationEntry.CONTENT_URI, values));
+            samples.add(System.nanoTime() - start, 1);
+        }
+        report(numLocations, numDays, WeatherProvider.LOCATION, "insert", null, samples);
+
+        // "weather", a bulk insert of each location's days
+        samples = new Samples(numLocations);
+        for (int i = 0; i < numLocations; i++) {
+            ContentValues[] days = new ContentValues[numDays];
+            for (int day = 0; day < numDays; day++) {
+                days[day] = weatherValues(locationIds[i], day);
+            }
+            long start = System.nanoTime();
+            int inserted = mProvider.bulkInsert(WeatherEntry.CONTENT_URI, days);
+            samples.add(System.nanoTime() - start, inserted);
+            assertEquals(numDays, inserted);
+        }
+        report(numLocations, numDays, WeatherProvider.WEATHER, "bulkInsert", null, samples);
+
+        queries(numLocations, numDays, locationIds);
+        writes(numLocations, numDays, locationIds);
+        history(numLocations, numDays);
+    }
+
+    private void queries(int numLocations, int numDays, long[] locationIds) throws IOException {
+        Samples samples = new Samples(NUM_SAMPLES);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            int location = mRandom.nextInt(numLocations);
+            long start = System.nanoTime();
+            int rows = drain(mProvider.query(LocationEntry.CONTENT_URI, null,
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{setting(location)}, null));
+            samples.add(System.nanoTime() - start, rows);
+            assertEquals(1, rows);
+        }
+        report(numLocations, numDays, WeatherProvider.LOCATION, "query", "by setting", samples);
+
+        samples = new Samples(NUM_SAMPLES);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            int location = mRandom.nextInt(numLocations);
+            long start = System.nanoTime();
+            int rows = drain(mProvider.query(WeatherEntry.CONTENT_URI, null,
+                    WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                    new String[]{Long.toString(locationIds[location])}, SORT_BY_DATE));
+            samples.add(System.nanoTime() - start, rows);
+            assertEquals(numDays, rows);
+        }
+        report(numLocations, numDays, WeatherProvider.WEATHER, "query", "by location _id", samples);
+
+        // The list, joined to the location and on the weather table alone
+        for (String[] projection : new String[][]{null, WeatherRow.COLUMNS}) {
+            samples = new Samples(NUM_SAMPLES);
+            for (int i = 0; i < NUM_SAMPLES; i++) {
+                int location = mRandom.nextInt(numLocations);
+                long start = System.nanoTime();
+                int rows = drain(mProvider.query(WeatherEntry.buildWeatherLocationWithStartDate(
+                        setting(location), TestUtilities.TEST_DATE), projection, null, null,
+                        SORT_BY_DATE));
+                samples.add(System.nanoTime() - start, rows);
+                assertEquals(numDays, rows);
+            }
+            report(numLocations, numDays, WeatherProvider.WEATHER_WITH_LOCATION, "query",
+                    projection == null ? "all columns" : "weather columns", samples);
+        }
+
+        samples = new Samples(NUM_SAMPLES);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            int location = mRandom.nextInt(numLocations);
+            int day = mRandom.nextInt(numDays);
+            long start = System.nanoTime();
+            int rows = drain(mProvider.query(WeatherEntry.buildWeatherLocationWithDate(
+                    setting(location), date(day)), null, null, null, null));
+            samples.add(System.nanoTime() - start, rows);
+            assertEquals(1, rows);
+        }
+        report(numLocations, numDays, WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE, "query",
+                null, samples);
+    }
+
+    private void writes(int numLocations, int numDays, long[] locationIds) throws IOException {
+        // "weather/*/*", the sync's upsert, both when the day is the same and when it isn't
+        for (boolean changed : new boolean[]{false, true}) {
+            Samples samples = new Samples(NUM_SAMPLES);
+            for (int i = 0; i < NUM_SAMPLES; i++) {
+                int location = mRandom.nextInt(numLocations);
+                int day = mRandom.nextInt(numDays);
+                ContentValues values = weatherValues(locationIds[location], day);
+                if (changed) {
+                    values.put(WeatherEntry.COLUMN_MAX_TEMP, 100.0 + i);
+                }
+                long start = System.nanoTime();
+                int rows = mProvider.update(WeatherEntry.buildWeatherLocationWithDate(
+                        setting(location), date(day)), values, null, null);
+                samples.add(System.nanoTime() - start, rows);
+                assertEquals(changed ? 1 : 0, rows);
+            }
+            report(numLocations, numDays, WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE,
+                    "update", changed ? "changed" : "unchanged", samples);
+        }
+
+        Samples samples = new Samples(NUM_SAMPLES);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            int location = mRandom.nextInt(numLocations);
+            int day = mRandom.nextInt(numDays);
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, -100.0 - i);
+            long start = System.nanoTime();
+            int rows = mProvider.update(dayUri(day), values,
+                    sLocationIdSelection, new String[]{Long.toString(locationIds[location])});
+            samples.add(System.nanoTime() - start, rows);
+            assertEquals(1, rows);
+        }
+        report(numLocations, numDays, WeatherProvider.WEATHER, "update", "by selection", samples);
+
+        samples = new Samples(NUM_SAMPLES);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            int location = mRandom.nextInt(numLocations);
+            ContentValues values = new ContentValues();
+            values.put(LocationEntry.COLUMN_COORD_LAT, i);
+            long start = System.nanoTime();
+            int rows = mProvider.update(LocationEntry.CONTENT_URI, values,
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{setting(location)});
+            samples.add(System.nanoTime() - start, rows);
+            assertEquals(1, rows);
+        }
+        report(numLocations, numDays, WeatherProvider.LOCATION, "update", "by setting", samples);
+
+        // A day past the last of a location's, inserted and deleted again
+        long[] newDayLocations = new long[NUM_SAMPLES];
+        samples = new Samples(NUM_SAMPLES);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            newDayLocations[i] = locationIds[mRandom.nextInt(numLocations)];
+            ContentValues values = weatherValues(newDayLocations[i], numDays + i);
+            long start = System.nanoTime();
+            mProvider.insert(WeatherEntry.CONTENT_URI, values);
+            samples.add(System.nanoTime() - start, 1);
+        }
+        report(numLocations, numDays, WeatherProvider.WEATHER, "insert", null, samples);
+
+        samples = new Samples(NUM_SAMPLES);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            long start = System.nanoTime();
+            int rows = mProvider.delete(dayUri(numDays + i), sLocationIdSelection,
+                    new String[]{Long.toString(newDayLocations[i])});
+            samples.add(System.nanoTime() - start, rows);
+            assertEquals(1, rows);
+        }
+        report(numLocations, numDays, WeatherProvider.WEATHER, "delete", "by selection", samples);
+
+        // A location with no weather, inserted and deleted again
+        samples = new Samples(NUM_SAMPLES);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            int location = MAX_LOCATIONS + i;
+            mProvider.insert(LocationEntry.CONTENT_URI, locationValues(FIRST_SETTING + location));
+            long start = System.nanoTime();
+            int rows = mProvider.delete(LocationEntry.CONTENT_URI,
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{setting(location)});
+            samples.add(System.nanoTime() - start, rows);
+            assertEquals(1, rows);
+        }
+        report(numLocations, numDays, WeatherProvider.LOCATION, "delete", "by setting", samples);
+    }
+
+    private void history(int numLocations, int numDays) throws IOException {
+        // Half of every location's days move into the history
+        int today = mFirstDay + numDays / 2;
+        Samples samples = new Samples(1);
+        long start = System.nanoTime();
+        int archived = mProvider.compactHistory(today, MAX_DAYS);
+        samples.add(System.nanoTime() - start, archived);
+        assertEquals(numLocations * (numDays / 2), archived);
+        report(numLocations, numDays, WeatherProvider.HISTORY_WITH_LOCATION, "compactHistory",
+                null, samples);
+
+        samples = new Samples(NUM_SAMPLES);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            int location = mRandom.nextInt(numLocations);
+            start = System.nanoTime();
+            int rows = drain(mProvider.query(HistoryEntry.buildHistoryLocation(setting(location)),
+                    null, null, null, null));
+            samples.add(System.nanoTime() - start, rows);
+            assertEquals(numDays / 2, rows);
+        }
+        report(numLocations, numDays, WeatherProvider.HISTORY_WITH_LOCATION, "query", null,
+                samples);
+    }
+
+    private static ContentValues locationValues(int setting) {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, Integer.toString(setting));
+        return values;
+    }
+
+    private static ContentValues weatherValues(long locationId, int day) {
+        ContentValues values = TestUtilities.createWeatherValues(locationId);
+        values.put(WeatherEntry.COLUMN_DATE, date(day));
+        return values;
+    }
+
+    private static String setting(int location) {
+        return Integer.toString(FIRST_SETTING + location);
+    }
+
+    private static long date(int day) {
+        return TestUtilities.TEST_DATE + day * DAY_IN_MILLIS;
+    }
+
+    // Every location's weather on the day
+    private static Uri dayUri(int day) {
+        return WeatherEntry.buildWeatherWithDateRange(date(day), date(day));
+    }
+
+    /**
+     * Reads every column of every row, as the list and the widgets do, and closes the cursor.
+     *
+     * @return the number of rows
+     */
+    private static int drain(Cursor cursor) {
+        int rows = 0;
+        try {
+            while (cursor.moveToNext()) {
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    cursor.getString(column);
+                }
+                rows++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Logs and writes one result as a line of JSON.  The schema version is in every line, so a
+     * run can be told apart from one before a migration.
+     */
+    private void report(int numLocations, int numDays, int match, String operation,
+            String variant, Samples samples) throws IOException {
+        long[] nanos = samples.sorted();
+        JSONObject result = new JSONObject();
+        try {
+            result.put("schema_version", WeatherDbHelper.DATABASE_VERSION);
+            result.put("locations", numLocations);
+            result.put("days", numDays);
+            result.put("match", match);
+            result.put("operation", operation);
+            if (variant != null) {
+                result.put("variant", variant);
+            }
+            result.put("samples", nanos.length);
+            result.put("rows", samples.mRows);
+            result.put("min_us", nanos[0] / 1000);
+            result.put("median_us", nanos[nanos.length / 2] / 1000);
+            result.put("p95_us", nanos[(nanos.length * 95 - 1) / 100] / 1000);
+            result.put("max_us", nanos[nanos.length - 1] / 1000);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        String line = result.toString();
+        Log.i(LOG_TAG, line);
+        mResults.write(line);
+        mResults.write('\n');
+    }
+
+    /*
+        The times an operation took, in nanoseconds, and the rows it returned or wrote.
+     */
+    private static class Samples {
+        private final long[] mNanos;
+        private int mCount;
+        private long mRows;
+
+        Samples(int size) {
+            mNanos = new long[size];
+        }
+
+        void add(long nanos, int rows) {
+            mNanos[mCount++] = nanos;
+            mRows += rows;
+        }
+
+        long[] sorted() {
+            long[] nanos = Arrays.copyOf(mNanos, mCount);
+            Arrays.sort(nanos);
+            return nanos;
+        }
+    }
+}
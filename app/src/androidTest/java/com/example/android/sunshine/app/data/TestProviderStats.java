@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+
+/*
+    Checks that the provider counts its calls by match code and operation, with the rows they
+    returned or wrote, and hands the counts out through call() and in a file.  The provider
+    outlives each test, so only what a test adds to the counts is checked.
+ */
+public class TestProviderStats extends AndroidTestCase {
+
+    private static final String STATS_FILE = "test_provider_stats.json";
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.deleteFile(STATS_FILE);
+        super.tearDown();
+    }
+
+    public void testBucket() {
+        assertEquals(0, ProviderStats.bucket(999));
+        assertEquals(1, ProviderStats.bucket(1000));
+        assertEquals(11, ProviderStats.bucket(1500 * 1000));
+        assertEquals(ProviderStats.NUM_BUCKETS - 1, ProviderStats.bucket(60L * 1000 * 1000 * 1000));
+    }
+
+    public void testCounts() throws JSONException {
+        JSONObject before = getStats();
+
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] days = new ContentValues[3];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = TestUtilities.createWeatherValues(locationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+        for (int i = 0; i < 2; i++) {
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                    null, null, null, null);
+            cursor.close();
+        }
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+
+        JSONObject after = getStats();
+        assertCounted(before, after, WeatherProvider.LOCATION, "insert", 1, 1);
+        assertCounted(before, after, WeatherProvider.WEATHER, "bulkInsert", 1, 3);
+        // A query's rows count once its cursor is asked for them, as the resolver does
+        assertCounted(before, after, WeatherProvider.WEATHER_WITH_LOCATION, "query", 2, 6);
+        assertCounted(before, after, WeatherProvider.WEATHER, "delete", 1, 3);
+
+        JSONObject queries = find(after, WeatherProvider.WEATHER_WITH_LOCATION, "query");
+        long histogramCalls = 0;
+        JSONArray histogram = queries.getJSONArray("histogram");
+        for (int i = 0; i < histogram.length(); i++) {
+            histogramCalls += histogram.getJSONArray(i).getLong(1);
+        }
+        assertEquals(queries.getLong("count"), histogramCalls);
+        // Both queries came from this thread
+        String caller = ProviderStats.callerName(Thread.currentThread().getName());
+        assertEquals(2, callerCount(after, WeatherProvider.WEATHER_WITH_LOCATION, "query", caller)
+                - callerCount(before, WeatherProvider.WEATHER_WITH_LOCATION, "query", caller));
+    }
+
+    // A batch's operations run on the writer thread, but count for the thread that applied it
+    public void testBatchCaller() throws Exception {
+        JSONObject before = getStats();
+        final Exception[] failure = new Exception[1];
+        Thread batchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<ContentProviderOperation> operations =
+                        new ArrayList<ContentProviderOperation>();
+                operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                        .withValues(TestUtilities.createNorthPoleLocationValues())
+                        .build());
+                try {
+                    mContext.getContentResolver().applyBatch(
+                            WeatherContract.CONTENT_AUTHORITY, operations);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        }, "BatchCaller-7");
+        batchThread.start();
+        batchThread.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        JSONObject after = getStats();
+        assertEquals(1, callerCount(after, WeatherProvider.LOCATION, "insert", "BatchCaller")
+                - callerCount(before, WeatherProvider.LOCATION, "insert", "BatchCaller"));
+    }
+
+    public void testDump() throws Exception {
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_DUMP_PROVIDER_STATS, STATS_FILE, null);
+        assertTrue(result.getBoolean(WeatherContract.PROVIDER_STATS_WRITTEN));
+
+        File file = new File(mContext.getFilesDir(), STATS_FILE);
+        assertTrue("Error: No stats file written", file.exists());
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            assertEquals(data.length, in.read(data));
+        } finally {
+            in.close();
+        }
+        JSONObject stats = new JSONObject(new String(data, "UTF-8"));
+        assertNotNull(find(stats, WeatherProvider.LOCATION, "insert"));
+    }
+
+    // Only a file name is taken, so nothing outside the files directory can be overwritten
+    public void testDumpRejectsPaths() {
+        for (String path : new String[]{"../databases/" + WeatherDbHelper.DATABASE_NAME,
+                "stats/" + STATS_FILE, ".."}) {
+            try {
+                mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                        WeatherContract.METHOD_DUMP_PROVIDER_STATS, path, null);
+                fail("Error: Stats dumped to " + path);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    private JSONObject getStats() throws JSONException {
+        Bundle bundle = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_GET_PROVIDER_STATS, null, null);
+        return new JSONObject(bundle.getString(WeatherContract.PROVIDER_STATS_JSON));
+    }
+
+    private static void assertCounted(JSONObject before, JSONObject after, int match,
+            String operation, long calls, long rows) throws JSONException {
+        JSONObject stats = find(after, match, operation);
+        assertNotNull("Error: Nothing counted for " + match + " " + operation, stats);
+        JSONObject previous = find(before, match, operation);
+        long previousCalls = previous != null ? previous.getLong("count") : 0;
+        long previousRows = previous != null ? previous.getLong("rows") : 0;
+        assertEquals(calls, stats.getLong("count") - previousCalls);
+        assertEquals(rows, stats.getLong("rows") - previousRows);
+    }
+
+    private static long callerCount(JSONObject stats, int match, String operation,
+            String caller) throws JSONException {
+        JSONObject slot = find(stats, match, operation);
+        return slot != null ? slot.getJSONObject("callers").optLong(caller) : 0;
+    }
+
+    private static JSONObject find(JSONObject stats, int match, String operation)
+            throws JSONException {
+        JSONArray slots = stats.getJSONArray("stats");
+        for (int i = 0; i < slots.length(); i++) {
+            JSONObject slot = slots.getJSONObject(i);
+            if (slot.getInt("match") == match && slot.getString("operation").equals(operation)) {
+                return slot;
+            }
+        }
+        return null;
+    }
+}
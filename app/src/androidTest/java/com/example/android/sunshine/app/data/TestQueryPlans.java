@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/*
+    Runs EXPLAIN QUERY PLAN on the statement behind each of the provider's URIs, with the
+    selections the app passes to them, and fails if any of them has to scan a whole table.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    private static final String SORT_BY_DATE = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+    // The table stores dates as Julian days
+    private static final String TEST_DAY =
+            Integer.toString(WeatherContract.toJulianDay(TestUtilities.TEST_DATE));
+    private static final String[] LOCATION_AND_DATE_ARGS =
+            new String[]{TestUtilities.TEST_LOCATION, TEST_DAY};
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext).getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testIndexIsCreated() {
+        Cursor cursor = mDb.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?",
+                new String[]{WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX});
+        assertTrue("Error: The location and date index wasn't created", cursor.moveToFirst());
+        cursor.close();
+    }
+
+    // "weather/*/#"
+    public void testWeatherWithLocationAndDate() {
+        assertNoScan(WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE,
+                joinQuery(WeatherProvider.sLocationSettingAndDaySelection, SORT_BY_DATE),
+                LOCATION_AND_DATE_ARGS);
+    }
+
+    // "weather/*", with and without a start and end date
+    public void testWeatherWithLocation() {
+        assertNoScan(WeatherProvider.WEATHER_WITH_LOCATION,
+                joinQuery(WeatherProvider.sLocationSettingSelection, SORT_BY_DATE),
+                new String[]{TestUtilities.TEST_LOCATION});
+        assertNoScan(WeatherProvider.WEATHER_WITH_LOCATION,
+                joinQuery(WeatherProvider.sLocationSettingWithStartDateSelection, SORT_BY_DATE),
+                LOCATION_AND_DATE_ARGS);
+        assertNoScan(WeatherProvider.WEATHER_WITH_LOCATION,
+                joinQuery(WeatherProvider.sLocationSettingWithEndDateSelection, SORT_BY_DATE),
+                LOCATION_AND_DATE_ARGS);
+        assertNoScan(WeatherProvider.WEATHER_WITH_LOCATION,
+                joinQuery(WeatherProvider.sLocationSettingWithDateRangeSelection, SORT_BY_DATE),
+                new String[]{TestUtilities.TEST_LOCATION, TEST_DAY, TEST_DAY});
+    }
+
+    // "weather/*/#" and "weather/*" for projections without a location column, which query the
+    // weather table alone
+    public void testWeatherWithLocationId() {
+        String[] locationIdAndDayArgs = new String[]{"1", TEST_DAY};
+        assertNoScan(WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE,
+                weatherQuery(WeatherProvider.sLocationIdAndDaySelection, SORT_BY_DATE),
+                locationIdAndDayArgs);
+        assertNoScan(WeatherProvider.WEATHER_WITH_LOCATION,
+                weatherQuery(WeatherProvider.sLocationIdSelection, SORT_BY_DATE),
+                new String[]{"1"});
+        assertNoScan(WeatherProvider.WEATHER_WITH_LOCATION,
+                weatherQuery(WeatherProvider.sLocationIdWithStartDateSelection, SORT_BY_DATE),
+                locationIdAndDayArgs);
+        assertNoScan(WeatherProvider.WEATHER_WITH_LOCATION,
+                weatherQuery(WeatherProvider.sLocationIdWithEndDateSelection, SORT_BY_DATE),
+                locationIdAndDayArgs);
+        assertNoScan(WeatherProvider.WEATHER_WITH_LOCATION,
+                weatherQuery(WeatherProvider.sLocationIdWithDateRangeSelection, SORT_BY_DATE),
+                new String[]{"1", TEST_DAY, TEST_DAY});
+    }
+
+    // "weather": looking up a day while updating it, and dropping the days that have passed
+    public void testWeather() {
+        assertNoScan(WeatherProvider.WEATHER,
+                tableQuery(WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherProvider.sLocationIdAndDaySelection),
+                new String[]{"1", TEST_DAY});
+        assertNoScan(WeatherProvider.WEATHER,
+                tableQuery(WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?"),
+                new String[]{TEST_DAY});
+    }
+
+    // "history/*": a location's archived months
+    public void testHistoryWithLocation() {
+        assertNoScan(WeatherProvider.HISTORY_WITH_LOCATION,
+                tableQuery(WeatherDbHelper.ARCHIVE_TABLE_NAME,
+                        WeatherArchive.sLocationIdAndMonthsSelection),
+                new String[]{"1", TEST_DAY, TEST_DAY});
+    }
+
+    // "location": looking a location up by its setting
+    public void testLocation() {
+        assertNoScan(WeatherProvider.LOCATION,
+                tableQuery(WeatherContract.LocationEntry.TABLE_NAME,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?"),
+                new String[]{TestUtilities.TEST_LOCATION});
+    }
+
+    // With every column decoded, so the description's lookup is in the plan too
+    private static String joinQuery(String selection, String sortOrder) {
+        return SQLiteQueryBuilder.buildQueryString(false,
+                WeatherProvider.sWeatherByLocationSettingQueryBuilder.getTables(),
+                WeatherCodec.decodeProjection(null, true), selection, null, null, sortOrder, null);
+    }
+
+    // With every weather column decoded
+    private static String weatherQuery(String selection, String sortOrder) {
+        return SQLiteQueryBuilder.buildQueryString(false,
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherCodec.decodeProjection(WeatherRow.COLUMNS, false), selection, null, null,
+                sortOrder, null);
+    }
+
+    private static String tableQuery(String table, String selection) {
+        return SQLiteQueryBuilder.buildQueryString(false, table, null, selection,
+                null, null, null, null);
+    }
+
+    private void assertNoScan(int match, String sql, String[] selectionArgs) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        int detailIndex = cursor.getColumnIndex("detail");
+        assertTrue("Error: No query plan for " + sql, cursor.getCount() > 0);
+        while (cursor.moveToNext()) {
+            String detail = cursor.getString(detailIndex);
+            Log.d(LOG_TAG, match + ": " + detail);
+            // "SCAN TABLE weather" or, on newer versions of SQLite, "SCAN weather"
+            assertFalse("Error: Match " + match + " scans a table: " + detail + "\n" + sql,
+                    detail.startsWith("SCAN"));
+        }
+        cursor.close();
+    }
+}
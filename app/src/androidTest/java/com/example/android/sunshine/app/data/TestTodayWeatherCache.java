@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+
+/*
+    Checks that TodayWeatherCache serves a repeated lookup from memory, and that every kind of
+    provider write to a location's weather makes the next lookup read it again.
+ */
+public class TestTodayWeatherCache extends AndroidTestCase {
+
+    private static final String OTHER_LOCATION = "94043";
+
+    private TodayWeatherCache mCache;
+    private long mLocationId;
+    private long mOtherLocationId;
+    private long mHits;
+    private long mMisses;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mLocationId = insertLocation(TestUtilities.TEST_LOCATION);
+        mOtherLocationId = insertLocation(OTHER_LOCATION);
+        mCache = TodayWeatherCache.getInstance();
+        mHits = mCache.getHitCount();
+        mMisses = mCache.getMissCount();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testRepeatedLookupIsServedFromMemory() {
+        setToday(TestUtilities.TEST_LOCATION, 75);
+
+        WeatherRow first = mCache.get(mContext, TestUtilities.TEST_LOCATION);
+        assertNotNull("Error: Today's weather wasn't found", first);
+        assertEquals(75.0, first.maxTemp);
+        assertEquals("Asteroids", first.shortDesc);
+        assertEquals(WeatherContract.normalizeDate(System.currentTimeMillis()), first.date);
+        assertCounts(0, 1);
+
+        assertSame(first, mCache.get(mContext, TestUtilities.TEST_LOCATION));
+        assertCounts(1, 1);
+    }
+
+    public void testUpsertInvalidatesItsLocationOnly() {
+        setToday(TestUtilities.TEST_LOCATION, 75);
+        setToday(OTHER_LOCATION, 80);
+        mCache.get(mContext, TestUtilities.TEST_LOCATION);
+        mCache.get(mContext, OTHER_LOCATION);
+        assertCounts(0, 2);
+
+        setToday(TestUtilities.TEST_LOCATION, 76);
+        assertEquals(76.0, mCache.get(mContext, TestUtilities.TEST_LOCATION).maxTemp);
+        assertEquals(80.0, mCache.get(mContext, OTHER_LOCATION).maxTemp);
+        assertCounts(1, 3);
+    }
+
+    public void testMissingDayIsCachedUntilWritten() {
+        assertNull(mCache.get(mContext, TestUtilities.TEST_LOCATION));
+        assertNull(mCache.get(mContext, TestUtilities.TEST_LOCATION));
+        assertCounts(1, 1);
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{todayValues(mOtherLocationId, 80)});
+        assertNull(mCache.get(mContext, TestUtilities.TEST_LOCATION));
+        assertCounts(1, 2);
+    }
+
+    public void testInsertAndDeleteInvalidate() {
+        mCache.get(mContext, TestUtilities.TEST_LOCATION);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                todayValues(mLocationId, 75));
+        assertEquals(75.0, mCache.get(mContext, TestUtilities.TEST_LOCATION).maxTemp);
+
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        assertNull(mCache.get(mContext, TestUtilities.TEST_LOCATION));
+        assertCounts(0, 3);
+    }
+
+    public void testBatchInvalidatesOnCommit() throws Exception {
+        setToday(TestUtilities.TEST_LOCATION, 75);
+        mCache.get(mContext, TestUtilities.TEST_LOCATION);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, System.currentTimeMillis()))
+                .withValues(todayValues(mLocationId, 60))
+                .build());
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+
+        assertEquals(60.0, mCache.get(mContext, TestUtilities.TEST_LOCATION).maxTemp);
+        assertCounts(0, 2);
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+
+    private void setToday(String locationSetting, double maxTemp) {
+        long locationId = locationSetting.equals(OTHER_LOCATION) ? mOtherLocationId : mLocationId;
+        mContext.getContentResolver().update(WeatherEntry.buildWeatherLocationWithDate(
+                locationSetting, System.currentTimeMillis()),
+                todayValues(locationId, maxTemp), null, null);
+    }
+
+    private static ContentValues todayValues(long locationId, double maxTemp) {
+        ContentValues values = TestUtilities.createWeatherValues(locationId);
+        values.put(WeatherEntry.COLUMN_DATE, System.currentTimeMillis());
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        return values;
+    }
+
+    private void assertCounts(long hits, long misses) {
+        assertEquals("Error: Wrong number of hits", hits, mCache.getHitCount() - mHits);
+        assertEquals("Error: Wrong number of misses", misses, mCache.getMissCount() - mMisses);
+    }
+}
@@ -29,6 +29,7 @@ import com.example.android.sunshine.app.utils.PollingCheck;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 
 /*
     Students: These are functions and some test data to make it easier to test your database and
@@ -77,6 +78,22 @@ public class TestUtilities extends AndroidTestCase {
         return weatherValues;
     }
 
+    /*
+        Inserts weather values straight into the database, encoded the way the weather table
+        stores them, along with the description of their weather id.
+     */
+    static long insertWeatherValues(SQLiteDatabase db, ContentValues weatherValues) {
+        ContentValues condition = new ContentValues();
+        condition.put(WeatherDbHelper.CONDITION_ID,
+                weatherValues.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        condition.put(WeatherDbHelper.CONDITION_DESCRIPTION,
+                weatherValues.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC));
+        db.insertWithOnConflict(WeatherDbHelper.CONDITION_TABLE_NAME, null, condition,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                WeatherCodec.encode(weatherValues, TimeZone.getDefault()));
+    }
+
     /*
         Students: You can uncomment this helper function once you have finished creating the
         LocationEntry part of the WeatherContract.
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that compacting the history moves the days before today out of the weather table and
+    into the archive, where the history URI finds them again, and that it keeps no more of them
+    than the retention asks for.
+ */
+public class TestWeatherArchive extends AndroidTestCase {
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+    private static final int NUM_DAYS = 20;
+
+    private WeatherProvider mProvider;
+    private int mFirstDay;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) client.getLocalContentProvider();
+        client.release();
+        mFirstDay = WeatherContract.toJulianDay(TestUtilities.TEST_DATE);
+        clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clear();
+        super.tearDown();
+    }
+
+    // Without locations, compacting drops whatever history is left
+    private void clear() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mProvider.compactHistory(mFirstDay, 0);
+    }
+
+    public void testMonthStart() {
+        // December 1st and 20th, 2014, and November 1st
+        assertEquals(2456993, WeatherArchive.monthStart(2456993));
+        assertEquals(2456993, WeatherArchive.monthStart(2457012));
+        assertEquals(2456963, WeatherArchive.monthStart(2456992));
+        // February 29th, 2016
+        assertEquals(2457420, WeatherArchive.monthStart(2457448));
+    }
+
+    public void testCompactMovesPastDays() {
+        insertDays();
+
+        assertEquals(7, mProvider.compactHistory(mFirstDay + 7, 365));
+        assertEquals(NUM_DAYS - 7, count(WeatherEntry.buildWeatherLocation(
+                TestUtilities.TEST_LOCATION)));
+
+        Cursor history = mContext.getContentResolver().query(
+                HistoryEntry.buildHistoryLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals(7, history.getCount());
+        history.moveToFirst();
+        assertEquals(WeatherContract.normalizeDate(TestUtilities.TEST_DATE),
+                history.getLong(history.getColumnIndex(WeatherEntry.COLUMN_DATE)));
+        assertEquals("Asteroids",
+                history.getString(history.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC)));
+        assertEquals(321, history.getInt(history.getColumnIndex(WeatherEntry.COLUMN_WEATHER_ID)));
+        assertEquals(75.0, history.getDouble(history.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP)));
+        assertEquals(5.5, history.getDouble(history.getColumnIndex(WeatherEntry.COLUMN_WIND_SPEED)));
+        history.close();
+
+        // The next days are merged into the months already there, across the end of one
+        assertEquals(NUM_DAYS - 7, mProvider.compactHistory(mFirstDay + NUM_DAYS, 365));
+        assertEquals(0, count(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION)));
+        assertEquals(NUM_DAYS,
+                count(HistoryEntry.buildHistoryLocation(TestUtilities.TEST_LOCATION)));
+        assertEquals(2, count(HistoryEntry.buildHistoryLocationWithDateRange(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE + DAY_IN_MILLIS,
+                TestUtilities.TEST_DATE + 2 * DAY_IN_MILLIS)));
+    }
+
+    public void testRetention() {
+        insertDays();
+        mProvider.compactHistory(mFirstDay + NUM_DAYS, 365);
+        assertEquals(NUM_DAYS,
+                count(HistoryEntry.buildHistoryLocation(TestUtilities.TEST_LOCATION)));
+
+        // Whole months go, once all of their days are past the retention
+        mProvider.compactHistory(mFirstDay + 400, 30);
+        assertEquals(0, count(HistoryEntry.buildHistoryLocation(TestUtilities.TEST_LOCATION)));
+    }
+
+    private void insertDays() {
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days[i] = TestUtilities.createWeatherValues(locationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
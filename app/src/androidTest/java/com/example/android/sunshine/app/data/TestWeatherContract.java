@@ -17,6 +17,7 @@ package com.example.android.sunshine.app.data;
 
 import android.net.Uri;
 import android.test.AndroidTestCase;
+import android.text.format.Time;
 
 /*
     Students: This is NOT a complete test for the WeatherContract --- just for the functions
@@ -42,4 +43,22 @@ public class TestWeatherContract extends AndroidTestCase {
                 locationUri.toString(),
                 "content://com.example.android.sunshine.app/weather/%2FNorth%20Pole");
     }
+
+    /*
+        normalizeDate works out the start of the day with arithmetic; it has to land on the same
+        instant that Time would, daylight saving changes included.
+     */
+    public void testNormalizeDateMatchesTime() {
+        long hour = 60 * 60 * 1000;
+        long start = TEST_WEATHER_DATE * 1000;
+        long end = start + 2 * 365 * 24 * hour;
+        // every 7 hours, so each hour of the day comes up, through two years
+        for (long date = start; date < end; date += 7 * hour) {
+            Time time = new Time();
+            time.set(date);
+            long expected = time.setJulianDay(Time.getJulianDay(date, time.gmtoff));
+            assertEquals("Error: Wrong start of the day for " + date,
+                    expected, WeatherContract.normalizeDate(date));
+        }
+    }
 }
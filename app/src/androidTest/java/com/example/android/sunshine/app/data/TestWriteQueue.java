@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Checks that the writes queued together commit in one transaction, that a write that throws
+    fails alone while the rest of its group still commits, that a write can make another, that
+    a job can run outside any transaction, and that quitting stops the one writer thread.
+ */
+public class TestWriteQueue extends AndroidTestCase {
+
+    // Long enough for every write a test queues to join the first one's group
+    private static final long WINDOW_MILLIS = 200;
+    private static final int NUM_WRITES = 10;
+
+    // Tells which thread the writes run on
+    private static final Callable<Thread> CURRENT_THREAD = new Callable<Thread>() {
+        @Override
+        public Thread call() {
+            return Thread.currentThread();
+        }
+    };
+
+    private WeatherDbHelper mDbHelper;
+    private WriteQueue mQueue;
+    private final AtomicInteger mCommitted = new AtomicInteger();
+    private final AtomicInteger mRolledBack = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mDbHelper = new WeatherDbHelper(mContext);
+        mQueue = new WriteQueue(mDbHelper, new WriteQueue.Listener() {
+            @Override
+            public void onGroupStarted() {
+            }
+
+            @Override
+            public void onGroupCommitted() {
+                mCommitted.incrementAndGet();
+            }
+
+            @Override
+            public void onGroupRolledBack() {
+                mRolledBack.incrementAndGet();
+            }
+        }, WINDOW_MILLIS, WriteQueue.MAX_GROUP_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mQueue.quit();
+        mDbHelper.close();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testGroupCommit() throws Exception {
+        List<Future<Long>> writes = new ArrayList<Future<Long>>();
+        for (int i = 0; i < NUM_WRITES; i++) {
+            writes.add(mQueue.submit(insertLocation(i)));
+        }
+        for (Future<Long> write : writes) {
+            assertTrue("Error: Write not committed", write.get() > 0);
+        }
+        assertEquals(1, mQueue.getCommitCount());
+        assertEquals(NUM_WRITES, mQueue.getWriteCount());
+        assertEquals(NUM_WRITES, countLocations());
+    }
+
+    public void testFailedWriteFailsAlone() throws Exception {
+        Future<Long> before = mQueue.submit(insertLocation(0));
+        Future<Long> failed = mQueue.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                throw new IllegalStateException("Failed write");
+            }
+        });
+        Future<Long> after = mQueue.submit(insertLocation(1));
+
+        assertTrue(before.get() > 0);
+        assertTrue(after.get() > 0);
+        try {
+            failed.get();
+            fail("Error: Failed write completed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(2, countLocations());
+        // The group, then the failed write again on its own
+        assertEquals(2, mRolledBack.get());
+        assertEquals(2, mCommitted.get());
+    }
+
+    public void testNestedWrite() throws Exception {
+        long locationId = mQueue.execute(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                mQueue.execute(insertLocation(0));
+                return mQueue.execute(insertLocation(1));
+            }
+        });
+        assertTrue(locationId > 0);
+        assertEquals(1, mQueue.getCommitCount());
+        assertEquals(2, countLocations());
+    }
+
+    public void testOutsideTransaction() throws Exception {
+        Future<Long> before = mQueue.submit(insertLocation(0));
+        boolean inTransaction = mQueue.executeOutsideTransaction(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                assertEquals("WeatherWriter", Thread.currentThread().getName());
+                return mDbHelper.getWritableDatabase().inTransaction();
+            }
+        });
+        assertFalse("Error: The job ran in a transaction", inTransaction);
+        // The write queued before it committed first, in a group of its own
+        assertTrue(before.isDone());
+        assertTrue(before.get() > 0);
+        assertEquals(1, mQueue.getCommitCount());
+    }
+
+    public void testQuit() throws Exception {
+        mQueue.execute(insertLocation(0));
+        Thread writer = mQueue.execute(CURRENT_THREAD);
+        mQueue.quit();
+        assertFalse("Error: The writer thread outlived quit()", writer.isAlive());
+
+        // The next write starts a writer again
+        mQueue.execute(insertLocation(1));
+        assertNotSame(writer, mQueue.execute(CURRENT_THREAD));
+        assertEquals(2, countLocations());
+    }
+
+    private Callable<Long> insertLocation(final int i) {
+        return new Callable<Long>() {
+            @Override
+            public Long call() {
+                ContentValues values = TestUtilities.createNorthPoleLocationValues();
+                values.put(LocationEntry.COLUMN_LOCATION_SETTING, Integer.toString(99700 + i));
+                SQLiteDatabase db = mDbHelper.getWritableDatabase();
+                return db.insertOrThrow(LocationEntry.TABLE_NAME, null, values);
+            }
+        };
+    }
+
+    private long countLocations() {
+        return DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                LocationEntry.TABLE_NAME);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Replays a synthetic week through the adaptive scheduler: three days where the forecast holds
+    steady, two where it swings on every sync, and two steady ones again.  Checks that the
+    scheduler syncs less often than the fixed 3 hour interval on the steady days, more often on
+    the volatile ones, and soon after every midnight.
+ */
+public class TestAdaptiveSyncScheduler extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestAdaptiveSyncScheduler.class.getSimpleName();
+
+    private static final int NUM_DAYS = 7;
+    private static final int FORECAST_DAYS = 14;
+    private static final int FIXED_SYNCS_PER_DAY = 24 * 60 * 60 / SunshineSyncAdapter.SYNC_INTERVAL;
+
+    public void testSyntheticWeek() {
+        Time time = new Time();
+        time.setToNow();
+        int startDay = Time.getJulianDay(System.currentTimeMillis(), time.gmtoff);
+        long now = time.setJulianDay(startDay) + 60 * 60 * 1000;
+
+        int[] syncsPerDay = new int[NUM_DAYS];
+        long[] firstSyncAfterMidnight = new long[NUM_DAYS];
+        int interval = SunshineSyncAdapter.SYNC_INTERVAL;
+        int scheduled = interval;
+        int syncCount = 0;
+        List<ContentValues> stored = forecast(now, startDay, syncCount);
+
+        while (true) {
+            now += scheduled * 1000L;
+            int day = julianDay(now) - startDay;
+            if (day >= NUM_DAYS) {
+                break;
+            }
+            syncCount++;
+            List<ContentValues> fetched = forecast(now, startDay, syncCount);
+            AdaptiveSyncScheduler.Change change = AdaptiveSyncScheduler.Change.between(
+                    stored, fetched, WeatherContract.normalizeDate(now));
+            interval = AdaptiveSyncScheduler.adapt(interval, change);
+            scheduled = AdaptiveSyncScheduler.beforeDayBoundary(interval, now);
+            stored = fetched;
+
+            assertTrue(interval >= AdaptiveSyncScheduler.MIN_INTERVAL_SECONDS);
+            assertTrue(interval <= AdaptiveSyncScheduler.MAX_INTERVAL_SECONDS);
+
+            if (syncsPerDay[day]++ == 0) {
+                firstSyncAfterMidnight[day] = now - time.setJulianDay(startDay + day);
+            }
+        }
+
+        for (int day = 0; day < NUM_DAYS; day++) {
+            Log.i(LOG_TAG, "Day " + day + (isVolatile(day) ? " (volatile)" : " (steady)") + ": "
+                    + syncsPerDay[day] + " syncs, first "
+                    + firstSyncAfterMidnight[day] / 60000 + " minutes after midnight");
+            if (day > 0) {
+                assertTrue("Error: Day " + day + " started with stale data",
+                        firstSyncAfterMidnight[day]
+                                <= AdaptiveSyncScheduler.MIN_INTERVAL_SECONDS * 1000L);
+            }
+        }
+
+        // the steady days after the first one, which starts from the default interval
+        for (int day : new int[] {1, 2, 6}) {
+            assertTrue("Error: Steady day " + day + " synced " + syncsPerDay[day] + " times",
+                    syncsPerDay[day] < FIXED_SYNCS_PER_DAY);
+        }
+        for (int day : new int[] {3, 4}) {
+            assertTrue("Error: Volatile day " + day + " synced " + syncsPerDay[day] + " times",
+                    syncsPerDay[day] > FIXED_SYNCS_PER_DAY);
+        }
+    }
+
+    public void testAdaptStaysInBounds() {
+        AdaptiveSyncScheduler.Change stable = new AdaptiveSyncScheduler.Change();
+        AdaptiveSyncScheduler.Change volatile_ = new AdaptiveSyncScheduler.Change();
+        volatile_.maxTempDelta = AdaptiveSyncScheduler.VOLATILE_TEMP_DELTA;
+
+        assertEquals(AdaptiveSyncScheduler.MAX_INTERVAL_SECONDS, AdaptiveSyncScheduler.adapt(
+                AdaptiveSyncScheduler.MAX_INTERVAL_SECONDS, stable));
+        assertEquals(AdaptiveSyncScheduler.MIN_INTERVAL_SECONDS, AdaptiveSyncScheduler.adapt(
+                AdaptiveSyncScheduler.MIN_INTERVAL_SECONDS, volatile_));
+
+        // a change in between leaves the interval alone
+        AdaptiveSyncScheduler.Change moderate = new AdaptiveSyncScheduler.Change();
+        moderate.maxTempDelta = 2;
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL,
+                AdaptiveSyncScheduler.adapt(SunshineSyncAdapter.SYNC_INTERVAL, moderate));
+    }
+
+    private static boolean isVolatile(int day) {
+        return day == 3 || day == 4;
+    }
+
+    /**
+     * The forecast as fetched at this time.  On steady days every sync sees the same values for
+     * a date; on volatile days each sync swings them by 4 degrees and flips the conditions.
+     */
+    private static List<ContentValues> forecast(long now, int startDay, int syncCount) {
+        int today = julianDay(now);
+        boolean swing = isVolatile(today - startDay);
+        double error = swing ? (syncCount % 2 == 0 ? 4 : -4) : 0;
+
+        Time dayTime = new Time();
+        List<ContentValues> days = new ArrayList<ContentValues>(FORECAST_DAYS);
+        for (int i = 0; i < FORECAST_DAYS; i++) {
+            int julianDay = today + i;
+            ContentValues values = new ContentValues();
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, dayTime.setJulianDay(julianDay));
+            values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 20 + julianDay % 5 + error);
+            values.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 10 + julianDay % 3 + error);
+            values.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                    swing && syncCount % 2 == 0 ? 500 : 800);
+            days.add(values);
+        }
+        return days;
+    }
+
+    private static int julianDay(long millis) {
+        Time time = new Time();
+        time.set(millis);
+        return Time.getJulianDay(millis, time.gmtoff);
+    }
+}
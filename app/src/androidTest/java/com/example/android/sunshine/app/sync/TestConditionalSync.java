@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.ForecastStubServer;
+import com.example.android.sunshine.app.utils.SyntheticForecast;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/*
+    Runs the sync adapter against a local stand-in for OpenWeatherMap and checks that
+    conditional requests short-circuit on a 304.
+ */
+public class TestConditionalSync extends AndroidTestCase {
+
+    static final String TEST_LOCATION = "94043";
+
+    private ForecastStubServer mServer;
+    private String mSavedLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+
+        mServer = new ForecastStubServer();
+        mServer.start();
+        SunshineSyncAdapter.sForecastBaseUrl = mServer.getBaseUrl();
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String locationKey = mContext.getString(R.string.pref_location_key);
+        mSavedLocation = prefs.getString(locationKey, null);
+        prefs.edit().putString(locationKey, TEST_LOCATION).commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        SunshineSyncAdapter.sForecastBaseUrl = SunshineSyncAdapter.FORECAST_BASE_URL;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        prefs.edit().putString(mContext.getString(R.string.pref_location_key), mSavedLocation)
+                .commit();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    public void testNotModifiedSkipsWrites() {
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false);
+
+        sync(adapter, true);
+        assertEquals(1, mServer.getFullResponseCount());
+        assertEquals(0, mServer.getNotModifiedCount());
+        assertEquals("Error: The first sync didn't store the forecast", 14, countWeatherRows());
+        long lastRowId = getLastWeatherRowId();
+
+        sync(adapter, true);
+        assertEquals("Error: An unchanged forecast was downloaded again",
+                1, mServer.getFullResponseCount());
+        assertEquals(1, mServer.getNotModifiedCount());
+        assertEquals("Error: A 304 rewrote the forecast", lastRowId, getLastWeatherRowId());
+        double maxTemp = getFirstMaxTemp();
+
+        mServer.setForecast(TEST_LOCATION, SyntheticForecast.build("Mountain View", 14, 99));
+        sync(adapter, true);
+        assertEquals("Error: A changed forecast wasn't downloaded",
+                2, mServer.getFullResponseCount());
+        assertFalse("Error: A changed forecast wasn't stored", maxTemp == getFirstMaxTemp());
+        assertEquals(14, countWeatherRows());
+    }
+
+    public void testFreshForecastSkipsRequest() {
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false);
+        mServer.setMaxAge(600);
+
+        sync(adapter, true);
+        assertEquals(1, mServer.getRequestCount());
+
+        // a periodic sync inside max-age shouldn't touch the network
+        sync(adapter, false);
+        assertEquals("Error: A fresh forecast was requested again", 1, mServer.getRequestCount());
+
+        // but a manual one revalidates
+        sync(adapter, true);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, mServer.getNotModifiedCount());
+    }
+
+    public void testSyncMetricsAreRecorded() throws Exception {
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false);
+
+        sync(adapter, true);
+        JSONObject full = getLastSyncRecord();
+        assertEquals(1, full.getInt("fetched"));
+        assertEquals(14, full.getInt("rows_parsed"));
+        assertEquals(14, full.getInt("rows_changed"));
+        assertTrue("Error: Downloaded bytes weren't counted", full.getLong("bytes") > 0);
+
+        sync(adapter, true);
+        JSONObject notModified = getLastSyncRecord();
+        assertEquals(1, notModified.getInt("not_modified"));
+        assertEquals(0, notModified.getInt("rows_changed"));
+        assertEquals(0, notModified.getLong("bytes"));
+    }
+
+    private JSONObject getLastSyncRecord() throws Exception {
+        Bundle metrics = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_GET_SYNC_METRICS, null, null);
+        assertNotNull(metrics);
+        int count = metrics.getInt(WeatherContract.SYNC_METRICS_COUNT);
+        assertTrue("Error: No sync was recorded", count > 0);
+        assertTrue(metrics.getLong(WeatherContract.SYNC_METRICS_P95_MS)
+                >= metrics.getLong(WeatherContract.SYNC_METRICS_P50_MS));
+        JSONArray records = new JSONArray(metrics.getString(WeatherContract.SYNC_METRICS_RECORDS));
+        assertEquals(count, records.length());
+        return records.getJSONObject(count - 1);
+    }
+
+    private void sync(SunshineSyncAdapter adapter, boolean manual) {
+        Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, manual);
+        adapter.onPerformSync(null, extras, WeatherContract.CONTENT_AUTHORITY, null,
+                new SyncResult());
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(TEST_LOCATION),
+                null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private long getLastWeatherRowId() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry._ID},
+                null, null, WeatherContract.WeatherEntry._ID + " DESC");
+        assertNotNull(cursor);
+        assertTrue("Error: No weather rows", cursor.moveToFirst());
+        long id = cursor.getLong(0);
+        cursor.close();
+        return id;
+    }
+
+    private double getFirstMaxTemp() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(TEST_LOCATION),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        assertTrue("Error: No weather rows", cursor.moveToFirst());
+        double maxTemp = cursor.getDouble(0);
+        cursor.close();
+        return maxTemp;
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
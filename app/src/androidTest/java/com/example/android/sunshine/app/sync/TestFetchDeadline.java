@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.ForecastStubServer;
+
+import java.util.Random;
+
+/*
+    Checks that a stalled download can be cancelled, and that failing locations back off.
+ */
+public class TestFetchDeadline extends AndroidTestCase {
+
+    static final String TEST_LOCATION = "94043";
+
+    private ForecastStubServer mServer;
+    private String mSavedLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+
+        mServer = new ForecastStubServer();
+        mServer.start();
+        SunshineSyncAdapter.sForecastBaseUrl = mServer.getBaseUrl();
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String locationKey = mContext.getString(R.string.pref_location_key);
+        mSavedLocation = prefs.getString(locationKey, null);
+        prefs.edit().putString(locationKey, TEST_LOCATION).commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        SunshineSyncAdapter.sForecastBaseUrl = SunshineSyncAdapter.FORECAST_BASE_URL;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        prefs.edit().putString(mContext.getString(R.string.pref_location_key), mSavedLocation)
+                .commit();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    public void testCancelAbortsStalledDownload() throws InterruptedException {
+        final SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false);
+        mServer.setLatency(30 * 1000);
+
+        Thread syncThread = new Thread() {
+            @Override
+            public void run() {
+                sync(adapter, true);
+            }
+        };
+        syncThread.start();
+
+        // let the request reach the server
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (mServer.getRequestCount() == 0 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mServer.getRequestCount());
+
+        long start = System.currentTimeMillis();
+        adapter.onSyncCanceled();
+        syncThread.join(5000);
+        assertFalse("Error: Cancelling didn't stop the stalled download", syncThread.isAlive());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals("Error: A cancelled sync wrote data", 0, countWeatherRows());
+    }
+
+    public void testFailureBacksOff() {
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false);
+
+        sync(adapter, true);
+        assertEquals(14, countWeatherRows());
+        assertEquals(0, getFailureCount());
+
+        mServer.setStatus(TEST_LOCATION, 500);
+        sync(adapter, false);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, getFailureCount());
+        assertTrue(getRetryAfter() > System.currentTimeMillis());
+        assertEquals("Error: A failed sync deleted the forecast", 14, countWeatherRows());
+
+        // periodic syncs leave the location alone while it backs off
+        sync(adapter, false);
+        assertEquals("Error: A location backing off was requested", 2, mServer.getRequestCount());
+
+        // manual ones don't
+        sync(adapter, true);
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(2, getFailureCount());
+
+        mServer.setStatus(TEST_LOCATION, 200);
+        sync(adapter, true);
+        assertEquals(0, getFailureCount());
+        assertEquals(0, getRetryAfter());
+    }
+
+    public void testBackoffGrowsWithJitter() {
+        HttpValidators validators = HttpValidators.none(TEST_LOCATION);
+        Random random = new Random(0);
+        long now = 1419033600000L;
+
+        long previous = 0;
+        for (int failure = 1; failure <= 20; failure++) {
+            validators.onFailure(now, random);
+            long backoff = Math.min(HttpValidators.MAX_BACKOFF_MILLIS,
+                    HttpValidators.BASE_BACKOFF_MILLIS << Math.min(failure - 1, 16));
+            long delay = validators.retryAfter - now;
+            assertTrue("Error: Backoff " + delay + " below half of " + backoff, delay >= backoff / 2);
+            assertTrue("Error: Backoff " + delay + " above " + backoff, delay <= backoff);
+            if (backoff < HttpValidators.MAX_BACKOFF_MILLIS / 2) {
+                assertTrue(delay > previous / 2);
+            }
+            previous = delay;
+        }
+        assertTrue(validators.isBackingOff(now));
+        validators.onSuccess();
+        assertFalse(validators.isBackingOff(now));
+    }
+
+    private void sync(SunshineSyncAdapter adapter, boolean manual) {
+        Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, manual);
+        adapter.onPerformSync(null, extras, WeatherContract.CONTENT_AUTHORITY, null,
+                new SyncResult());
+    }
+
+    private int getFailureCount() {
+        return (int) getLocationLong(WeatherContract.LocationEntry.COLUMN_FAILURE_COUNT);
+    }
+
+    private long getRetryAfter() {
+        return getLocationLong(WeatherContract.LocationEntry.COLUMN_RETRY_AFTER);
+    }
+
+    private long getLocationLong(String column) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{column},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TEST_LOCATION},
+                null);
+        assertNotNull(cursor);
+        assertTrue("Error: The location wasn't stored", cursor.moveToFirst());
+        long value = cursor.getLong(0);
+        cursor.close();
+        return value;
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(TEST_LOCATION),
+                null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.SyntheticForecast;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+/*
+    Checks that the streaming parser reads exactly what the JSONObject parser reads, and logs how
+    the two compare in time and allocations for daily, 16-day and hourly sized responses.
+ */
+public class TestForecastParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastParser.class.getSimpleName();
+
+    private static final int WARMUP_RUNS = 5;
+    private static final int TIMED_RUNS = 20;
+
+    static class RecordingCallback implements ForecastParser.Callback {
+        String cityName;
+        double lat;
+        double lon;
+        final ArrayList<ContentValues> days = new ArrayList<ContentValues>();
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public void onDay(int index, ContentValues weatherValues) {
+            assertEquals("Error: Days were not reported in order", days.size(), index);
+            days.add(weatherValues);
+        }
+    }
+
+    public void testStreamMatchesJsonObject() throws Exception {
+        String json = SyntheticForecast.build("Mountain View", 14, 42);
+
+        RecordingCallback fromJson = new RecordingCallback();
+        RecordingCallback fromStream = new RecordingCallback();
+        assertEquals(HttpURLConnection.HTTP_OK, ForecastParser.parseJson(json, fromJson));
+        assertEquals(HttpURLConnection.HTTP_OK, ForecastParser.parseStream(toStream(json), fromStream));
+
+        assertEquals("Mountain View", fromStream.cityName);
+        assertEquals(fromJson.cityName, fromStream.cityName);
+        assertEquals(fromJson.lat, fromStream.lat);
+        assertEquals(fromJson.lon, fromStream.lon);
+        assertEquals(14, fromStream.days.size());
+        assertEquals(fromJson.days, fromStream.days);
+    }
+
+    public void testErrorCode() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND,
+                ForecastParser.parseStream(toStream(SyntheticForecast.notFound()), callback));
+        assertNull("Error: A city was reported for an error response", callback.cityName);
+        assertTrue(callback.days.isEmpty());
+    }
+
+    public void testMalformedResponse() throws Exception {
+        String truncated = SyntheticForecast.build("Mountain View", 3, 7).replace("\"temp\"", "\"tmp\"");
+        try {
+            ForecastParser.parseStream(toStream(truncated), new RecordingCallback());
+            fail("Error: A day without temperatures was accepted");
+        } catch (JSONException expected) {
+        }
+
+        try {
+            ForecastParser.parseStream(toStream("{\"city\":"), new RecordingCallback());
+            fail("Error: A truncated response was accepted");
+        } catch (IOException expected) {
+            // EOF, the same as an interrupted download
+        }
+    }
+
+    /*
+        Compares the old path (read the body into a String, build the JSONObject tree, copy the
+        values out) against the streaming parser.  Results are only logged; timings on a shared
+        test device are too noisy to assert on.
+     */
+    public void testBenchmark() throws Exception {
+        benchmark("daily", 14);
+        benchmark("16-day", 16);
+        benchmark("hourly", 16 * 24);
+    }
+
+    private void benchmark(String label, int numDays) throws Exception {
+        byte[] payload = SyntheticForecast.build("Mountain View", numDays, numDays).getBytes("UTF-8");
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            ForecastParser.parseJson(ForecastParser.readFully(new ByteArrayInputStream(payload)),
+                    new RecordingCallback());
+            ForecastParser.parseStream(new ByteArrayInputStream(payload), new RecordingCallback());
+        }
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                ForecastParser.parseJson(
+                        ForecastParser.readFully(new ByteArrayInputStream(payload)),
+                        new RecordingCallback());
+            }
+            long jsonNanos = System.nanoTime() - start;
+            long jsonBytes = Debug.getThreadAllocSize();
+
+            Debug.resetThreadAllocSize();
+            start = System.nanoTime();
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                ForecastParser.parseStream(new ByteArrayInputStream(payload), new RecordingCallback());
+            }
+            long streamNanos = System.nanoTime() - start;
+            long streamBytes = Debug.getThreadAllocSize();
+
+            Log.i(LOG_TAG, label + " (" + numDays + " entries, " + payload.length + " bytes): "
+                    + "JSONObject " + (jsonNanos / TIMED_RUNS / 1000) + "us "
+                    + (jsonBytes / TIMED_RUNS) + "B allocated, "
+                    + "stream " + (streamNanos / TIMED_RUNS / 1000) + "us "
+                    + (streamBytes / TIMED_RUNS) + "B allocated per parse");
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private static InputStream toStream(String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.ForecastStubServer;
+
+import java.util.Map;
+
+/*
+    Load test for the multi-location sync: syncs a location table with dozens of rows against a
+    local stand-in server with some latency, and reports how long that took and how many threads
+    it needed.
+ */
+public class TestMultiLocationSync extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestMultiLocationSync.class.getSimpleName();
+
+    private static final int NUM_LOCATIONS = 60;
+    private static final int SERVER_LATENCY_MILLIS = 50;
+
+    private ForecastStubServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+
+        mServer = new ForecastStubServer();
+        mServer.setLatency(SERVER_LATENCY_MILLIS);
+        mServer.start();
+        SunshineSyncAdapter.sForecastBaseUrl = mServer.getBaseUrl();
+
+        ContentValues[] locations = new ContentValues[NUM_LOCATIONS];
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            locations[i] = new ContentValues();
+            locations[i].put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, getLocation(i));
+            locations[i].put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "City " + i);
+            locations[i].put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, i);
+            locations[i].put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -i);
+            mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI,
+                    locations[i]);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        SunshineSyncAdapter.sForecastBaseUrl = SunshineSyncAdapter.FORECAST_BASE_URL;
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    public void testSyncsEveryLocation() {
+        MultiLocationSyncEngine engine = new MultiLocationSyncEngine(mContext);
+
+        long start = SystemClock.elapsedRealtime();
+        Map<String, LocationSyncTask.Result> results =
+                engine.sync(getLocation(0), false, new SyncResult(), SyncRecord.start(false));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        Log.i(LOG_TAG, NUM_LOCATIONS + " locations at " + SERVER_LATENCY_MILLIS + "ms each: "
+                + elapsed + "ms total, " + engine.getPeakConcurrentFetches()
+                + " concurrent fetches at peak, " + engine.getThreadsCreated() + " threads started");
+
+        assertEquals(NUM_LOCATIONS, results.size());
+        for (LocationSyncTask.Result result : results.values()) {
+            assertTrue("Error: " + result.locationSetting + " wasn't stored", result.stored);
+            assertTrue(result.hasNewForecast());
+        }
+        assertEquals(NUM_LOCATIONS, mServer.getFullResponseCount());
+        assertEquals(NUM_LOCATIONS * 14, countWeatherRows());
+
+        assertTrue("Error: More downloads ran at once than the pool allows",
+                engine.getPeakConcurrentFetches() <= MultiLocationSyncEngine.MAX_CONCURRENT_FETCHES);
+        assertTrue("Error: The pool grew past its bound",
+                engine.getThreadsCreated() <= MultiLocationSyncEngine.MAX_CONCURRENT_FETCHES);
+        // One request at a time would take at least this long
+        assertTrue("Error: Locations weren't fetched concurrently",
+                elapsed < NUM_LOCATIONS * SERVER_LATENCY_MILLIS);
+
+        // Nothing changed upstream, so the next sync is all 304s
+        start = SystemClock.elapsedRealtime();
+        results = new MultiLocationSyncEngine(mContext)
+                .sync(getLocation(0), false, new SyncResult(), SyncRecord.start(false));
+        Log.i(LOG_TAG, "Revalidating " + NUM_LOCATIONS + " locations: "
+                + (SystemClock.elapsedRealtime() - start) + "ms total");
+        assertEquals(NUM_LOCATIONS, mServer.getNotModifiedCount());
+        for (LocationSyncTask.Result result : results.values()) {
+            assertTrue(result.notModified);
+        }
+    }
+
+    // Only the preferred location's failures ask SyncManager to retry the whole sync; the
+    // others back off on their own
+    public void testOnlyPreferredLocationFailuresCount() {
+        mServer.setStatus(getLocation(1), 500);
+        SyncResult syncResult = new SyncResult();
+        new MultiLocationSyncEngine(mContext)
+                .sync(getLocation(0), true, syncResult, SyncRecord.start(true));
+        assertEquals(0, syncResult.stats.numIoExceptions);
+        assertFalse(syncResult.hasError());
+
+        mServer.setStatus(getLocation(0), 500);
+        syncResult = new SyncResult();
+        new MultiLocationSyncEngine(mContext)
+                .sync(getLocation(0), true, syncResult, SyncRecord.start(true));
+        assertEquals(1, syncResult.stats.numIoExceptions);
+    }
+
+    public void testNewPreferredLocationIsStored() {
+        Map<String, LocationSyncTask.Result> results = new MultiLocationSyncEngine(mContext)
+                .sync("new-location", false, new SyncResult(), SyncRecord.start(false));
+
+        assertEquals(NUM_LOCATIONS + 1, results.size());
+        assertTrue(results.get("new-location").stored);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation("new-location"),
+                null, null, null, null);
+        assertNotNull(cursor);
+        assertEquals("Error: The new location's forecast wasn't linked to it", 14, cursor.getCount());
+        cursor.close();
+    }
+
+    private static String getLocation(int i) {
+        return "location-" + i;
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
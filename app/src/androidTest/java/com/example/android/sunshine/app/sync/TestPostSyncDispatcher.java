@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Checks that bursts of post-sync updates reach the consumers once, and that a content version
+    that was already delivered isn't delivered again.
+ */
+public class TestPostSyncDispatcher extends AndroidTestCase {
+
+    private static final long WINDOW_MILLIS = 200;
+
+    static class RecordingConsumer implements PostSyncDispatcher.Consumer {
+        final List<String> locations = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onForecastChanged(Context context, String locationSetting) {
+            locations.add(locationSetting);
+            threads.add(Thread.currentThread().getName());
+        }
+    }
+
+    private RecordingConsumer mFirst;
+    private RecordingConsumer mSecond;
+    private PostSyncDispatcher mDispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFirst = new RecordingConsumer();
+        mSecond = new RecordingConsumer();
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>();
+        consumers.add(mFirst);
+        consumers.add(mSecond);
+        mDispatcher = new PostSyncDispatcher(mContext, consumers, WINDOW_MILLIS);
+    }
+
+    public void testBurstIsCoalesced() throws InterruptedException {
+        assertTrue(mDispatcher.post("94043", 1));
+        assertFalse(mDispatcher.post("94043", 2));
+        assertFalse(mDispatcher.post("94043", 3));
+        waitForWindow();
+
+        assertEquals("Error: A burst of updates wasn't delivered exactly once",
+                1, mDispatcher.getDeliveryCount());
+        assertEquals(1, mFirst.locations.size());
+        assertEquals(1, mSecond.locations.size());
+        // both consumers ran on the same dispatcher thread
+        assertEquals(mFirst.threads.get(0), mSecond.threads.get(0));
+        assertFalse(Thread.currentThread().getName().equals(mFirst.threads.get(0)));
+    }
+
+    public void testSameVersionIsDeliveredOnce() throws InterruptedException {
+        assertTrue(mDispatcher.post("94043", 42));
+        waitForWindow();
+        assertEquals(1, mDispatcher.getDeliveryCount());
+
+        assertFalse("Error: A delivered version was posted again", mDispatcher.post("94043", 42));
+        waitForWindow();
+        assertEquals(1, mDispatcher.getDeliveryCount());
+
+        // a new version, or the same one for another location, is news
+        assertTrue(mDispatcher.post("94043", 43));
+        waitForWindow();
+        assertTrue(mDispatcher.post("10001", 43));
+        waitForWindow();
+        assertEquals(3, mDispatcher.getDeliveryCount());
+        assertEquals("10001", mFirst.locations.get(2));
+    }
+
+    private void waitForWindow() throws InterruptedException {
+        Thread.sleep(WINDOW_MILLIS * 3);
+    }
+}
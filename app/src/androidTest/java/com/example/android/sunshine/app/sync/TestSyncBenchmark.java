@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.ForecastStubServer;
+import com.example.android.sunshine.app.utils.Percentiles;
+import com.example.android.sunshine.app.utils.SyntheticForecast;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/*
+    End-to-end sync benchmark.  Drives SunshineSyncAdapter through download, parse and provider
+    write against the local stand-in server, for payloads of different lengths and sizes, slow
+    responses and server errors, and logs the latency distribution and throughput of each.
+    Every run serves a new forecast, so none of them is answered with a 304.
+ */
+public class TestSyncBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncBenchmark.class.getSimpleName();
+
+    static final String TEST_LOCATION = "94043";
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int TIMED_RUNS = 20;
+
+    private ForecastStubServer mServer;
+    private String mSavedLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+
+        mServer = new ForecastStubServer();
+        mServer.start();
+        SunshineSyncAdapter.sForecastBaseUrl = mServer.getBaseUrl();
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String locationKey = mContext.getString(R.string.pref_location_key);
+        mSavedLocation = prefs.getString(locationKey, null);
+        prefs.edit().putString(locationKey, TEST_LOCATION).commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        SunshineSyncAdapter.sForecastBaseUrl = SunshineSyncAdapter.FORECAST_BASE_URL;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        prefs.edit().putString(mContext.getString(R.string.pref_location_key), mSavedLocation)
+                .commit();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    public void testDayCounts() {
+        benchmark("7 days", 7, 0, 0);
+        benchmark("14 days", 14, 0, 0);
+        benchmark("16 days", 16, 0, 0);
+        assertEquals(16, countWeatherRows());
+    }
+
+    public void testResponseSizes() {
+        benchmark("14 days +16KB", 14, 16 * 1024, 0);
+        benchmark("14 days +256KB", 14, 256 * 1024, 0);
+        assertEquals(14, countWeatherRows());
+    }
+
+    public void testLatency() {
+        benchmark("14 days 50ms", 14, 0, 50);
+        benchmark("14 days 200ms", 14, 0, 200);
+        assertEquals(14, countWeatherRows());
+    }
+
+    public void testServerErrors() {
+        mServer.setStatus(TEST_LOCATION, 500);
+        benchmark("HTTP 500", 0, 0, 0);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(mContext));
+        assertEquals(0, countWeatherRows());
+
+        mServer.setStatus(TEST_LOCATION, 200);
+        mServer.setForecast(TEST_LOCATION, SyntheticForecast.notFound());
+        benchmark("cod 404", 0, 0, 0);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID,
+                Utility.getLocationStatus(mContext));
+        assertEquals(0, countWeatherRows());
+    }
+
+    /**
+     * Syncs a forecast with numDays days, padded with paddingBytes, WARMUP_RUNS + TIMED_RUNS
+     * times and logs how the timed runs went.  Pass 0 days to serve whatever the server has been
+     * set up to send.
+     */
+    private void benchmark(String name, int numDays, int paddingBytes, int latencyMillis) {
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false);
+        mServer.setLatency(latencyMillis);
+
+        long[] elapsed = new long[TIMED_RUNS];
+        long bytesBefore = 0;
+        for (int run = 0; run < WARMUP_RUNS + TIMED_RUNS; run++) {
+            if (numDays > 0) {
+                mServer.setForecast(TEST_LOCATION,
+                        SyntheticForecast.build("Mountain View", numDays, run, paddingBytes));
+            }
+            if (run == WARMUP_RUNS) {
+                bytesBefore = mServer.getBytesServed();
+            }
+            long start = System.nanoTime();
+            sync(adapter);
+            if (run >= WARMUP_RUNS) {
+                elapsed[run - WARMUP_RUNS] = System.nanoTime() - start;
+            }
+        }
+        mServer.setLatency(0);
+
+        long total = 0;
+        for (long nanos : elapsed) {
+            total += nanos;
+        }
+        Arrays.sort(elapsed);
+        double seconds = total / 1e9;
+        long bytes = mServer.getBytesServed() - bytesBefore;
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%-16s p50 %6.1fms  p95 %6.1fms  max %6.1fms  %7.1f syncs/s  %8.0f rows/s  %8.1f KB/s",
+                name,
+                Percentiles.nearestRank(elapsed, 50) / 1e6,
+                Percentiles.nearestRank(elapsed, 95) / 1e6,
+                elapsed[elapsed.length - 1] / 1e6,
+                TIMED_RUNS / seconds,
+                numDays * TIMED_RUNS / seconds,
+                bytes / 1024.0 / seconds));
+    }
+
+    private void sync(SunshineSyncAdapter adapter) {
+        Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        adapter.onPerformSync(null, extras, WeatherContract.CONTENT_AUTHORITY, null,
+                new SyncResult());
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(TEST_LOCATION),
+                null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
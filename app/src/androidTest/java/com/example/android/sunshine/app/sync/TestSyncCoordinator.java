@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+    Walks the sync coordinator through a user editing the location several times in a row, and
+    checks that each location is downloaded once.
+ */
+public class TestSyncCoordinator extends AndroidTestCase {
+
+    private static final long NOW = 1419033600000L;
+
+    private SyncCoordinator mCoordinator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCoordinator = new SyncCoordinator(mContext);
+    }
+
+    public void testRequestsJoinWaitingAndRunningSyncs() {
+        assertEquals(SyncCoordinator.REQUEST_STARTED, mCoordinator.request("94043", false, NOW));
+        assertEquals(SyncCoordinator.SYNC_STATE_PENDING, mCoordinator.getState("94043"));
+        assertEquals(SyncCoordinator.REQUEST_JOINED, mCoordinator.request("94043", false, NOW + 1));
+
+        mCoordinator.onSyncStarted("94043");
+        assertEquals(SyncCoordinator.SYNC_STATE_RUNNING, mCoordinator.getState("94043"));
+        // even a forced request joins a sync that is already running
+        assertEquals(SyncCoordinator.REQUEST_JOINED, mCoordinator.request("94043", true, NOW + 2));
+
+        // another location isn't held up
+        assertEquals(SyncCoordinator.REQUEST_STARTED, mCoordinator.request("10001", false, NOW + 3));
+    }
+
+    public void testFreshWindow() {
+        mCoordinator.request("94043", false, NOW);
+        mCoordinator.onSyncStarted("94043");
+        mCoordinator.onSyncFinished("94043", results("94043"), NOW + 1000);
+        assertEquals(SyncCoordinator.SYNC_STATE_IDLE, mCoordinator.getState("94043"));
+
+        assertEquals(SyncCoordinator.REQUEST_FRESH, mCoordinator.request("94043", false, NOW + 2000));
+        assertEquals(SyncCoordinator.REQUEST_STARTED, mCoordinator.request("94043", true, NOW + 3000));
+
+        mCoordinator.onSyncStarted("94043");
+        mCoordinator.onSyncFinished("94043", results("94043"), NOW + 4000);
+        long later = NOW + 4000 + SyncCoordinator.FRESH_WINDOW_MILLIS;
+        assertEquals(SyncCoordinator.REQUEST_STARTED, mCoordinator.request("94043", false, later));
+    }
+
+    public void testFailedSyncIsNotFresh() {
+        mCoordinator.request("94043", false, NOW);
+        mCoordinator.onSyncStarted("94043");
+        Map<String, LocationSyncTask.Result> results = results("94043");
+        results.get("94043").status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        mCoordinator.onSyncFinished("94043", results, NOW + 1000);
+
+        assertEquals(SyncCoordinator.REQUEST_STARTED, mCoordinator.request("94043", false, NOW + 2000));
+    }
+
+    public void testEditingLocationRepeatedly() {
+        // 94043 -> 10001 -> 94043 while the first sync is still waiting
+        assertEquals(SyncCoordinator.REQUEST_STARTED, mCoordinator.request("94043", false, NOW));
+        assertEquals(SyncCoordinator.REQUEST_STARTED, mCoordinator.request("10001", false, NOW + 1));
+        assertEquals(SyncCoordinator.REQUEST_JOINED, mCoordinator.request("94043", false, NOW + 2));
+
+        // the framework folds both requests into one sync, which refreshes both locations
+        mCoordinator.onSyncStarted("94043");
+        mCoordinator.onSyncFinished("94043", results("94043", "10001"), NOW + 1000);
+        assertEquals(SyncCoordinator.SYNC_STATE_IDLE, mCoordinator.getState("10001"));
+        assertEquals(SyncCoordinator.REQUEST_FRESH, mCoordinator.request("10001", false, NOW + 2000));
+        assertEquals(SyncCoordinator.REQUEST_FRESH, mCoordinator.request("94043", false, NOW + 3000));
+    }
+
+    public void testDroppedRequestTimesOut() {
+        assertEquals(SyncCoordinator.REQUEST_STARTED, mCoordinator.request("94043", false, NOW));
+        assertEquals(SyncCoordinator.REQUEST_STARTED, mCoordinator.request("94043", false,
+                NOW + SyncCoordinator.PENDING_TIMEOUT_MILLIS));
+    }
+
+    public void testSavedStateExpires() {
+        // what a process that died mid-sync left behind
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putInt(mContext.getString(R.string.pref_sync_state_key),
+                        SyncCoordinator.SYNC_STATE_RUNNING)
+                .commit();
+        SyncCoordinator coordinator = new SyncCoordinator(mContext);
+        assertEquals(SyncCoordinator.SYNC_STATE_IDLE, Utility.getSyncState(mContext));
+
+        String location = Utility.getPreferredLocation(mContext);
+        long now = System.currentTimeMillis();
+        coordinator.request(location, true, now);
+        assertEquals(SyncCoordinator.SYNC_STATE_PENDING, Utility.getSyncState(mContext));
+
+        // a request that never started stops showing as waiting once it times out
+        coordinator = new SyncCoordinator(mContext);
+        coordinator.request(location, true, now - SyncCoordinator.PENDING_TIMEOUT_MILLIS);
+        assertEquals(SyncCoordinator.SYNC_STATE_IDLE, Utility.getSyncState(mContext));
+    }
+
+    private static Map<String, LocationSyncTask.Result> results(String... locations) {
+        Map<String, LocationSyncTask.Result> results =
+                new HashMap<String, LocationSyncTask.Result>();
+        for (String location : locations) {
+            LocationSyncTask.Result result =
+                    new LocationSyncTask.Result(HttpValidators.none(location));
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_OK;
+            results.put(location, result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A tiny HTTP server on the loopback interface that stands in for OpenWeatherMap's
+ * "forecast/daily" endpoint.  Each location gets a synthetic forecast unless a body has been set
+ * for it, and every response carries an ETag so conditional requests can be answered with a 304.
+ *
+ * Locations can also be made to fail with an HTTP error, and every response can be slowed
+ * down or padded, so the sync path can be measured under different conditions.  The counters
+ * tell a test how many requests were answered in full, how many were not modified and how many
+ * bytes went out.
+ */
+public class ForecastStubServer {
+
+    public static final String LOG_TAG = ForecastStubServer.class.getSimpleName();
+
+    public static final String FORECAST_PATH = "/data/2.5/forecast/daily";
+
+    private static final int DEFAULT_NUM_DAYS = 14;
+
+    private final Map<String, String> mBodies = new ConcurrentHashMap<String, String>();
+    private final Map<String, Integer> mStatuses = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mFullResponseCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+    private final AtomicLong mBytesServed = new AtomicLong();
+
+    private volatile int mMaxAgeSeconds;
+    private volatile int mLatencyMillis;
+    private volatile int mPaddingBytes;
+
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 64, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // closed by shutdown()
+                    }
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error closing server socket", e);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @return the URL to use in place of OpenWeatherMap's, ready for query parameters
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + FORECAST_PATH + "?";
+    }
+
+    /**
+     * Serves this body for the location from now on.  Changing the body changes its ETag.
+     */
+    public void setForecast(String location, String body) {
+        mBodies.put(location, body);
+    }
+
+    /**
+     * Answers every request for the location with this HTTP status and an error body from now
+     * on, or serves its forecast again if the status is 200.
+     */
+    public void setStatus(String location, int status) {
+        if (status == 200) {
+            mStatuses.remove(location);
+        } else {
+            mStatuses.put(location, status);
+        }
+    }
+
+    /**
+     * Pads every synthetic forecast with about this many bytes the parser has to skip.  Bodies
+     * set with {@link #setForecast} are sent as they are.
+     */
+    public void setPadding(int bytes) {
+        mPaddingBytes = bytes;
+    }
+
+    /**
+     * Sets the Cache-Control max-age sent with every response.  Zero, the default, sends none.
+     */
+    public void setMaxAge(int seconds) {
+        mMaxAgeSeconds = seconds;
+    }
+
+    /**
+     * Holds every response back this long, like a slow network would.
+     */
+    public void setLatency(int millis) {
+        mLatencyMillis = millis;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getFullResponseCount() {
+        return mFullResponseCount.get();
+    }
+
+    public int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    public int getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /**
+     * @return how many response body bytes have been sent
+     */
+    public long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String requestLine = in.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            mRequestCount.incrementAndGet();
+
+            // "GET /data/2.5/forecast/daily?q=94043&cnt=14 HTTP/1.1"
+            String target = requestLine.split(" ")[1];
+            Map<String, String> params = parseQuery(target);
+            String location = params.get("q");
+            String body = location == null ? null : mBodies.get(location);
+            if (body == null && location != null) {
+                int numDays = params.containsKey("cnt")
+                        ? Integer.parseInt(params.get("cnt")) : DEFAULT_NUM_DAYS;
+                body = SyntheticForecast.build(location, numDays, location.hashCode(),
+                        mPaddingBytes);
+            }
+
+            if (mLatencyMillis > 0) {
+                Thread.sleep(mLatencyMillis);
+            }
+
+            OutputStream out = socket.getOutputStream();
+            if (body == null) {
+                write(out, "400 Bad Request", null, SyntheticForecast.notFound());
+                return;
+            }
+            Integer status = mStatuses.get(location);
+            if (status != null) {
+                mErrorCount.incrementAndGet();
+                write(out, status + " Error", null, SyntheticForecast.error(status, "Error"));
+                return;
+            }
+
+            String eTag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+            if (eTag.equals(headers.get("if-none-match"))) {
+                mNotModifiedCount.incrementAndGet();
+                write(out, "304 Not Modified", eTag, null);
+            } else {
+                mFullResponseCount.incrementAndGet();
+                write(out, "200 OK", eTag, body);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error serving request", e);
+        } catch (InterruptedException e) {
+            // shutting down
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing socket", e);
+            }
+        }
+    }
+
+    private void write(OutputStream out, String status, String eTag, String body)
+            throws IOException {
+        byte[] content = body == null ? new byte[0] : body.getBytes("UTF-8");
+        StringBuilder response = new StringBuilder();
+        response.append("HTTP/1.1 ").append(status).append("\r\n");
+        response.append("Connection: close\r\n");
+        if (eTag != null) {
+            response.append("ETag: ").append(eTag).append("\r\n");
+        }
+        if (mMaxAgeSeconds > 0) {
+            response.append("Cache-Control: max-age=").append(mMaxAgeSeconds).append("\r\n");
+        }
+        if (body != null) {
+            response.append("Content-Type: application/json; charset=utf-8\r\n");
+            response.append("Content-Length: ").append(content.length).append("\r\n");
+        }
+        response.append("\r\n");
+        out.write(response.toString().getBytes("UTF-8"));
+        out.write(content);
+        out.flush();
+        mBytesServed.addAndGet(content.length);
+    }
+
+    private static Map<String, String> parseQuery(String target) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        int question = target.indexOf('?');
+        if (question < 0) {
+            return params;
+        }
+        for (String pair : target.substring(question + 1).split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Builds OpenWeatherMap "forecast/daily" responses with the same shape as the real service,
+ * so the sync path can be exercised without a network.
+ */
+public class SyntheticForecast {
+
+    private static final int[] WEATHER_IDS = new int[] {800, 801, 802, 500, 501, 600, 211, 741};
+    private static final String[] WEATHER_MAINS =
+            new String[] {"Clear", "Clouds", "Clouds", "Rain", "Rain", "Snow", "Thunderstorm", "Fog"};
+
+    /**
+     * @param cityName city name reported in the "city" object
+     * @param numDays number of elements in the "list" array
+     * @param seed seed for the generated values, so the same arguments give the same payload
+     */
+    public static String build(String cityName, int numDays, long seed) {
+        return build(cityName, numDays, seed, 0);
+    }
+
+    /**
+     * Like {@link #build(String, int, long)}, with a field we don't read added to the "city"
+     * object so the response is about paddingBytes bigger.  The parser has to skip it.
+     */
+    public static String build(String cityName, int numDays, long seed, int paddingBytes) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder(256 + numDays * 320 + paddingBytes);
+
+        json.append("{\"city\":{\"id\":").append(seed & 0xffffff)
+                .append(",\"name\":\"").append(cityName).append('"')
+                .append(",\"coord\":{\"lon\":").append(format(random.nextDouble() * 360 - 180))
+                .append(",\"lat\":").append(format(random.nextDouble() * 180 - 90))
+                .append("},\"country\":\"US\",\"population\":0");
+        if (paddingBytes > 0) {
+            json.append(",\"padding\":\"");
+            for (int i = 0; i < paddingBytes; i++) {
+                json.append((char) ('a' + i % 26));
+            }
+            json.append('"');
+        }
+        json.append("},")
+                .append("\"cod\":\"200\",\"message\":0.0123,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+
+        long dt = 1419033600L;
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            double min = random.nextDouble() * 30 - 5;
+            double max = min + random.nextDouble() * 12;
+            int weather = random.nextInt(WEATHER_IDS.length);
+
+            json.append("{\"dt\":").append(dt + i * 86400L)
+                    .append(",\"temp\":{\"day\":").append(format((min + max) / 2))
+                    .append(",\"min\":").append(format(min))
+                    .append(",\"max\":").append(format(max))
+                    .append(",\"night\":").append(format(min + 1))
+                    .append(",\"eve\":").append(format(max - 1))
+                    .append(",\"morn\":").append(format(min))
+                    .append("},\"pressure\":").append(format(980 + random.nextDouble() * 50))
+                    .append(",\"humidity\":").append(random.nextInt(100))
+                    .append(",\"weather\":[{\"id\":").append(WEATHER_IDS[weather])
+                    .append(",\"main\":\"").append(WEATHER_MAINS[weather])
+                    .append("\",\"description\":\"").append(WEATHER_MAINS[weather].toLowerCase(Locale.US))
+                    .append("\",\"icon\":\"01d\"}]")
+                    .append(",\"speed\":").append(format(random.nextDouble() * 15))
+                    .append(",\"deg\":").append(random.nextInt(360))
+                    .append(",\"clouds\":").append(random.nextInt(100))
+                    .append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * The body OpenWeatherMap sends back for a location it doesn't know.
+     */
+    public static String notFound() {
+        return error(404, "Error: Not found city");
+    }
+
+    /**
+     * An error body the way OpenWeatherMap sends them, with the code in "cod".
+     */
+    public static String error(int cod, String message) {
+        return "{\"cod\":\"" + cod + "\",\"message\":\"" + message + "\"}";
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+}
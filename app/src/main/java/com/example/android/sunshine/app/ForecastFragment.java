@@ -47,6 +47,7 @@ import android.widget.TextView;
 
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncCoordinator;
 
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.support.v7.widget.RecyclerView} layout.
@@ -422,6 +423,9 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                     default:
                         if (!Utility.isNetworkAvailable(getActivity())) {
                              message = R.string.empty_forecast_list_no_network;
+                        } else if (Utility.getSyncState(getActivity())
+                                != SyncCoordinator.SYNC_STATE_IDLE) {
+                            message = R.string.empty_forecast_list_syncing;
                         }
                 }
                 tv.setText(message);
@@ -431,7 +435,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (key.equals(getString(R.string.pref_location_status_key))) {
+        if (key.equals(getString(R.string.pref_location_status_key))
+                || key.equals(getString(R.string.pref_sync_state_key))) {
             updateEmptyView();
         }
     }
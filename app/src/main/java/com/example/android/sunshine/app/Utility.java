@@ -23,6 +23,7 @@ import android.preference.PreferenceManager;
 import android.text.format.Time;
 
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncCoordinator;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -565,6 +566,24 @@ public class Utility {
         return sp.getInt(c.getString(R.string.pref_location_status_key), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
     }
 
+    /**
+     * @param c Context used to get the SharedPreferences
+     * @return whether a sync for the preferred location is waiting or running.  One that was
+     * requested and never started is idle once it has timed out.
+     */
+    @SuppressWarnings("ResourceType")
+    static public @SyncCoordinator.SyncState
+    int getSyncState(Context c){
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
+        int state = sp.getInt(c.getString(R.string.pref_sync_state_key), SyncCoordinator.SYNC_STATE_IDLE);
+        long requestedAt = sp.getLong(c.getString(R.string.pref_sync_requested_at_key), 0);
+        if (state == SyncCoordinator.SYNC_STATE_PENDING
+                && System.currentTimeMillis() - requestedAt >= SyncCoordinator.PENDING_TIMEOUT_MILLIS) {
+            return SyncCoordinator.SYNC_STATE_IDLE;
+        }
+        return state;
+    }
+
     /**
      * Resets the location status.  (Sets it to SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN)
      * @param c Context used to get the SharedPreferences
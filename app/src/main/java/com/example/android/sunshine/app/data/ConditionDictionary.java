@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the condition table, the description of each weather id, remembering which ids it
+ * holds so that writing a forecast with the usual handful of conditions reads and writes it
+ * once per condition at most.
+ *
+ * The first description stored for an id is the one it keeps.  Every stored and archived day
+ * with the id reads its description from the table, so replacing it would rewrite what all of
+ * them say, however long ago they were written.
+ */
+class ConditionDictionary {
+
+    private final Set<Integer> mWeatherIds =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /**
+     * Stores the description for the weather id, unless the id already has one.
+     *
+     * @return true if the id's description was stored
+     */
+    boolean put(SQLiteDatabase db, int weatherId, String description) {
+        if (description == null || mWeatherIds.contains(weatherId)) {
+            return false;
+        }
+
+        Cursor cursor = db.query(WeatherDbHelper.CONDITION_TABLE_NAME,
+                new String[]{WeatherDbHelper.CONDITION_ID},
+                WeatherDbHelper.CONDITION_ID + " = ?",
+                new String[]{Integer.toString(weatherId)}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                mWeatherIds.add(weatherId);
+                return false;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues values = new ContentValues(2);
+        values.put(WeatherDbHelper.CONDITION_ID, weatherId);
+        values.put(WeatherDbHelper.CONDITION_DESCRIPTION, description);
+        db.insertWithOnConflict(WeatherDbHelper.CONDITION_TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        mWeatherIds.add(weatherId);
+        return true;
+    }
+
+    /**
+     * Stores the description in the values, if they have one along with a weather id.
+     *
+     * @return true if the id's description was stored
+     */
+    boolean put(SQLiteDatabase db, ContentValues values) {
+        Integer weatherId = values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        String description = values.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        return weatherId != null && put(db, weatherId, description);
+    }
+
+    /**
+     * Forgets what the table holds, for when a transaction that wrote to it rolled back.
+     */
+    void clear() {
+        mWeatherIds.clear();
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentProvider;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Process;
+import android.support.v4.util.AtomicFile;
+
+import com.example.android.sunshine.app.utils.Percentiles;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts the provider's calls by the match code of their URI and the operation: how many there
+ * were, how long they took, how many rows they returned or wrote, and who made them.  Recording
+ * a call costs a few atomic adds and takes no lock, so it can stay on in release builds.  The
+ * stats are read through {@link WeatherProvider#call}, and by dumpsys.
+ *
+ * A call from another process is named by its calling package: the one the provider reports
+ * from KitKat on, or else the packages of the calling uid.  The provider isn't exported, though,
+ * so nearly every call comes from this app's process, where the calling thread tells the
+ * callers apart: the loaders' AsyncTask threads for the UI, the widgets' IntentService and
+ * binder threads, the Wear listener's thread, and the sync adapter's.
+ */
+final class ProviderStats {
+
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+    private static final String[] OPERATION_NAMES =
+            {"query", "insert", "bulkInsert", "update", "delete"};
+
+    private static final int[] MATCHES = {
+            WeatherProvider.WEATHER,
+            WeatherProvider.WEATHER_WITH_LOCATION,
+            WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE,
+            WeatherProvider.LOCATION,
+            WeatherProvider.HISTORY_WITH_LOCATION
+    };
+
+    // Bucket i counts the calls that took under 2^i microseconds; the last, the rest
+    static final int NUM_BUCKETS = 21;
+    // The latencies of each slot's most recent calls, for percentiles
+    static final int RESERVOIR_SIZE = 128;
+    // The callers each slot tells apart; the rest count as OTHER_CALLERS
+    static final int MAX_CALLERS = 8;
+    static final String OTHER_CALLERS = "other";
+
+    // The counters of each slot, one slot for each match code and operation
+    private static final int COUNT = 0;
+    private static final int ROWS = 1;
+    private static final int TOTAL_NANOS = 2;
+    private static final int FIRST_BUCKET = 3;
+    private static final int COUNTERS_PER_SLOT = FIRST_BUCKET + NUM_BUCKETS;
+
+    private static final int NUM_SLOTS = MATCHES.length * OPERATION_NAMES.length;
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(NUM_SLOTS * COUNTERS_PER_SLOT);
+    private final AtomicLongArray mReservoir = new AtomicLongArray(NUM_SLOTS * RESERVOIR_SIZE);
+    private final AtomicReferenceArray<String> mCallers =
+            new AtomicReferenceArray<String>(NUM_SLOTS * MAX_CALLERS);
+    // One more for OTHER_CALLERS
+    private final AtomicLongArray mCallerCounts =
+            new AtomicLongArray(NUM_SLOTS * (MAX_CALLERS + 1));
+
+    private final long mSinceMillis = System.currentTimeMillis();
+
+    private final ContentProvider mProvider;
+    // The packages of each other uid seen, looked up once rather than on every call
+    private final Map<Integer, String> mUidPackages = new ConcurrentHashMap<Integer, String>();
+
+    // The calling thread's name without its number, worked out once per thread
+    private static final ThreadLocal<String> sThreadCaller = new ThreadLocal<String>() {
+        @Override
+        protected String initialValue() {
+            return callerName(Thread.currentThread().getName());
+        }
+    };
+
+    // Who the writes running on this thread are made for, while the writer runs a batch
+    private static final ThreadLocal<String> sBatchCaller = new ThreadLocal<String>();
+
+    /**
+     * @param provider the provider whose calls are recorded, which tells who is calling it
+     */
+    ProviderStats(ContentProvider provider) {
+        mProvider = provider;
+    }
+
+    /**
+     * Records a call that started at startNanos, by System.nanoTime(), and has just returned.
+     * Calls to URIs the provider doesn't know aren't recorded; they throw.
+     */
+    void record(int match, int operation, long startNanos, int rows) {
+        long nanos = System.nanoTime() - startNanos;
+        int slot = slot(match, operation);
+        if (slot < 0) {
+            return;
+        }
+        int counters = slot * COUNTERS_PER_SLOT;
+        long count = mCounters.getAndIncrement(counters + COUNT);
+        mCounters.getAndAdd(counters + ROWS, rows);
+        mCounters.getAndAdd(counters + TOTAL_NANOS, nanos);
+        mCounters.getAndIncrement(counters + FIRST_BUCKET + bucket(nanos));
+        mReservoir.set(slot * RESERVOIR_SIZE + (int) (count % RESERVOIR_SIZE), nanos);
+        mCallerCounts.getAndIncrement(slot * (MAX_CALLERS + 1) + caller(slot, currentCaller()));
+    }
+
+    /**
+     * @return the cursor a query returned, counting its rows toward the query's once its caller
+     * first asks how many there are.  Counting them here would run the query, and fill the
+     * cursor's window, inside the provider.  The query's recorded time is until it returned.
+     */
+    Cursor countRows(int match, Cursor cursor) {
+        int slot = slot(match, QUERY);
+        return slot < 0 ? cursor : new RowCountingCursor(cursor, slot);
+    }
+
+    private class RowCountingCursor extends CursorWrapper {
+        private final int mSlot;
+        private boolean mCounted;
+
+        RowCountingCursor(Cursor cursor, int slot) {
+            super(cursor);
+            mSlot = slot;
+        }
+
+        @Override
+        public int getCount() {
+            int count = super.getCount();
+            if (!mCounted) {
+                mCounted = true;
+                mCounters.getAndAdd(mSlot * COUNTERS_PER_SLOT + ROWS, count);
+            }
+            return count;
+        }
+    }
+
+    private static int slot(int match, int operation) {
+        for (int i = 0; i < MATCHES.length; i++) {
+            if (MATCHES[i] == match) {
+                return i * OPERATION_NAMES.length + operation;
+            }
+        }
+        return -1;
+    }
+
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * @return the thread's name without its number, which tells the threads of a pool apart
+     * rather than the callers
+     */
+    static String callerName(String threadName) {
+        return threadName.replaceAll("([\\s_#:-]*\\d+)+$", "");
+    }
+
+    /**
+     * @return who is making the current call: in this process the thread, otherwise the calling
+     * package where it is known, or else the uid
+     */
+    String currentCaller() {
+        String batchCaller = sBatchCaller.get();
+        if (batchCaller != null) {
+            return batchCaller;
+        }
+        int uid = Binder.getCallingUid();
+        if (uid == Process.myUid()) {
+            return sThreadCaller.get();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            String callingPackage = getCallingPackage();
+            if (callingPackage != null) {
+                return callingPackage;
+            }
+        }
+        return uidPackages(uid);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private String getCallingPackage() {
+        try {
+            return mProvider.getCallingPackage();
+        } catch (SecurityException e) {
+            // The package it claims isn't the calling uid's
+            return null;
+        }
+    }
+
+    /**
+     * @return the packages sharing the uid, comma separated, or "uid:" and the uid if it has none
+     */
+    private String uidPackages(int uid) {
+        String packages = mUidPackages.get(uid);
+        if (packages == null) {
+            Context context = mProvider.getContext();
+            String[] names = context != null
+                    ? context.getPackageManager().getPackagesForUid(uid) : null;
+            if (names == null || names.length == 0) {
+                packages = "uid:" + uid;
+            } else {
+                StringBuilder joined = new StringBuilder(names[0]);
+                for (int i = 1; i < names.length; i++) {
+                    joined.append(',').append(names[i]);
+                }
+                packages = joined.toString();
+            }
+            mUidPackages.put(uid, packages);
+        }
+        return packages;
+    }
+
+    /**
+     * Records the calls the current thread makes for the caller, rather than for itself, until
+     * {@link #endBatch}.  The writer thread runs each batch this way, so its operations count
+     * for the thread that called applyBatch.
+     *
+     * @return the caller it replaces, for endBatch, when one batch runs another
+     */
+    String beginBatch(String caller) {
+        String previous = sBatchCaller.get();
+        sBatchCaller.set(caller);
+        return previous;
+    }
+
+    void endBatch(String previous) {
+        if (previous != null) {
+            sBatchCaller.set(previous);
+        } else {
+            sBatchCaller.remove();
+        }
+    }
+
+    /**
+     * @return the index of the caller among the slot's, claiming the first free one for a new
+     * caller, or MAX_CALLERS once they are all taken
+     */
+    private int caller(int slot, String caller) {
+        int first = slot * MAX_CALLERS;
+        for (int i = 0; i < MAX_CALLERS; i++) {
+            String known = mCallers.get(first + i);
+            if (known == null) {
+                if (mCallers.compareAndSet(first + i, null, caller)) {
+                    return i;
+                }
+                // Another thread claimed it first, perhaps for the same caller
+                known = mCallers.get(first + i);
+            }
+            if (known.equals(caller)) {
+                return i;
+            }
+        }
+        return MAX_CALLERS;
+    }
+
+    /**
+     * @return the stats of every match code and operation called so far.  The counters are read
+     * one at a time while calls go on being recorded, so they may be a call or two apart.
+     */
+    JSONObject toJson(PackageManager packageManager) throws JSONException {
+        JSONArray slots = new JSONArray();
+        for (int slot = 0; slot < NUM_SLOTS; slot++) {
+            int counters = slot * COUNTERS_PER_SLOT;
+            long count = mCounters.get(counters + COUNT);
+            if (count == 0) {
+                continue;
+            }
+            JSONObject stats = new JSONObject();
+            stats.put("match", MATCHES[slot / OPERATION_NAMES.length]);
+            stats.put("operation", OPERATION_NAMES[slot % OPERATION_NAMES.length]);
+            stats.put("count", count);
+            stats.put("rows", mCounters.get(counters + ROWS));
+            stats.put("total_us", mCounters.get(counters + TOTAL_NANOS) / 1000);
+
+            long[] recent = new long[(int) Math.min(count, RESERVOIR_SIZE)];
+            for (int i = 0; i < recent.length; i++) {
+                recent[i] = mReservoir.get(slot * RESERVOIR_SIZE + i);
+            }
+            Arrays.sort(recent);
+            stats.put("recent_p50_us", Percentiles.nearestRank(recent, 50) / 1000);
+            stats.put("recent_p95_us", Percentiles.nearestRank(recent, 95) / 1000);
+
+            // [upper bound in microseconds, or -1 for none, count] of every bucket with a call
+            JSONArray histogram = new JSONArray();
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                long calls = mCounters.get(counters + FIRST_BUCKET + i);
+                if (calls != 0) {
+                    histogram.put(new JSONArray()
+                            .put(i < NUM_BUCKETS - 1 ? 1L << i : -1)
+                            .put(calls));
+                }
+            }
+            stats.put("histogram", histogram);
+
+            JSONObject callers = new JSONObject();
+            for (int i = 0; i <= MAX_CALLERS; i++) {
+                long calls = mCallerCounts.get(slot * (MAX_CALLERS + 1) + i);
+                if (calls != 0) {
+                    String caller = i < MAX_CALLERS
+                            ? mCallers.get(slot * MAX_CALLERS + i) : OTHER_CALLERS;
+                    callers.put(describeCaller(caller, packageManager), calls);
+                }
+            }
+            stats.put("callers", callers);
+            slots.put(stats);
+        }
+        return new JSONObject()
+                .put("since_millis", mSinceMillis)
+                .put("stats", slots);
+    }
+
+    // Names the package of a uid that had none when it called, in case it has one now
+    private static String describeCaller(String caller, PackageManager packageManager) {
+        if (caller.startsWith("uid:")) {
+            String name = packageManager.getNameForUid(
+                    Integer.parseInt(caller.substring("uid:".length())));
+            if (name != null) {
+                return name;
+            }
+        }
+        return caller;
+    }
+
+    /**
+     * Writes the stats to the file as JSON, replacing what it held.
+     */
+    void writeTo(File file, PackageManager packageManager) throws IOException {
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = atomicFile.startWrite();
+        try {
+            out.write(toJson(packageManager).toString().getBytes("UTF-8"));
+            atomicFile.finishWrite(out);
+        } catch (JSONException e) {
+            atomicFile.failWrite(out);
+            throw new IOException(e.toString());
+        } catch (IOException e) {
+            atomicFile.failWrite(out);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.Percentiles;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The file holding the last {@link #MAX_RECORDS} sync records, so sync latency can be looked at
+ * without attaching a profiler.  The sync adapter appends to it, and the provider reads it for
+ * {@link WeatherContract#METHOD_GET_SYNC_METRICS}.
+ *
+ * Each record is a JSON object with the keys below, and a "&lt;phase&gt;_ms" key for every
+ * phase the sync times.  Times are in milliseconds.
+ */
+public final class SyncMetricsFile {
+    private static final String LOG_TAG = SyncMetricsFile.class.getSimpleName();
+
+    public static final int MAX_RECORDS = 50;
+    static final String FILE_NAME = "sync_metrics.json";
+
+    // Wall clock time the sync started, in milliseconds since the epoch
+    public static final String KEY_STARTED_AT = "started_at";
+    public static final String KEY_TOTAL_MS = "total_ms";
+    // Time from the first download starting until the last one finished
+    public static final String KEY_FETCH_WALL_MS = "fetch_wall_ms";
+    public static final String KEY_MANUAL = "manual";
+    public static final String KEY_LOCATIONS = "locations";
+    public static final String KEY_FETCHED = "fetched";
+    public static final String KEY_NOT_MODIFIED = "not_modified";
+    public static final String KEY_FAILED = "failed";
+    public static final String KEY_BYTES = "bytes";
+    public static final String KEY_ROWS_PARSED = "rows_parsed";
+    public static final String KEY_ROWS_CHANGED = "rows_changed";
+    public static final String PHASE_SUFFIX = "_ms";
+
+    private SyncMetricsFile() {
+    }
+
+    /**
+     * Adds a finished sync's record, dropping the oldest one if the file is full.
+     */
+    public static synchronized void append(Context context, JSONObject record) {
+        AtomicFile file = getFile(context);
+        JSONArray records = read(file);
+        JSONArray kept = new JSONArray();
+        for (int i = Math.max(0, records.length() + 1 - MAX_RECORDS); i < records.length(); i++) {
+            kept.put(records.opt(i));
+        }
+        kept.put(record);
+
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            out.write(kept.toString().getBytes("UTF-8"));
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error saving sync metrics", e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+
+    /**
+     * @return the records, oldest first, along with total latency percentiles.  The keys are
+     * defined in {@link WeatherContract}.
+     */
+    static Bundle toBundle(Context context) {
+        JSONArray records = read(getFile(context));
+
+        long[] totals = new long[records.length()];
+        for (int i = 0; i < totals.length; i++) {
+            JSONObject record = records.optJSONObject(i);
+            totals[i] = record != null ? record.optLong(KEY_TOTAL_MS) : 0;
+        }
+        Arrays.sort(totals);
+
+        Bundle bundle = new Bundle();
+        bundle.putInt(WeatherContract.SYNC_METRICS_COUNT, records.length());
+        bundle.putLong(WeatherContract.SYNC_METRICS_P50_MS, Percentiles.nearestRank(totals, 50));
+        bundle.putLong(WeatherContract.SYNC_METRICS_P95_MS, Percentiles.nearestRank(totals, 95));
+        bundle.putString(WeatherContract.SYNC_METRICS_RECORDS, records.toString());
+        return bundle;
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * @return the saved records, or an empty array if there are none or they can't be read
+     */
+    private static JSONArray read(AtomicFile file) {
+        FileInputStream in = null;
+        try {
+            in = file.openRead();
+            byte[] data = new byte[in.available()];
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return new JSONArray(new String(data, 0, read, "UTF-8"));
+        } catch (IOException e) {
+            // Nothing saved yet
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Discarding unreadable sync metrics", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing sync metrics", e);
+                }
+            }
+        }
+        return new JSONArray();
+    }
+}
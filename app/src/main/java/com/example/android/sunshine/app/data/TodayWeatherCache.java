@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Today's weather at each location asked for, kept in memory.  After a sync, the notification,
+ * the widgets, Muzei and Wear all want the same row within a second of each other; the first
+ * one reads it through the provider and the others get it from here.
+ *
+ * The provider tells the cache about every write once it has committed, and the cache forgets
+ * the locations it touched.  A day's row is only served on that day.
+ */
+public class TodayWeatherCache {
+
+    private static final TodayWeatherCache sInstance = new TodayWeatherCache();
+
+    private static class Entry {
+        final int julianDay;
+        // null if the location had no weather that day
+        final WeatherRow row;
+
+        Entry(int julianDay, WeatherRow row) {
+            this.julianDay = julianDay;
+            this.row = row;
+        }
+    }
+
+    // By location setting.  Guarded by this, along with mGeneration.
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    // Counts invalidations, so that a read that raced a write isn't cached
+    private int mGeneration;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public static TodayWeatherCache getInstance() {
+        return sInstance;
+    }
+
+    private TodayWeatherCache() {
+    }
+
+    /**
+     * @return today's weather at the location, or null if there is none.  The row is shared
+     * with every other caller, so it mustn't be changed.
+     */
+    public WeatherRow get(Context context, String locationSetting) {
+        long now = System.currentTimeMillis();
+        int today = WeatherContract.toJulianDay(now);
+        int generation;
+        synchronized (this) {
+            Entry entry = mEntries.get(locationSetting);
+            if (entry != null && entry.julianDay == today) {
+                mHits.incrementAndGet();
+                return entry.row;
+            }
+            generation = mGeneration;
+        }
+        mMisses.incrementAndGet();
+
+        Cursor cursor = context.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(locationSetting, now),
+                WeatherRow.COLUMNS, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        WeatherRow row = null;
+        try {
+            if (cursor.moveToFirst()) {
+                row = WeatherRow.fromCursor(cursor);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            // Anything written since the read started may not be in it
+            if (generation == mGeneration) {
+                mEntries.put(locationSetting, new Entry(today, row));
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Forgets the weather of the location with this _id, and every location that had none, as
+     * a write may have added it.  Called once the write has committed.
+     */
+    synchronized void invalidate(long locationId) {
+        mGeneration++;
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.row == null || entry.row.locationId == locationId) {
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets everything, for writes that may have touched any location.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    /**
+     * @return how many lookups were served from memory
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return how many lookups had to read the provider
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+}
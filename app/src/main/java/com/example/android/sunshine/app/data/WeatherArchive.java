@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the days that have passed out of the weather table.  They move to the archive table,
+ * where each location's month is one row: the days packed into a blob, each at a fixed offset
+ * for its day of the month.  A month costs one row and one index entry instead of thirty, and
+ * the weather table only holds the forecast the app shows.
+ *
+ * Each packed day holds the weather id as a short and the six measurements as ints, all in the
+ * same encodings as the weather table.  A weather id of 0 marks a day that isn't there.
+ */
+final class WeatherArchive {
+
+    private static final String LOG_TAG = WeatherArchive.class.getSimpleName();
+
+    private static final int DAYS_PER_MONTH = 31;
+    private static final int MEASUREMENTS = 6;
+    private static final int BYTES_PER_DAY = 2 + 4 * MEASUREMENTS;
+
+    // The columns the archive keeps of a day, in the order they are packed
+    private static final String[] ARCHIVED_COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // What a history query returns, decoded as the weather URIs return them
+    static final String[] HISTORY_COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // Pages incremental_vacuum may free in one go, so one run can't hold the database for long
+    private static final int VACUUM_PAGES_PER_RUN = 256;
+
+    // PRAGMA auto_vacuum's value for INCREMENTAL
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    //location_id = ? AND month >= ? AND month <= ?
+    static final String sLocationIdAndMonthsSelection =
+            WeatherDbHelper.ARCHIVE_LOC_KEY + " = ? AND " +
+                    WeatherDbHelper.ARCHIVE_MONTH + " >= ? AND " +
+                    WeatherDbHelper.ARCHIVE_MONTH + " <= ? ";
+
+    private WeatherArchive() {
+    }
+
+    /**
+     * @return the Julian day of the first of the month the Julian day is in
+     */
+    static int monthStart(int julianDay) {
+        // The day of the month, by Richards' conversion of a Julian day to a Gregorian date
+        int a = julianDay + 32044;
+        int b = (4 * a + 3) / 146097;
+        int c = a - 146097 * b / 4;
+        int d = (4 * c + 3) / 1461;
+        int e = c - 1461 * d / 4;
+        int m = (5 * e + 2) / 153;
+        int dayOfMonth = e - (153 * m + 2) / 5 + 1;
+        return julianDay - (dayOfMonth - 1);
+    }
+
+    /**
+     * Moves every day before the given one from the weather table into the archive, merging
+     * them into the months already there.  Has to run in a transaction.
+     *
+     * @return the number of days moved
+     */
+    static int archiveBefore(SQLiteDatabase db, int julianDay) {
+        String[] dayArgs = {Integer.toString(julianDay)};
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME, ARCHIVED_COLUMNS,
+                WeatherEntry.COLUMN_DATE + " < ?", dayArgs, null, null,
+                WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE);
+        int moved = 0;
+        try {
+            long locationId = -1;
+            int month = -1;
+            ByteBuffer days = null;
+            while (cursor.moveToNext()) {
+                long dayLocationId = cursor.getLong(0);
+                int day = cursor.getInt(1);
+                if (dayLocationId != locationId || monthStart(day) != month) {
+                    if (days != null) {
+                        writeMonth(db, locationId, month, days);
+                    }
+                    locationId = dayLocationId;
+                    month = monthStart(day);
+                    days = readMonth(db, locationId, month);
+                }
+                days.position((day - month) * BYTES_PER_DAY);
+                days.putShort((short) cursor.getInt(2));
+                for (int i = 0; i < MEASUREMENTS; i++) {
+                    days.putInt(cursor.getInt(3 + i));
+                }
+                moved++;
+            }
+            if (days != null) {
+                writeMonth(db, locationId, month, days);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (moved > 0) {
+            db.delete(WeatherEntry.TABLE_NAME, WeatherEntry.COLUMN_DATE + " < ?", dayArgs);
+        }
+        return moved;
+    }
+
+    /**
+     * @return the month's packed days as stored, or an empty month if it isn't stored yet
+     */
+    private static ByteBuffer readMonth(SQLiteDatabase db, long locationId, int month) {
+        Cursor cursor = db.query(WeatherDbHelper.ARCHIVE_TABLE_NAME,
+                new String[]{WeatherDbHelper.ARCHIVE_DAYS},
+                WeatherDbHelper.ARCHIVE_LOC_KEY + " = ? AND " + WeatherDbHelper.ARCHIVE_MONTH + " = ?",
+                new String[]{Long.toString(locationId), Integer.toString(month)},
+                null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                return ByteBuffer.wrap(cursor.getBlob(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ByteBuffer.allocate(DAYS_PER_MONTH * BYTES_PER_DAY);
+    }
+
+    private static void writeMonth(SQLiteDatabase db, long locationId, int month, ByteBuffer days) {
+        ContentValues values = new ContentValues(3);
+        values.put(WeatherDbHelper.ARCHIVE_LOC_KEY, locationId);
+        values.put(WeatherDbHelper.ARCHIVE_MONTH, month);
+        values.put(WeatherDbHelper.ARCHIVE_DAYS, days.array());
+        db.insertWithOnConflict(WeatherDbHelper.ARCHIVE_TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Drops the months that end before the given day, keeping the one it is in whole.
+     *
+     * @return the number of months dropped
+     */
+    static int dropBefore(SQLiteDatabase db, int julianDay) {
+        return db.delete(WeatherDbHelper.ARCHIVE_TABLE_NAME, WeatherDbHelper.ARCHIVE_MONTH + " < ?",
+                new String[]{Integer.toString(monthStart(julianDay))});
+    }
+
+    /**
+     * Drops the months of locations that are gone.
+     *
+     * @return the number of months dropped
+     */
+    static int dropOrphans(SQLiteDatabase db) {
+        return db.delete(WeatherDbHelper.ARCHIVE_TABLE_NAME, WeatherDbHelper.ARCHIVE_LOC_KEY
+                + " NOT IN (SELECT " + WeatherContract.LocationEntry._ID
+                + " FROM " + WeatherContract.LocationEntry.TABLE_NAME + ")", null);
+    }
+
+    /**
+     * Hands the pages that archiving and dropping freed back to the file system, a few at a
+     * time.  The first run on a database created before the archive turns incremental vacuum
+     * on, which takes one full VACUUM.  Has to run outside a transaction.
+     */
+    static void vacuum(SQLiteDatabase db) {
+        try {
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                    != AUTO_VACUUM_INCREMENTAL) {
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+                return;
+            }
+            // Each page freed is a row of the pragma's result; execSQL would only step it once
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_RUN + ")",
+                    null);
+            try {
+                while (cursor.moveToNext()) {
+                    // freeing pages
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            // VACUUM can't run while another statement on the connection is; there's always
+            // the next run
+            Log.w(LOG_TAG, "Couldn't vacuum the database", e);
+        }
+    }
+
+    /**
+     * @param firstDay the first Julian day to return, or 0 for the first archived
+     * @param lastDay the last Julian day to return, or 0 for the last archived
+     * @return the location's archived days in the range, oldest first, decoded as the weather
+     * URIs return them
+     */
+    static Cursor query(SQLiteDatabase db, long locationId, int firstDay, int lastDay) {
+        MatrixCursor history = new MatrixCursor(HISTORY_COLUMNS);
+        if (locationId < 0) {
+            return history;
+        }
+        Map<Integer, String> descriptions = readDescriptions(db);
+        Cursor cursor = db.query(WeatherDbHelper.ARCHIVE_TABLE_NAME,
+                new String[]{WeatherDbHelper.ARCHIVE_MONTH, WeatherDbHelper.ARCHIVE_DAYS},
+                sLocationIdAndMonthsSelection,
+                new String[]{Long.toString(locationId),
+                        Integer.toString(firstDay > 0 ? monthStart(firstDay) : 0),
+                        Integer.toString(lastDay > 0 ? lastDay : Integer.MAX_VALUE)},
+                null, null, WeatherDbHelper.ARCHIVE_MONTH);
+        try {
+            while (cursor.moveToNext()) {
+                int month = cursor.getInt(0);
+                ByteBuffer days = ByteBuffer.wrap(cursor.getBlob(1));
+                for (int i = 0; i < DAYS_PER_MONTH; i++) {
+                    int day = month + i;
+                    days.position(i * BYTES_PER_DAY);
+                    int weatherId = days.getShort();
+                    if (weatherId == 0 || (firstDay > 0 && day < firstDay)
+                            || (lastDay > 0 && day > lastDay)) {
+                        continue;
+                    }
+                    Object[] row = new Object[HISTORY_COLUMNS.length];
+                    row[0] = locationId;
+                    row[1] = WeatherContract.fromJulianDay(day);
+                    row[2] = descriptions.get(weatherId);
+                    row[3] = weatherId;
+                    for (int j = 0; j < MEASUREMENTS; j++) {
+                        row[4 + j] = days.getInt() / (double) WeatherCodec.MEASUREMENT_SCALE;
+                    }
+                    history.addRow(row);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return history;
+    }
+
+    private static Map<Integer, String> readDescriptions(SQLiteDatabase db) {
+        Map<Integer, String> descriptions = new HashMap<Integer, String>();
+        Cursor cursor = db.query(WeatherDbHelper.CONDITION_TABLE_NAME,
+                new String[]{WeatherDbHelper.CONDITION_ID, WeatherDbHelper.CONDITION_DESCRIPTION},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                descriptions.put(cursor.getInt(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return descriptions;
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts weather rows between the values callers see, described in the contract, and what the
+ * weather table stores: a Julian day for the date, integer hundredths for the measurements, and
+ * the description in the condition table.
+ *
+ * The measurements and the description are decoded in SQL, by the projection.  The date can't
+ * be, as the start of a day depends on the time zone's rules, so the cursor decodes it.  What a
+ * selection compares the date and the measurements with is encoded instead, so that it compares
+ * like with like, and so are the weather URI's range parameters.
+ */
+final class WeatherCodec {
+
+    // Measurements are stored in hundredths
+    static final int MEASUREMENT_SCALE = 100;
+
+    static final String[] MEASUREMENT_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // (SELECT description FROM condition WHERE condition._id = weather.weather_id)
+    private static final String SHORT_DESC_LOOKUP = "(SELECT " +
+            WeatherDbHelper.CONDITION_DESCRIPTION +
+            " FROM " + WeatherDbHelper.CONDITION_TABLE_NAME +
+            " WHERE " + WeatherDbHelper.CONDITION_TABLE_NAME + "." + WeatherDbHelper.CONDITION_ID +
+            " = " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_WEATHER_ID + ")";
+
+    // What a null projection stands for: every weather column, decoded
+    private static final String[] ALL_WEATHER_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private WeatherCodec() {
+    }
+
+    static long encodeMeasurement(double value) {
+        return Math.round(value * MEASUREMENT_SCALE);
+    }
+
+    /**
+     * @return the values as the weather table stores them.  The description isn't among them;
+     * it goes to the condition table.
+     */
+    static ContentValues encode(ContentValues values, TimeZone timeZone) {
+        ContentValues encoded = new ContentValues(values.size());
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            String column = entry.getKey();
+            Object value = entry.getValue();
+            if (WeatherEntry.COLUMN_SHORT_DESC.equals(column)) {
+                continue;
+            }
+            if (value == null) {
+                encoded.putNull(column);
+            } else if (WeatherEntry.COLUMN_DATE.equals(column)) {
+                encoded.put(column, WeatherContract.toJulianDay(
+                        values.getAsLong(column), timeZone));
+            } else if (isMeasurement(column)) {
+                encoded.put(column, encodeMeasurement(values.getAsDouble(column)));
+            } else if (value instanceof Double || value instanceof Float) {
+                encoded.put(column, ((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                encoded.put(column, ((Number) value).longValue());
+            } else if (value instanceof byte[]) {
+                encoded.put(column, (byte[]) value);
+            } else {
+                encoded.put(column, value.toString());
+            }
+        }
+        return encoded;
+    }
+
+    private static boolean isMeasurement(String column) {
+        for (String measurement : MEASUREMENT_COLUMNS) {
+            if (measurement.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A selection on the weather table, and its arguments.
+     */
+    static final class Selection {
+        final String selection;
+        final String[] selectionArgs;
+
+        Selection(String selection, String[] selectionArgs) {
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+        }
+    }
+
+    // A literal, a quoted identifier, a ? argument, an identifier, a number, or an operator
+    private static final Pattern TOKEN = Pattern.compile(
+            "'(?:[^']|'')*'|\"(?:[^\"]|\"\")*\"|\\?\\d*"
+                    + "|[A-Za-z_][A-Za-z0-9_]*(?:\\.[A-Za-z_][A-Za-z0-9_]*)?"
+                    + "|(?:\\d+\\.?\\d*|\\.\\d+)(?:[eE][-+]?\\d+)?"
+                    + "|<=|>=|<>|!=|==|<<|>>|\\|\\||\\S");
+
+    private static class Token {
+        final String text;
+        final int start;
+        final int end;
+        // The index of the argument a ? stands for, or -1
+        final int arg;
+
+        Token(String text, int start, int end, int arg) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.arg = arg;
+        }
+
+        boolean is(String keyword) {
+            return text.equalsIgnoreCase(keyword);
+        }
+    }
+
+    /**
+     * Encodes the selection's comparisons of the date and the measurements, so that callers can
+     * go on selecting by normalized date and by degrees.  The ? arguments and whole numbers the
+     * date or a measurement is compared with -- by a comparison operator, BETWEEN or IN -- are
+     * encoded.  A measurement used any other way, in arithmetic or compared with anything else,
+     * is decoded in SQL instead.  The date can't be, so it can't be used that way.
+     *
+     * @return the selection and its arguments, encoded where they need to be
+     * @throws IllegalArgumentException if the selection uses the date in arithmetic, or an
+     * argument it encodes is missing or isn't a number
+     */
+    static Selection encodeSelection(String selection, String[] selectionArgs,
+                                     TimeZone timeZone) {
+        if (selection == null) {
+            return new Selection(null, selectionArgs);
+        }
+        List<Token> tokens = new ArrayList<Token>();
+        Matcher matcher = TOKEN.matcher(selection);
+        int nextArg = 0;
+        while (matcher.find()) {
+            String text = matcher.group();
+            int arg = -1;
+            if (text.startsWith("?")) {
+                arg = text.length() > 1 ? Integer.parseInt(text.substring(1)) - 1 : nextArg;
+                nextArg = Math.max(nextArg, arg + 1);
+            } else if (text.startsWith("\"")) {
+                // A quoted identifier is still the column it names
+                text = text.substring(1, text.length() - 1).replace("\"\"", "\"");
+            }
+            tokens.add(new Token(text, matcher.start(), matcher.end(), arg));
+        }
+
+        String[] encodedArgs = selectionArgs;
+        StringBuilder encoded = new StringBuilder(selection);
+        // Rewritten from the end, so the earlier tokens' offsets still hold
+        for (int i = tokens.size() - 1; i >= 0; i--) {
+            String column = column(tokens, i);
+            if (column == null) {
+                continue;
+            }
+            boolean isDate = WeatherEntry.COLUMN_DATE.equals(column);
+            List<Token> operands = comparedOperands(tokens, i);
+            if (operands == null) {
+                if (isDate) {
+                    throw new IllegalArgumentException("Compare the date only with ? arguments"
+                            + " or whole numbers: " + selection);
+                }
+                Token token = tokens.get(i);
+                encoded.replace(token.start, token.end, "(" + WeatherEntry.TABLE_NAME + "."
+                        + column + " / " + MEASUREMENT_SCALE + ".0)");
+                continue;
+            }
+            for (int j = operands.size() - 1; j >= 0; j--) {
+                Token operand = operands.get(j);
+                if (operand.arg < 0) {
+                    encoded.replace(operand.start, operand.end, encode(isDate, operand.text,
+                            timeZone));
+                    continue;
+                }
+                if (selectionArgs == null || operand.arg >= selectionArgs.length) {
+                    throw new IllegalArgumentException("Missing argument " + (operand.arg + 1)
+                            + " of " + selection);
+                }
+                if (encodedArgs == selectionArgs) {
+                    encodedArgs = selectionArgs.clone();
+                }
+                encodedArgs[operand.arg] = encode(isDate, selectionArgs[operand.arg], timeZone);
+            }
+        }
+        return new Selection(encoded.toString(), encodedArgs);
+    }
+
+    private static String encode(boolean isDate, String value, TimeZone timeZone) {
+        return isDate
+                ? Integer.toString(WeatherContract.toJulianDay(Long.parseLong(value), timeZone))
+                : Long.toString(encodeMeasurement(Double.parseDouble(value)));
+    }
+
+    /**
+     * @return the date or measurement column the token at i names, or null if it names neither,
+     * or is the date(), min() or max() function
+     */
+    private static String column(List<Token> tokens, int i) {
+        // SQLite's identifiers are case-insensitive, and the columns' names are lower case
+        String column = tokens.get(i).text.toLowerCase(Locale.US);
+        if (column.startsWith(WeatherEntry.TABLE_NAME + ".")) {
+            column = column.substring(WeatherEntry.TABLE_NAME.length() + 1);
+        }
+        if (!WeatherEntry.COLUMN_DATE.equals(column) && !isMeasurement(column)
+                || token(tokens, i + 1).is("(")) {
+            return null;
+        }
+        return column;
+    }
+
+    /**
+     * @return what the column at i is compared with, if it is compared on its own: the ?
+     * arguments and whole numbers on the other side of a comparison operator, BETWEEN or IN, or
+     * none for IS NULL.  Null if the column is part of an expression, or compared with anything
+     * else.
+     */
+    private static List<Token> comparedOperands(List<Token> tokens, int i) {
+        List<Token> operands = new ArrayList<Token>();
+        Token before = token(tokens, i - 1);
+        if (isComparison(before.text)) {
+            // ? op column
+            Token operand = token(tokens, i - 2);
+            if (!isOperand(operand) || isArithmetic(token(tokens, i - 3))
+                    || isArithmetic(token(tokens, i + 1))) {
+                return null;
+            }
+            operands.add(operand);
+            return operands;
+        }
+        if (isArithmetic(before)) {
+            return null;
+        }
+
+        int next = i + 1;
+        if (token(tokens, next).is("NOT")) {
+            next++;
+        }
+        Token operator = token(tokens, next++);
+        if (isComparison(operator.text) && next == i + 2) {
+            operands.add(token(tokens, next++));
+        } else if (operator.is("BETWEEN")) {
+            operands.add(token(tokens, next++));
+            if (!token(tokens, next++).is("AND")) {
+                return null;
+            }
+            operands.add(token(tokens, next++));
+        } else if (operator.is("IN") && token(tokens, next).is("(")) {
+            do {
+                operands.add(token(tokens, next + 1));
+                next += 2;
+            } while (token(tokens, next).is(","));
+            if (!token(tokens, next++).is(")")) {
+                return null;
+            }
+        } else if (operator.is("IS")) {
+            if (token(tokens, next).is("NOT")) {
+                next++;
+            }
+            return token(tokens, next).is("NULL") ? operands : null;
+        } else {
+            return null;
+        }
+        for (Token operand : operands) {
+            if (!isOperand(operand)) {
+                return null;
+            }
+        }
+        return isArithmetic(token(tokens, next)) ? null : operands;
+    }
+
+    private static final Token NO_TOKEN = new Token("", 0, 0, -1);
+
+    private static Token token(List<Token> tokens, int i) {
+        return i >= 0 && i < tokens.size() ? tokens.get(i) : NO_TOKEN;
+    }
+
+    // A ? argument, or a whole number
+    private static boolean isOperand(Token token) {
+        return token.arg >= 0 || token.text.matches("\\d+");
+    }
+
+    private static boolean isComparison(String operator) {
+        return operator.equals("=") || operator.equals("==") || operator.equals("!=")
+                || operator.equals("<>") || operator.equals("<") || operator.equals("<=")
+                || operator.equals(">") || operator.equals(">=");
+    }
+
+    private static boolean isArithmetic(Token token) {
+        String operator = token.text;
+        return operator.equals("+") || operator.equals("-") || operator.equals("*")
+                || operator.equals("/") || operator.equals("%") || operator.equals("||")
+                || operator.equals("&") || operator.equals("|") || operator.equals("<<")
+                || operator.equals(">>") || operator.equals("~") || token.is("COLLATE");
+    }
+
+    /**
+     * @param projection what the caller asked for, or null for everything
+     * @param withLocation whether the query joins the location table, whose columns a null
+     * projection then includes too
+     * @return the projection with each weather column that needs it replaced by the expression
+     * that decodes it
+     */
+    static String[] decodeProjection(String[] projection, boolean withLocation) {
+        if (projection == null) {
+            projection = ALL_WEATHER_COLUMNS;
+            if (withLocation) {
+                String[] all = new String[ALL_WEATHER_COLUMNS.length + 1];
+                System.arraycopy(ALL_WEATHER_COLUMNS, 0, all, 0, ALL_WEATHER_COLUMNS.length);
+                all[ALL_WEATHER_COLUMNS.length] = LocationEntry.TABLE_NAME + ".*";
+                projection = all;
+            }
+        }
+        String[] decoded = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            String name = column.startsWith(WeatherEntry.TABLE_NAME + ".")
+                    ? column.substring(WeatherEntry.TABLE_NAME.length() + 1) : column;
+            if (isMeasurement(name)) {
+                decoded[i] = WeatherEntry.TABLE_NAME + "." + name + " / "
+                        + MEASUREMENT_SCALE + ".0 AS " + name;
+            } else if (WeatherEntry.COLUMN_SHORT_DESC.equals(name)) {
+                decoded[i] = SHORT_DESC_LOOKUP + " AS " + name;
+            } else {
+                decoded[i] = column;
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * @param projection what the caller asked for, or null for everything
+     * @param sortOrder the caller's ORDER BY clause, or null
+     * @return whether a query with this projection and sort order reads any column of the
+     * location table, and so has to join it
+     */
+    static boolean referencesLocation(String[] projection, String sortOrder) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (referencesLocation(column)) {
+                return true;
+            }
+        }
+        return sortOrder != null && referencesLocation(sortOrder);
+    }
+
+    private static boolean referencesLocation(String sql) {
+        // Every identifier, qualified or not, in a column expression or an ORDER BY clause
+        for (String identifier : sql.split("[^A-Za-z0-9_.*]+")) {
+            if (identifier.startsWith(LocationEntry.TABLE_NAME + ".")) {
+                return true;
+            }
+            // The columns only the location table has
+            for (String[] column : WeatherDbHelper.LOCATION_COLUMNS) {
+                if (column[0].equals(identifier)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the cursor, with its date column returned as the start of the day in milliseconds
+     */
+    static Cursor decodeDates(Cursor cursor) {
+        int dateColumn = cursor.getColumnIndex(WeatherEntry.COLUMN_DATE);
+        return dateColumn < 0 ? cursor : new DateDecodingCursor(cursor, dateColumn);
+    }
+
+    private static class DateDecodingCursor extends CursorWrapper {
+        private final int mDateColumn;
+        private final TimeZone mTimeZone = TimeZone.getDefault();
+
+        DateDecodingCursor(Cursor cursor, int dateColumn) {
+            super(cursor);
+            mDateColumn = dateColumn;
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            if (columnIndex != mDateColumn || isNull(columnIndex)) {
+                return super.getLong(columnIndex);
+            }
+            return WeatherContract.fromJulianDay(super.getInt(columnIndex), mTimeZone);
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            return columnIndex != mDateColumn ? super.getInt(columnIndex) : (int) getLong(columnIndex);
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            return columnIndex != mDateColumn ? super.getDouble(columnIndex) : getLong(columnIndex);
+        }
+
+        @Override
+        public float getFloat(int columnIndex) {
+            return columnIndex != mDateColumn ? super.getFloat(columnIndex) : getLong(columnIndex);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex != mDateColumn || isNull(columnIndex)) {
+                return super.getString(columnIndex);
+            }
+            return Long.toString(getLong(columnIndex));
+        }
+    }
+}
@@ -15,11 +15,16 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.provider.BaseColumns;
-import android.text.format.Time;
+
+import java.util.TimeZone;
 
 /**
  * Defines table and column names for the weather database.
@@ -43,15 +48,123 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_HISTORY = "history";
+
+    // Methods for ContentResolver.call() on the provider, and the keys of the Bundles they return.
+    // Returns the most recent syncs, and how long they took.
+    public static final String METHOD_GET_SYNC_METRICS = "getSyncMetrics";
+    // int, how many syncs there are records for
+    public static final String SYNC_METRICS_COUNT = "count";
+    // long, median and 95th percentile of the total sync time, in milliseconds
+    public static final String SYNC_METRICS_P50_MS = "p50_ms";
+    public static final String SYNC_METRICS_P95_MS = "p95_ms";
+    // String, every record as a JSON array, oldest first
+    public static final String SYNC_METRICS_RECORDS = "records";
+    // Returns today's weather at the location setting passed as the argument, or null if there
+    // is none.  The keys are the WeatherEntry column names, each with its column's type: long
+    // for the location and date, int for the weather id, String for the description, and
+    // double for the measurements.  See getCurrentConditions.
+    public static final String METHOD_GET_CURRENT_CONDITIONS = "getCurrentConditions";
+    // Returns how often the provider was called for each URI match code and operation, how
+    // long the calls took, how many rows they returned or wrote, and who made them.
+    public static final String METHOD_GET_PROVIDER_STATS = "getProviderStats";
+    // Writes the same to the file named by the argument, in the app's files directory.  The
+    // argument is a file name, not a path.
+    public static final String METHOD_DUMP_PROVIDER_STATS = "dumpProviderStats";
+    // String, the stats as a JSON object
+    public static final String PROVIDER_STATS_JSON = "json";
+    // boolean, whether the file was written
+    public static final String PROVIDER_STATS_WRITTEN = "written";
+
+    /**
+     * Today's weather at the location, for callers that only want that one row.  Unlike a query,
+     * it doesn't build a join or a CursorWindow, and leaves nothing to close; the provider
+     * usually has the row in memory already.
+     *
+     * @return the weather, or null if there is none for today
+     */
+    public static WeatherRow getCurrentConditions(ContentResolver resolver,
+                                                  String locationSetting) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // No ContentResolver.call() before Honeycomb
+            return queryCurrentConditions(resolver, locationSetting);
+        }
+        return callCurrentConditions(resolver, locationSetting);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static WeatherRow callCurrentConditions(ContentResolver resolver,
+                                                    String locationSetting) {
+        Bundle conditions = resolver.call(BASE_CONTENT_URI, METHOD_GET_CURRENT_CONDITIONS,
+                locationSetting, null);
+        return conditions != null ? WeatherRow.fromBundle(conditions) : null;
+    }
+
+    private static WeatherRow queryCurrentConditions(ContentResolver resolver,
+                                                     String locationSetting) {
+        Cursor cursor = resolver.query(
+                WeatherEntry.buildWeatherLocationWithDate(locationSetting, System.currentTimeMillis()),
+                WeatherRow.COLUMNS, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? WeatherRow.fromCursor(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(startDate);
-        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        return normalizeDate(startDate, TimeZone.getDefault());
+    }
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    /**
+     * Same as {@link #normalizeDate(long)}, with the time zone looked up once by the caller
+     * rather than for every date.  Gives the same start of the day that Time.setJulianDay would,
+     * without allocating anything.
+     */
+    public static long normalizeDate(long startDate, TimeZone timeZone) {
+        return fromJulianDay(toJulianDay(startDate, timeZone), timeZone);
+    }
+
+    // The Julian day of January 1st, 1970
+    private static final int EPOCH_JULIAN_DAY = 2440588;
+
+    /**
+     * @return the Julian day of the date in the time zone, as Time.getJulianDay gives it.  This is
+     * how the weather table stores its dates.
+     */
+    public static int toJulianDay(long date, TimeZone timeZone) {
+        long localDate = date + timeZone.getOffset(date);
+        long days = localDate / DAY_IN_MILLIS;
+        if (localDate % DAY_IN_MILLIS < 0) {
+            // before 1970, the division rounds the wrong way
+            days--;
+        }
+        return (int) (days + EPOCH_JULIAN_DAY);
+    }
+
+    public static int toJulianDay(long date) {
+        return toJulianDay(date, TimeZone.getDefault());
+    }
+
+    /**
+     * @return the start of the Julian day in the time zone, as a normalized date
+     */
+    public static long fromJulianDay(int julianDay, TimeZone timeZone) {
+        long localMidnight = (julianDay - EPOCH_JULIAN_DAY) * DAY_IN_MILLIS;
+        // The offset at midnight, which isn't the one a moment later or earlier if daylight
+        // saving time starts or ends that night
+        return localMidnight - timeZone.getOffset(localMidnight - timeZone.getOffset(localMidnight));
+    }
+
+    public static long fromJulianDay(int julianDay) {
+        return fromJulianDay(julianDay, TimeZone.getDefault());
     }
 
     /* Inner class that defines the table contents of the location table */
@@ -81,6 +194,24 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // HTTP cache validators from the last forecast response for this location, so the
+        // next sync can ask openweathermap whether anything changed instead of downloading
+        // the whole forecast again.  Both are the raw header values and either may be null.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+        // When the forecast was last downloaded or revalidated, in milliseconds since the epoch
+        public static final String COLUMN_FETCHED_AT = "fetched_at";
+
+        // How long the server said that response stays fresh, in seconds (Cache-Control max-age)
+        public static final String COLUMN_MAX_AGE = "max_age";
+
+        // How many syncs in a row failed to download the forecast
+        public static final String COLUMN_FAILURE_COUNT = "failure_count";
+
+        // When periodic syncs may try again after a failure, in milliseconds since the epoch
+        public static final String COLUMN_RETRY_AFTER = "retry_after";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -97,41 +228,99 @@ public class WeatherContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEATHER;
 
+        // The weather table stores its rows compactly, and the provider decodes them on the way
+        // out: a query returns each column as described below.  The simplest way to select
+        // CONTENT_URI's rows by date or measurement is its range parameters; see
+        // buildWeatherWithDateRange and withMeasurementRange.  A selection takes its values as
+        // described below too: the provider encodes the ? arguments and whole numbers the date
+        // or a measurement is compared with, as in "date >= ?", "max BETWEEN ? AND ?" or
+        // "date IN (?, ?)", and decodes a measurement used any other way.  The date can only be
+        // compared, not used in arithmetic; the provider rejects a selection that does.
         public static final String TABLE_NAME = "weather";
 
         // Column with the foreign key into the location table.
         public static final String COLUMN_LOC_KEY = "location_id";
-        // Date, stored as long in milliseconds since the epoch
+        // Date, returned as a long in milliseconds since the epoch, normalized to the start of
+        // the day
         public static final String COLUMN_DATE = "date";
         // Weather id as returned by API, to identify the icon to be used
         public static final String COLUMN_WEATHER_ID = "weather_id";
 
         // Short description and long description of the weather, as provided by API.
-        // e.g "clear" vs "sky is clear".
+        // e.g "clear" vs "sky is clear".  Stored once per weather id, in the condition table.
         public static final String COLUMN_SHORT_DESC = "short_desc";
 
-        // Min and max temperatures for the day (stored as floats)
+        // The measurements are stored as integer hundredths, and returned as doubles.
+        // Min and max temperatures for the day
         public static final String COLUMN_MIN_TEMP = "min";
         public static final String COLUMN_MAX_TEMP = "max";
 
-        // Humidity is stored as a float representing percentage
+        // Humidity, returned as a double representing percentage
         public static final String COLUMN_HUMIDITY = "humidity";
 
-        // Humidity is stored as a float representing percentage
+        // Pressure, returned as a double in hPa
         public static final String COLUMN_PRESSURE = "pressure";
 
-        // Windspeed is stored as a float representing windspeed  mph
+        // Windspeed, returned as a double representing windspeed  mph
         public static final String COLUMN_WIND_SPEED = "wind";
 
-        // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
+        // Degrees are meteorological degrees (e.g, 0 is north, 180 is south), returned as a
+        // double
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Query parameters of a location's weather URI, besides the start date.  The last day
+        // to return, inclusive, as a normalized date; and how many days to return at most, the
+        // earliest first if the query is sorted by date.
+        public static final String PARAM_END_DATE = "end_date";
+        public static final String PARAM_LIMIT = "limit";
+
+        // Appended to a measurement column's name, the query parameters of CONTENT_URI that
+        // bound it, inclusive: max_from=20&max_to=25 selects the days whose maximum is from 20
+        // through 25 degrees.  Along with the start and end date, they select CONTENT_URI's
+        // rows by the values a query returns, however the table stores them.
+        public static final String PARAM_FROM_SUFFIX = "_from";
+        public static final String PARAM_TO_SUFFIX = "_to";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
+        /**
+         * @return the URI of every location's weather from the start date through the end date,
+         * either of which may be 0 for no bound
+         */
+        public static Uri buildWeatherWithDateRange(long startDate, long endDate) {
+            Uri.Builder builder = CONTENT_URI.buildUpon();
+            if (startDate != 0) {
+                builder.appendQueryParameter(COLUMN_DATE, Long.toString(normalizeDate(startDate)));
+            }
+            if (endDate != 0) {
+                builder.appendQueryParameter(PARAM_END_DATE, Long.toString(normalizeDate(endDate)));
+            }
+            return builder.build();
+        }
+
+        /**
+         * @param column one of the measurement columns, such as COLUMN_MAX_TEMP
+         * @return the weather URI, selecting only the days whose measurement is from through to,
+         * inclusive.  An infinite bound is left out.
+         */
+        public static Uri withMeasurementRange(Uri weatherUri, String column, double from,
+                                               double to) {
+            Uri.Builder builder = weatherUri.buildUpon();
+            if (!Double.isInfinite(from)) {
+                builder.appendQueryParameter(column + PARAM_FROM_SUFFIX, Double.toString(from));
+            }
+            if (!Double.isInfinite(to)) {
+                builder.appendQueryParameter(column + PARAM_TO_SUFFIX, Double.toString(to));
+            }
+            return builder.build();
+        }
+
         /*
             Student: This is the buildWeatherLocation function you filled in.
+            Without a start date, this includes the days that have passed and are still waiting
+            to be moved into the history; pass today's to read the forecast alone.
          */
         public static Uri buildWeatherLocation(String locationSetting) {
             return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
@@ -144,6 +333,26 @@ public class WeatherContract {
                     .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
         }
 
+        /**
+         * @return the URI of the location's weather from the start date through the end date
+         */
+        public static Uri buildWeatherLocationWithDateRange(
+                String locationSetting, long startDate, long endDate) {
+            return buildWeatherLocationWithStartDate(locationSetting, startDate).buildUpon()
+                    .appendQueryParameter(PARAM_END_DATE, Long.toString(normalizeDate(endDate)))
+                    .build();
+        }
+
+        /**
+         * @return the location's weather URI, returning no more than limit days.  Readers that
+         * want only the first few days can leave the rest in the database, rather than have
+         * them copied into the cursor's window.
+         */
+        public static Uri withLimit(Uri locationUri, int limit) {
+            return locationUri.buildUpon()
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
         public static Uri buildWeatherLocationWithDate(String locationSetting, long date) {
             return CONTENT_URI.buildUpon().appendPath(locationSetting)
                     .appendPath(Long.toString(normalizeDate(date))).build();
@@ -164,5 +373,71 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        /**
+         * @return the end date, or 0 if the URI has none
+         */
+        public static long getEndDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_END_DATE);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return 0;
+        }
+
+        /**
+         * @param param a measurement column followed by PARAM_FROM_SUFFIX or PARAM_TO_SUFFIX
+         * @return the bound, or NaN if the URI has none
+         */
+        public static double getMeasurementBoundFromUri(Uri uri, String param) {
+            String boundString = uri.getQueryParameter(param);
+            if (null != boundString && boundString.length() > 0)
+                return Double.parseDouble(boundString);
+            else
+                return Double.NaN;
+        }
+
+        /**
+         * @return the limit, or 0 if the URI has none
+         */
+        public static int getLimitFromUri(Uri uri) {
+            String limitString = uri.getQueryParameter(PARAM_LIMIT);
+            if (null != limitString && limitString.length() > 0)
+                return Integer.parseInt(limitString);
+            else
+                return 0;
+        }
+    }
+
+    /*
+        The days that have passed, at one location.  They move out of the weather table when the
+        history is compacted, and are kept for as long as the retention allows.  The rows have
+        WeatherEntry's columns, but for _id, and always come oldest first; days that haven't
+        been compacted yet are still on the weather URIs.
+     */
+    public static final class HistoryEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HISTORY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HISTORY;
+
+        public static Uri buildHistoryLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @return the URI of the location's history from the start date through the end date
+         */
+        public static Uri buildHistoryLocationWithDateRange(
+                String locationSetting, long startDate, long endDate) {
+            return buildHistoryLocation(locationSetting).buildUpon()
+                    .appendQueryParameter(WeatherEntry.COLUMN_DATE,
+                            Long.toString(normalizeDate(startDate)))
+                    .appendQueryParameter(WeatherEntry.PARAM_END_DATE,
+                            Long.toString(normalizeDate(endDate)))
+                    .build();
+        }
     }
 }
@@ -15,84 +15,277 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.text.TextUtils;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.TimeZone;
+
 /**
  * Manages a local database for weather data.
+ *
+ * The database runs in write-ahead logging mode where the platform supports it.  Readers then get
+ * connections of their own from the framework's pool and read the last committed state while a
+ * sync holds its write transaction, instead of waiting for it to finish.  The size of that pool
+ * is set by the platform.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    // If you change the database schema, you must increment the database version, and add the
+    // step from the previous version to upgradeTo.
+    static final int DATABASE_VERSION = 7;
+
+    // The oldest version upgradeTo knows how to build on.  Anything older is dropped and created
+    // anew.
+    static final int OLDEST_UPGRADABLE_VERSION = 2;
+
+    // Serves every lookup of one location's forecast, by day or from a day on.  The UNIQUE
+    // constraint's index leads with the date, which only helps when deleting old days.
+    static final String WEATHER_LOCATION_DATE_INDEX = "weather_location_date";
 
     static final String DATABASE_NAME = "weather.db";
 
+    // The location table's columns besides its _id, and how each is declared.  The table is
+    // created from this list, and WeatherCodec reads it to tell which queries need the location
+    // table, so a column added here can't be missed by either.
+    static final String[][] LOCATION_COLUMNS = {
+            {LocationEntry.COLUMN_LOCATION_SETTING, "TEXT UNIQUE NOT NULL"},
+            {LocationEntry.COLUMN_CITY_NAME, "TEXT NOT NULL"},
+            {LocationEntry.COLUMN_COORD_LAT, "REAL NOT NULL"},
+            {LocationEntry.COLUMN_COORD_LONG, "REAL NOT NULL"},
+            {LocationEntry.COLUMN_ETAG, "TEXT"},
+            {LocationEntry.COLUMN_LAST_MODIFIED, "TEXT"},
+            {LocationEntry.COLUMN_FETCHED_AT, "INTEGER NOT NULL DEFAULT 0"},
+            {LocationEntry.COLUMN_MAX_AGE, "INTEGER NOT NULL DEFAULT 0"},
+            {LocationEntry.COLUMN_FAILURE_COUNT, "INTEGER NOT NULL DEFAULT 0"},
+            {LocationEntry.COLUMN_RETRY_AFTER, "INTEGER NOT NULL DEFAULT 0"}
+    };
+
+    // The condition table is the provider's own business, so it isn't in the contract
+    static final String CONDITION_TABLE_NAME = "condition";
+    static final String CONDITION_ID = "_id";
+    static final String CONDITION_DESCRIPTION = "description";
+
+    // The days that have passed, a month of one location's to a row.  WeatherArchive packs and
+    // unpacks them; the provider's history URI reads them.
+    static final String ARCHIVE_TABLE_NAME = "weather_archive";
+    static final String ARCHIVE_LOC_KEY = "location_id";
+    // The Julian day of the first of the month
+    static final String ARCHIVE_MONTH = "month";
+    static final String ARCHIVE_DAYS = "days";
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Jelly Bean and up turn it on in the constructor, before the database is opened
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
         // Create a table to hold locations.  A location consists of the string supplied in the
         // location setting, the city name, and the latitude and longitude
-        final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
-                LocationEntry._ID + " INTEGER PRIMARY KEY," +
-                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
-                LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
-                " );";
-
-        final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
-                // Why AutoIncrement here, and not above?
-                // Unique keys will be auto-generated in either case.  But for weather
-                // forecasting, it's reasonable to assume the user will want information
-                // for a certain date and all dates *following*, so the forecast data
-                // should be sorted accordingly.
-                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-
-                // the ID of the location entry associated with this weather data
-                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
-                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
-
-                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
-
-                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
-
-                // Set up the location column as a foreign key to location table.
-                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
-                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
-
-                // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
-
-        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
+        final StringBuilder createLocationTable = new StringBuilder("CREATE TABLE " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + " INTEGER PRIMARY KEY");
+        for (String[] column : LOCATION_COLUMNS) {
+            createLocationTable.append(", ").append(column[0]).append(" ").append(column[1]);
+        }
+        createLocationTable.append(");");
+
+        sqLiteDatabase.execSQL(createLocationTable.toString());
+        sqLiteDatabase.execSQL(SQL_CREATE_CONDITION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_TABLE);
     }
 
+    // The description of each weather id, so that the weather rows don't each repeat it
+    private static final String SQL_CREATE_CONDITION_TABLE = "CREATE TABLE " +
+            CONDITION_TABLE_NAME + " (" +
+            // the weather id
+            CONDITION_ID + " INTEGER PRIMARY KEY, " +
+            CONDITION_DESCRIPTION + " TEXT NOT NULL);";
+
+    // Rows are kept small, so that more of them fit a page and a CursorWindow: the date is a
+    // Julian day rather than milliseconds, the measurements are integer hundredths rather than
+    // floating point, and the description is in the condition table.  WeatherCodec converts.
+    private static final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+            // Why AutoIncrement here, and not above?
+            // Unique keys will be auto-generated in either case.  But for weather
+            // forecasting, it's reasonable to assume the user will want information
+            // for a certain date and all dates *following*, so the forecast data
+            // should be sorted accordingly.
+            WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+
+            // the ID of the location entry associated with this weather data
+            WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+
+            WeatherEntry.COLUMN_MIN_TEMP + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " INTEGER NOT NULL, " +
+
+            WeatherEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_DEGREES + " INTEGER NOT NULL, " +
+
+            // Set up the location column as a foreign key to location table.
+            " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+            // To assure the application have just one weather entry per day
+            // per location, it's created a UNIQUE constraint with REPLACE strategy
+            " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+
+    private static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX = "CREATE INDEX " +
+            WEATHER_LOCATION_DATE_INDEX + " ON " + WeatherEntry.TABLE_NAME + " (" +
+            WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ");";
+
+    // WITHOUT ROWID would save the rowid, but needs SQLite 3.8.2, newer than older devices have
+    private static final String SQL_CREATE_ARCHIVE_TABLE = "CREATE TABLE " +
+            ARCHIVE_TABLE_NAME + " (" +
+            ARCHIVE_LOC_KEY + " INTEGER NOT NULL, " +
+            ARCHIVE_MONTH + " INTEGER NOT NULL, " +
+            ARCHIVE_DAYS + " BLOB NOT NULL, " +
+            " PRIMARY KEY (" + ARCHIVE_LOC_KEY + ", " + ARCHIVE_MONTH + "));";
+
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        // The database is only a cache for online data, but losing it means every user fetches
+        // every location again at once and looks at an empty list until then.  So each version
+        // is built from the one before it, keeping the rows.  The framework runs all of this in
+        // one transaction.
+        if (oldVersion < OLDEST_UPGRADABLE_VERSION) {
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CONDITION_TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ARCHIVE_TABLE_NAME);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            upgradeTo(sqLiteDatabase, version);
+        }
+    }
+
+    /**
+     * Changes the schema of the version before into this version.
+     */
+    private static void upgradeTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 3:
+                // The validators for conditional requests
+                addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_ETAG, "TEXT");
+                addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_LAST_MODIFIED, "TEXT");
+                addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_FETCHED_AT,
+                        "INTEGER NOT NULL DEFAULT 0");
+                addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_MAX_AGE,
+                        "INTEGER NOT NULL DEFAULT 0");
+                break;
+            case 4:
+                // The backoff after failed fetches
+                addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_FAILURE_COUNT,
+                        "INTEGER NOT NULL DEFAULT 0");
+                addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_RETRY_AFTER,
+                        "INTEGER NOT NULL DEFAULT 0");
+                break;
+            case 5:
+                db.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+                break;
+            case 6:
+                upgradeToCompactWeather(db);
+                break;
+            case 7:
+                // Past days are kept there from now on; those still in the weather table move
+                // there the next time the history is compacted
+                db.execSQL(SQL_CREATE_ARCHIVE_TABLE);
+                break;
+            default:
+                throw new IllegalStateException("No upgrade to database version " + version);
+        }
+    }
+
+    /**
+     * Moves the descriptions into the condition table, and rewrites every weather row with a
+     * Julian day and integer measurements.  The rows keep their _id.
+     */
+    private static void upgradeToCompactWeather(SQLiteDatabase db) {
+        final String oldTable = WeatherEntry.TABLE_NAME + "_v5";
+        db.execSQL(SQL_CREATE_CONDITION_TABLE);
+        db.execSQL("INSERT OR IGNORE INTO " + CONDITION_TABLE_NAME +
+                " (" + CONDITION_ID + ", " + CONDITION_DESCRIPTION + ")" +
+                " SELECT " + WeatherEntry.COLUMN_WEATHER_ID + ", " + WeatherEntry.COLUMN_SHORT_DESC +
+                " FROM " + WeatherEntry.TABLE_NAME);
+
+        // The index moves along with the table, name and all
+        db.execSQL("DROP INDEX " + WEATHER_LOCATION_DATE_INDEX);
+        db.execSQL("ALTER TABLE " + WeatherEntry.TABLE_NAME + " RENAME TO " + oldTable);
+        db.execSQL(SQL_CREATE_WEATHER_TABLE);
+
+        final String[] columns = {
+                WeatherEntry._ID,
+                WeatherEntry.COLUMN_LOC_KEY,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherEntry.COLUMN_MIN_TEMP,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherEntry.COLUMN_HUMIDITY,
+                WeatherEntry.COLUMN_PRESSURE,
+                WeatherEntry.COLUMN_WIND_SPEED,
+                WeatherEntry.COLUMN_DEGREES
+        };
+        StringBuilder insert = new StringBuilder("INSERT INTO ")
+                .append(WeatherEntry.TABLE_NAME).append(" (")
+                .append(TextUtils.join(", ", columns)).append(") VALUES (?");
+        for (int i = 1; i < columns.length; i++) {
+            insert.append(", ?");
+        }
+        SQLiteStatement statement = db.compileStatement(insert.append(")").toString());
+        TimeZone timeZone = TimeZone.getDefault();
+        Cursor cursor = db.query(oldTable, columns, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                statement.bindLong(1, cursor.getLong(0));
+                statement.bindLong(2, cursor.getLong(1));
+                statement.bindLong(3, WeatherContract.toJulianDay(cursor.getLong(2), timeZone));
+                statement.bindLong(4, cursor.getLong(3));
+                for (int i = 4; i < columns.length; i++) {
+                    statement.bindLong(i + 1, WeatherCodec.encodeMeasurement(cursor.getDouble(i)));
+                }
+                statement.executeInsert();
+            }
+        } finally {
+            cursor.close();
+            statement.close();
+        }
+
+        db.execSQL("DROP TABLE " + oldTable);
+        db.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+    }
+
+    private static void addColumn(SQLiteDatabase db, String table, String column, String type) {
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
     }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.TimeZone;
+
+/**
+ * An INSERT into the weather table compiled once and bound again for every row, rather than
+ * built and compiled anew for each one as SQLiteDatabase.insert does.  Meant to be used for one
+ * batch, inside its transaction, and closed afterwards.
+ */
+class WeatherInsertStatement {
+    private static final String LOG_TAG = WeatherInsertStatement.class.getSimpleName();
+
+    // Every stored column but _id, in the order they are bound
+    private static final String[] COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final int INDEX_LOC_KEY = 1;
+    private static final int INDEX_DATE = 2;
+    private static final int INDEX_WEATHER_ID = 3;
+    private static final int INDEX_MIN_TEMP = 4;
+    private static final int INDEX_MAX_TEMP = 5;
+    private static final int INDEX_HUMIDITY = 6;
+    private static final int INDEX_PRESSURE = 7;
+    private static final int INDEX_WIND_SPEED = 8;
+    private static final int INDEX_DEGREES = 9;
+
+    private static final String SQL;
+
+    static {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(WeatherEntry.TABLE_NAME).append(" (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(COLUMNS[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        SQL = sql.append(")").toString();
+    }
+
+    private final SQLiteDatabase mDb;
+    private final SQLiteStatement mStatement;
+    private final ConditionDictionary mConditions;
+    // Looked up once, as TimeZone.getDefault() makes a copy every time
+    private final TimeZone mTimeZone = TimeZone.getDefault();
+
+    WeatherInsertStatement(SQLiteDatabase db, ConditionDictionary conditions) {
+        mDb = db;
+        mConditions = conditions;
+        mStatement = db.compileStatement(SQL);
+    }
+
+    /**
+     * Inserts the values, with their date normalized in place, and their description into the
+     * condition table.
+     *
+     * @return the row ID of the new row, or -1 if it couldn't be inserted
+     */
+    long insert(ContentValues values) {
+        Long date = values.getAsLong(WeatherEntry.COLUMN_DATE);
+        if (date != null) {
+            values.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(date, mTimeZone));
+        }
+        mConditions.put(mDb, values);
+        ContentValues encoded = WeatherCodec.encode(values, mTimeZone);
+        if (encoded.size() != COLUMNS.length || encoded.containsKey(WeatherEntry._ID)) {
+            // Missing or extra columns; leave it to the general path to deal with them
+            return mDb.insert(WeatherEntry.TABLE_NAME, null, encoded);
+        }
+        for (int i = 0; i < COLUMNS.length; i++) {
+            DatabaseUtils.bindObjectToProgram(mStatement, i + 1, encoded.get(COLUMNS[i]));
+        }
+        return execute();
+    }
+
+    /**
+     * Inserts the row, and its description into the condition table.  Its date is normalized on
+     * the way in, but left as it is in the row.
+     *
+     * @return the row ID of the new row, or -1 if it couldn't be inserted
+     */
+    long insert(WeatherRow row) {
+        mConditions.put(mDb, row.weatherId, row.shortDesc);
+        mStatement.bindLong(INDEX_LOC_KEY, row.locationId);
+        mStatement.bindLong(INDEX_DATE, WeatherContract.toJulianDay(row.date, mTimeZone));
+        mStatement.bindLong(INDEX_WEATHER_ID, row.weatherId);
+        mStatement.bindLong(INDEX_MIN_TEMP, WeatherCodec.encodeMeasurement(row.minTemp));
+        mStatement.bindLong(INDEX_MAX_TEMP, WeatherCodec.encodeMeasurement(row.maxTemp));
+        mStatement.bindLong(INDEX_HUMIDITY, WeatherCodec.encodeMeasurement(row.humidity));
+        mStatement.bindLong(INDEX_PRESSURE, WeatherCodec.encodeMeasurement(row.pressure));
+        mStatement.bindLong(INDEX_WIND_SPEED, WeatherCodec.encodeMeasurement(row.windSpeed));
+        mStatement.bindLong(INDEX_DEGREES, WeatherCodec.encodeMeasurement(row.degrees));
+        return execute();
+    }
+
+    void close() {
+        mStatement.close();
+    }
+
+    /**
+     * Runs the bound insert.  Like SQLiteDatabase.insert, a row that breaks a constraint is
+     * logged and skipped rather than thrown.
+     */
+    private long execute() {
+        try {
+            return mStatement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting a weather row", e);
+            return -1;
+        } finally {
+            mStatement.clearBindings();
+        }
+    }
+}
@@ -17,25 +17,113 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class WeatherProvider extends ContentProvider {
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // The _id of each location setting seen so far, so that weather can be looked up by location
+    // without joining the location table.  Forgotten whenever a location is deleted or its
+    // setting changed, and when a transaction that may have inserted one rolls back.
+    private final Map<String, Long> mLocationIds = new ConcurrentHashMap<String, Long>();
+
+    // The descriptions stored in the condition table, forgotten when a transaction rolls back
+    private final ConditionDictionary mConditions = new ConditionDictionary();
+
+    // Runs every write, grouping the writes that arrive together into one transaction
+    private WriteQueue mWriteQueue;
+
+    // On the writer thread, what the writes in its transaction changed, to be announced once it
+    // commits
+    private final ThreadLocal<Changes> mBatchChanges = new ThreadLocal<Changes>();
+
+    // How often each URI is queried and written, and how long that takes
+    private final ProviderStats mStats = new ProviderStats(this);
+
+    /**
+     * What a write changed, so that only the observers of what it touched hear about it.
+     */
+    private static class Changes {
+        // The tables changed, other than weather
+        final Set<Uri> tableUris = new LinkedHashSet<Uri>();
+        // For each location whose weather changed, the Julian days that did.  ALL_LOCATIONS for
+        // a write that may have touched any location, ANY_DAY for one that may have touched any
+        // of its days.
+        final Map<Long, Set<Integer>> weatherDays = new HashMap<Long, Set<Integer>>();
+
+        void weatherChanged(long locationId, int julianDay) {
+            Set<Integer> days = weatherDays.get(locationId);
+            if (days == null) {
+                days = new HashSet<Integer>();
+                weatherDays.put(locationId, days);
+            }
+            days.add(julianDay);
+        }
+
+        /**
+         * Notes the location and day of the weather values, as far as they give them
+         */
+        void weatherChanged(ContentValues values) {
+            Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            weatherChanged(getLocationKey(values),
+                    date != null ? WeatherContract.toJulianDay(date) : ANY_DAY);
+        }
+
+        void addAll(Changes changes) {
+            tableUris.addAll(changes.tableUris);
+            for (Map.Entry<Long, Set<Integer>> entry : changes.weatherDays.entrySet()) {
+                for (int julianDay : entry.getValue()) {
+                    weatherChanged(entry.getKey(), julianDay);
+                }
+            }
+        }
+    }
+
+    // Stands for every location, when a write's selection may have touched any of them
+    private static final long ALL_LOCATIONS = -1;
+    // Stands for every day of a location
+    private static final int ANY_DAY = -1;
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int HISTORY_WITH_LOCATION = 400;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -52,45 +140,98 @@ public class WeatherProvider extends ContentProvider {
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
+    //location.location_setting = ? AND date <= ?
+    static final String sLocationSettingWithEndDateSelection =
+            WeatherContract.LocationEntry.TABLE_NAME+
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    //location.location_setting = ? AND date >= ? AND date <= ?
+    static final String sLocationSettingWithDateRangeSelection =
+            WeatherContract.LocationEntry.TABLE_NAME+
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //weather.location_id = ?
+    static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //weather.location_id = ? AND date <= ?
+    static final String sLocationIdWithEndDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    //weather.location_id = ? AND date >= ? AND date <= ?
+    static final String sLocationIdWithDateRangeSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    //weather.location_id = ? AND date = ?
+    static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long endDate = WeatherContract.WeatherEntry.getEndDateFromUri(uri);
+        int limit = WeatherContract.WeatherEntry.getLimitFromUri(uri);
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        // Without a location column to read, the weather table is queried by the location's _id
+        // alone, rather than joined to the location table to match its setting
+        boolean join = WeatherCodec.referencesLocation(projection, sortOrder);
+        String location = join ? locationSetting : Long.toString(getLocationId(db, locationSetting));
 
         String[] selectionArgs;
         String selection;
 
-        if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
+        if (startDate == 0 && endDate == 0) {
+            selection = join ? sLocationSettingSelection : sLocationIdSelection;
+            selectionArgs = new String[]{location};
+        } else if (endDate == 0) {
+            selectionArgs = new String[]{location,
+                    Integer.toString(WeatherContract.toJulianDay(startDate))};
+            selection = join ? sLocationSettingWithStartDateSelection
+                    : sLocationIdWithStartDateSelection;
+        } else if (startDate == 0) {
+            selectionArgs = new String[]{location,
+                    Integer.toString(WeatherContract.toJulianDay(endDate))};
+            selection = join ? sLocationSettingWithEndDateSelection
+                    : sLocationIdWithEndDateSelection;
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+            selectionArgs = new String[]{location,
+                    Integer.toString(WeatherContract.toJulianDay(startDate)),
+                    Integer.toString(WeatherContract.toJulianDay(endDate))};
+            selection = join ? sLocationSettingWithDateRangeSelection
+                    : sLocationIdWithDateRangeSelection;
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                sortOrder
-        );
+        return queryWeather(db, join, projection, selection, selectionArgs, sortOrder,
+                limit > 0 ? Integer.toString(limit) : null);
     }
 
     private Cursor getWeatherByLocationSettingAndDate(
@@ -98,14 +239,102 @@ public class WeatherProvider extends ContentProvider {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
-                null,
-                null,
-                sortOrder
-        );
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        boolean join = WeatherCodec.referencesLocation(projection, sortOrder);
+        String location = join ? locationSetting : Long.toString(getLocationId(db, locationSetting));
+
+        return queryWeather(db, join, projection,
+                join ? sLocationSettingAndDaySelection : sLocationIdAndDaySelection,
+                new String[]{location, Integer.toString(WeatherContract.toJulianDay(date))},
+                sortOrder, null);
+    }
+
+    /**
+     * Queries the weather table, joined to the location table or on its own, decoding what it
+     * returns.  An unknown location's _id of -1 matches no rows.
+     */
+    private static Cursor queryWeather(SQLiteDatabase db, boolean join, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder, String limit) {
+        Cursor cursor;
+        if (join) {
+            cursor = sWeatherByLocationSettingQueryBuilder.query(db,
+                    WeatherCodec.decodeProjection(projection, true),
+                    selection, selectionArgs, null, null, sortOrder, limit);
+        } else {
+            cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                    WeatherCodec.decodeProjection(projection, false),
+                    selection, selectionArgs, null, null, sortOrder, limit);
+        }
+        return WeatherCodec.decodeDates(cursor);
+    }
+
+    private Cursor getHistoryByLocationSetting(Uri uri) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long endDate = WeatherContract.WeatherEntry.getEndDateFromUri(uri);
+        return WeatherArchive.query(db,
+                getLocationId(db, WeatherContract.WeatherEntry.getLocationSettingFromUri(uri)),
+                startDate != 0 ? WeatherContract.toJulianDay(startDate) : 0,
+                endDate != 0 ? WeatherContract.toJulianDay(endDate) : 0);
+    }
+
+    /**
+     * @return the caller's selection, with the date and measurement ranges of the URI added to
+     * it, encoded as the table stores them
+     * @throws IllegalArgumentException if the caller's selection uses the date in a way that
+     * can't be encoded
+     */
+    private static WeatherCodec.Selection selectWeather(Uri uri, String selection,
+                                                        String[] selectionArgs) {
+        WeatherCodec.Selection encoded =
+                WeatherCodec.encodeSelection(selection, selectionArgs, TimeZone.getDefault());
+        StringBuilder where = new StringBuilder();
+        List<String> args = new ArrayList<String>();
+        if (encoded.selection != null) {
+            where.append('(').append(encoded.selection).append(')');
+        }
+        if (encoded.selectionArgs != null) {
+            args.addAll(Arrays.asList(encoded.selectionArgs));
+        }
+
+        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        if (startDate != 0) {
+            appendBound(where, args, WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                    Integer.toString(WeatherContract.toJulianDay(startDate)));
+        }
+        long endDate = WeatherContract.WeatherEntry.getEndDateFromUri(uri);
+        if (endDate != 0) {
+            appendBound(where, args, WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                    Integer.toString(WeatherContract.toJulianDay(endDate)));
+        }
+        for (String column : WeatherCodec.MEASUREMENT_COLUMNS) {
+            double from = WeatherContract.WeatherEntry.getMeasurementBoundFromUri(
+                    uri, column + WeatherContract.WeatherEntry.PARAM_FROM_SUFFIX);
+            if (!Double.isNaN(from)) {
+                appendBound(where, args, column + " >= ?",
+                        Long.toString(WeatherCodec.encodeMeasurement(from)));
+            }
+            double to = WeatherContract.WeatherEntry.getMeasurementBoundFromUri(
+                    uri, column + WeatherContract.WeatherEntry.PARAM_TO_SUFFIX);
+            if (!Double.isNaN(to)) {
+                appendBound(where, args, column + " <= ?",
+                        Long.toString(WeatherCodec.encodeMeasurement(to)));
+            }
+        }
+
+        if (where.length() == 0) {
+            return encoded;
+        }
+        return new WeatherCodec.Selection(where.toString(), args.toArray(new String[args.size()]));
+    }
+
+    private static void appendBound(StringBuilder where, List<String> args, String bound,
+                                    String arg) {
+        if (where.length() > 0) {
+            where.append(" AND ");
+        }
+        where.append(bound);
+        args.add(arg);
     }
 
     /*
@@ -130,6 +359,7 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY + "/*", HISTORY_WITH_LOCATION);
         return matcher;
     }
 
@@ -140,6 +370,27 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        mWriteQueue = new WriteQueue(mOpenHelper, new WriteQueue.Listener() {
+            @Override
+            public void onGroupStarted() {
+                mBatchChanges.set(new Changes());
+            }
+
+            @Override
+            public void onGroupCommitted() {
+                Changes changes = mBatchChanges.get();
+                mBatchChanges.remove();
+                announce(changes);
+            }
+
+            @Override
+            public void onGroupRolledBack() {
+                mBatchChanges.remove();
+                // Any location or description the writes inserted is gone again
+                mLocationIds.clear();
+                mConditions.clear();
+            }
+        });
         return true;
     }
 
@@ -164,6 +415,8 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case HISTORY_WITH_LOCATION:
+                return WeatherContract.HistoryEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -174,8 +427,10 @@ public class WeatherProvider extends ContentProvider {
                         String sortOrder) {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
+        final long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
@@ -189,15 +444,17 @@ public class WeatherProvider extends ContentProvider {
             }
             // "weather"
             case WEATHER: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
+                WeatherCodec.Selection weatherSelection =
+                        selectWeather(uri, selection, selectionArgs);
+                retCursor = WeatherCodec.decodeDates(mOpenHelper.getReadableDatabase().query(
                         WeatherContract.WeatherEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
+                        WeatherCodec.decodeProjection(projection, false),
+                        weatherSelection.selection,
+                        weatherSelection.selectionArgs,
                         null,
                         null,
                         sortOrder
-                );
+                ));
                 break;
             }
             // "location"
@@ -213,74 +470,169 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "history/*"
+            case HISTORY_WITH_LOCATION: {
+                retCursor = getHistoryByLocationSetting(uri);
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         retCursor.setNotificationUri(getContext().getContentResolver(), uri);
-        return retCursor;
+        // The rows are counted once the caller reads them
+        mStats.record(match, ProviderStats.QUERY, start, 0);
+        return mStats.countRows(match, retCursor);
     }
 
     /*
         Student: Add the ability to insert Locations to the implementation of this function.
      */
     @Override
-    public Uri insert(Uri uri, ContentValues values) {
+    public Uri insert(final Uri uri, final ContentValues values) {
+        final long start = System.nanoTime();
+        Uri returnUri = write(new Callable<Uri>() {
+            @Override
+            public Uri call() {
+                return insertOnWriter(uri, values);
+            }
+        });
+        mStats.record(sUriMatcher.match(uri), ProviderStats.INSERT, start, 1);
+        return returnUri;
+    }
+
+    private Uri insertOnWriter(Uri uri, ContentValues values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
+        Changes changes = new Changes();
 
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id = insertWeather(db, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                changes.weatherChanged(values);
                 break;
             }
             case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                long _id = insertLocation(db, values);
+                boolean inserted = _id != -1;
+                String locationSetting =
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                if (!inserted && locationSetting != null) {
+                    // Already stored, and left as it is
+                    _id = getLocationId(db, locationSetting);
+                }
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                // A location that was already there changed nothing to tell anyone about
+                if (inserted) {
+                    changes.tableUris.add(WeatherContract.LocationEntry.CONTENT_URI);
+                }
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        publish(changes);
         return returnUri;
     }
 
     @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
+    public int delete(final Uri uri, final String selection, final String[] selectionArgs) {
+        final long start = System.nanoTime();
+        int rowsDeleted = write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return deleteOnWriter(uri, selection, selectionArgs);
+            }
+        });
+        mStats.record(sUriMatcher.match(uri), ProviderStats.DELETE, start, rowsDeleted);
+        return rowsDeleted;
+    }
+
+    private int deleteOnWriter(Uri uri, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        Changes changes = new Changes();
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+            case WEATHER: {
+                WeatherCodec.Selection weatherSelection =
+                        selectWeather(uri, selection, selectionArgs);
+                rowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                        weatherSelection.selection, weatherSelection.selectionArgs);
+                if (rowsDeleted != 0) {
+                    changes.weatherChanged(ALL_LOCATIONS, ANY_DAY);
+                }
                 break;
+            }
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    mLocationIds.clear();
+                    changes.tableUris.add(WeatherContract.LocationEntry.CONTENT_URI);
+                    // Their weather no longer joins to them
+                    changes.weatherChanged(ALL_LOCATIONS, ANY_DAY);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            publish(changes);
         }
         return rowsDeleted;
     }
 
+    /**
+     * Inserts the weather row, and its description into the condition table.
+     *
+     * @return the _id of the new row, or -1 if it couldn't be inserted
+     */
+    private long insertWeather(SQLiteDatabase db, ContentValues values) {
+        db.beginTransaction();
+        try {
+            mConditions.put(db, values);
+            long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                    WeatherCodec.encode(values, TimeZone.getDefault()));
+            db.setTransactionSuccessful();
+            return _id;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Updates the selected weather rows, and stores the description of the weather id if the
+     * values give both and the id has none yet.
+     *
+     * @return the number of rows updated
+     */
+    private int updateWeather(SQLiteDatabase db, ContentValues values, String selection,
+                              String[] selectionArgs) {
+        db.beginTransaction();
+        try {
+            mConditions.put(db, values);
+            int rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME,
+                    WeatherCodec.encode(values, TimeZone.getDefault()), selection, selectionArgs);
+            db.setTransactionSuccessful();
+            return rowsUpdated;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     private void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
@@ -290,64 +642,551 @@ public class WeatherProvider extends ContentProvider {
     }
 
     @Override
-    public int update(
+    public int update(final Uri uri, final ContentValues values, final String selection,
+                      final String[] selectionArgs) {
+        final long start = System.nanoTime();
+        int rowsUpdated = write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return updateOnWriter(uri, values, selection, selectionArgs);
+            }
+        });
+        mStats.record(sUriMatcher.match(uri), ProviderStats.UPDATE, start, rowsUpdated);
+        return rowsUpdated;
+    }
+
+    private int updateOnWriter(
             Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsUpdated;
+        Changes changes = new Changes();
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                WeatherCodec.Selection weatherSelection =
+                        selectWeather(uri, selection, selectionArgs);
+                rowsUpdated = updateWeather(db, values, weatherSelection.selection,
+                        weatherSelection.selectionArgs);
+                if (rowsUpdated != 0) {
+                    changes.weatherChanged(ALL_LOCATIONS, ANY_DAY);
+                }
+                break;
+            }
+            // "weather/*/#"
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                rowsUpdated = upsertWeatherForDay(db, uri, values);
+                if (rowsUpdated != 0) {
+                    // The upsert filled in the location and the day
+                    changes.weatherChanged(values);
+                }
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                changes.tableUris.add(WeatherContract.LocationEntry.CONTENT_URI);
+                if (rowsUpdated != 0
+                        && (values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                                || values.containsKey(WeatherContract.LocationEntry._ID))) {
+                    mLocationIds.clear();
+                    changes.weatherChanged(ALL_LOCATIONS, ANY_DAY);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            publish(changes);
         }
         return rowsUpdated;
     }
 
+    /**
+     * Sets the weather for one location on one day: inserts the row if there is none, rewrites
+     * it if any of the values differ, and leaves it alone if they are all the same.  Unlike an
+     * insert, which the UNIQUE constraint turns into a delete and re-insert, an unchanged day
+     * costs no write and no change notification.
+     *
+     * @return 1 if the day was written, 0 if it already held these values
+     */
+    private int upsertWeatherForDay(SQLiteDatabase db, Uri uri, ContentValues values) {
+        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+        values.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        if (locationId == null) {
+            locationId = getLocationId(db,
+                    WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
+            if (locationId < 0) {
+                throw new IllegalArgumentException("Unknown location in " + uri);
+            }
+            values.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+        }
+
+        ContentValues encoded = WeatherCodec.encode(values, TimeZone.getDefault());
+        String[] selectionArgs = new String[]{Long.toString(locationId),
+                encoded.getAsString(WeatherContract.WeatherEntry.COLUMN_DATE)};
+        // The stored columns, followed by the _id of the row
+        String[] columns = new String[encoded.size() + 1];
+        int column = 0;
+        for (Map.Entry<String, Object> entry : encoded.valueSet()) {
+            columns[column++] = entry.getKey();
+        }
+        columns[column] = WeatherContract.WeatherEntry._ID;
+
+        db.beginTransaction();
+        try {
+            mConditions.put(db, values);
+            Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME, columns,
+                    sLocationIdAndDaySelection, selectionArgs, null, null, null);
+            int rowsWritten;
+            try {
+                if (!cursor.moveToFirst()) {
+                    rowsWritten = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, encoded)
+                            != -1 ? 1 : 0;
+                } else if (hasSameValues(cursor, columns, encoded)) {
+                    rowsWritten = 0;
+                } else {
+                    rowsWritten = db.update(WeatherContract.WeatherEntry.TABLE_NAME, encoded,
+                            WeatherContract.WeatherEntry._ID + " = ?",
+                            new String[]{Long.toString(cursor.getLong(encoded.size()))});
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+            return rowsWritten;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return true if the cursor's current row holds the given values in the given columns
+     */
+    private static boolean hasSameValues(Cursor cursor, String[] columns, ContentValues values) {
+        for (int i = 0; i < values.size(); i++) {
+            Object value = values.get(columns[i]);
+            if (value == null) {
+                if (!cursor.isNull(i)) {
+                    return false;
+                }
+            } else if (cursor.isNull(i)) {
+                return false;
+            } else if (value instanceof Number) {
+                // Everything numeric is stored as an INTEGER, which a double holds exactly for
+                // the values we store
+                if (cursor.getDouble(i) != ((Number) value).doubleValue()) {
+                    return false;
+                }
+            } else if (!value.toString().equals(cursor.getString(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the _id of the location with this setting, or -1 if there is none
+     */
+    private long getLocationId(SQLiteDatabase db, String locationSetting) {
+        Long cached = mLocationIds.get(locationSetting);
+        if (cached != null) {
+            return cached;
+        }
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return -1;
+            }
+            long locationId = cursor.getLong(0);
+            mLocationIds.put(locationSetting, locationId);
+            return locationId;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the setting of the location with this _id, or null if there is none
+     */
+    private String getLocationSetting(SQLiteDatabase db, long locationId) {
+        for (Map.Entry<String, Long> entry : mLocationIds.entrySet()) {
+            if (entry.getValue() == locationId) {
+                return entry.getKey();
+            }
+        }
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            String locationSetting = cursor.getString(0);
+            mLocationIds.put(locationSetting, locationId);
+            return locationSetting;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Inserts the location unless one with the same setting is already stored, in which case
+     * that one is left as it is.
+     *
+     * @return the _id of the new location, or -1 if it is already stored or couldn't be inserted
+     */
+    private long insertLocation(SQLiteDatabase db, ContentValues values) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        long _id = db.insertWithOnConflict(WeatherContract.LocationEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (_id != -1 && locationSetting != null) {
+            mLocationIds.put(locationSetting, _id);
+        }
+        return _id;
+    }
+
     @Override
-    public int bulkInsert(Uri uri, ContentValues[] values) {
+    public int bulkInsert(final Uri uri, final ContentValues[] values) {
+        final long start = System.nanoTime();
+        int returnCount = write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return bulkInsertOnWriter(uri, values);
+            }
+        });
+        mStats.record(sUriMatcher.match(uri), ProviderStats.BULK_INSERT, start, returnCount);
+        return returnCount;
+    }
+
+    private int bulkInsertOnWriter(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
                 db.beginTransaction();
+                WeatherInsertStatement statement = new WeatherInsertStatement(db, mConditions);
                 int returnCount = 0;
+                Changes changes = new Changes();
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id = statement.insert(value);
                         if (_id != -1) {
                             returnCount++;
+                            // The insert normalized the date
+                            changes.weatherChanged(value);
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
+                    statement.close();
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                publish(changes);
                 return returnCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Inserts weather rows the way {@link #bulkInsert(Uri, ContentValues[])} does for
+     * {@link WeatherContract.WeatherEntry#CONTENT_URI}, without a ContentValues per row.  Only
+     * for callers in this process, which can get hold of the provider through
+     * ContentProviderClient.getLocalContentProvider().
+     *
+     * @return the number of rows inserted
+     */
+    public int bulkInsert(final WeatherRow[] rows) {
+        final long start = System.nanoTime();
+        int returnCount = write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return bulkInsertOnWriter(rows);
+            }
+        });
+        mStats.record(WEATHER, ProviderStats.BULK_INSERT, start, returnCount);
+        return returnCount;
+    }
+
+    private int bulkInsertOnWriter(WeatherRow[] rows) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        WeatherInsertStatement statement = new WeatherInsertStatement(db, mConditions);
+        int returnCount = 0;
+        Changes changes = new Changes();
+        TimeZone timeZone = TimeZone.getDefault();
+        try {
+            for (WeatherRow row : rows) {
+                if (statement.insert(row) != -1) {
+                    returnCount++;
+                    changes.weatherChanged(row.locationId,
+                            WeatherContract.toJulianDay(row.date, timeZone));
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            statement.close();
+            db.endTransaction();
+        }
+        publish(changes);
+        return returnCount;
+    }
+
+    /**
+     * Applies the whole batch as one write, so a sync's writes either all land or none of them
+     * do.  Observers hear about it once the batch has committed, once for each location and
+     * table it changed, rather than once for every operation and before the rest of the batch
+     * is in.
+     *
+     * The batch's operations are recorded for the thread that called this, not the writer
+     * thread that runs them.  Each one's time is its own; the wait for the writer is the
+     * batch's, and isn't in any of them.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final String caller = mStats.currentCaller();
+        try {
+            return mWriteQueue.execute(new Callable<ContentProviderResult[]>() {
+                @Override
+                public ContentProviderResult[] call() throws OperationApplicationException {
+                    String previousCaller = mStats.beginBatch(caller);
+                    try {
+                        return WeatherProvider.super.applyBatch(operations);
+                    } finally {
+                        mStats.endBatch(previousCaller);
+                    }
+                }
+            });
+        } catch (OperationApplicationException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Runs the write on the writer thread, in a transaction it may share with other writes,
+     * and waits for that to commit.  A write that another write makes runs right away.
+     *
+     * @return what the write returned
+     */
+    private <T> T write(Callable<T> write) {
+        return write(write, true);
+    }
+
+    /**
+     * @param inTransaction false for what can't run in a transaction, which then runs on its
+     * own between two of the queue's
+     */
+    private <T> T write(Callable<T> write, boolean inTransaction) {
+        try {
+            return inTransaction
+                    ? mWriteQueue.execute(write) : mWriteQueue.executeOutsideTransaction(write);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // None of the provider's own writes throws a checked exception
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds what a write changed to what its transaction will announce once it has committed;
+     * or, off the writer thread, announces it.
+     */
+    private void publish(Changes changes) {
+        Changes batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.addAll(changes);
+        } else {
+            announce(changes);
+        }
+    }
+
+    /**
+     * Tells {@link TodayWeatherCache} which locations' weather changed, and the observers of
+     * what changed that it did.  A location's weather is announced on its day's URI if that is
+     * the only day that changed, and on the location's URI otherwise; either way, the observers
+     * of the location's list hear about it.  Only a write that may have touched any location is
+     * announced on the weather table's URI, which every weather observer hears.
+     *
+     * It has to be called after the write's transaction ends, so that a read racing the write
+     * can't cache what the write replaced.
+     */
+    private void announce(Changes changes) {
+        ContentResolver resolver = getContext().getContentResolver();
+        TodayWeatherCache cache = TodayWeatherCache.getInstance();
+        if (changes.weatherDays.containsKey(ALL_LOCATIONS)) {
+            cache.invalidateAll();
+            resolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+        } else {
+            for (Map.Entry<Long, Set<Integer>> entry : changes.weatherDays.entrySet()) {
+                cache.invalidate(entry.getKey());
+                resolver.notifyChange(getWeatherUri(entry.getKey(), entry.getValue()), null);
+            }
+        }
+        for (Uri uri : changes.tableUris) {
+            resolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * @return the URI that covers the given days of the location's weather
+     */
+    private Uri getWeatherUri(long locationId, Set<Integer> julianDays) {
+        String locationSetting = getLocationSetting(mOpenHelper.getReadableDatabase(), locationId);
+        if (locationSetting == null) {
+            // A location that's gone can't be named
+            return WeatherContract.WeatherEntry.CONTENT_URI;
+        }
+        if (julianDays.size() == 1 && !julianDays.contains(ANY_DAY)) {
+            return WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationSetting,
+                    WeatherContract.fromJulianDay(julianDays.iterator().next()));
+        }
+        return WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting);
+    }
+
+    /**
+     * @return the location _id in the weather values, or ALL_LOCATIONS if they have none
+     */
+    private static long getLocationKey(ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        return locationId != null ? locationId : ALL_LOCATIONS;
+    }
+
+    /**
+     * Moves the days before today out of the weather table into the history, drops the history
+     * older than the retention, and hands the pages that freed back to the file system.  Only
+     * for callers in this process, see {@link #bulkInsert(WeatherRow[])}.  It is meant for an
+     * idle-time job: a sync only writes the forecast, and leaves the past days where they are
+     * until then.
+     *
+     * @param retentionDays how many days before today the history keeps, at least
+     * @return the number of days moved into the history
+     */
+    public int compactHistory(int retentionDays) {
+        return compactHistory(WeatherContract.toJulianDay(System.currentTimeMillis()),
+                retentionDays);
+    }
+
+    int compactHistory(final int today, final int retentionDays) {
+        int archived = write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return archiveHistory(today, retentionDays);
+            }
+        });
+        // VACUUM can't run in a transaction, so it runs on its own once the archiving has
+        // committed, but still on the writer thread
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                WeatherArchive.vacuum(mOpenHelper.getWritableDatabase());
+                return null;
+            }
+        }, false);
+        return archived;
+    }
+
+    private int archiveHistory(int today, int retentionDays) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int archived;
+        int dropped;
+        db.beginTransaction();
+        try {
+            archived = WeatherArchive.archiveBefore(db, today);
+            dropped = WeatherArchive.dropBefore(db, today - retentionDays)
+                    + WeatherArchive.dropOrphans(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Changes changes = new Changes();
+        if (archived > 0) {
+            changes.weatherChanged(ALL_LOCATIONS, ANY_DAY);
+        }
+        if (archived > 0 || dropped > 0) {
+            changes.tableUris.add(WeatherContract.HistoryEntry.CONTENT_URI);
+        }
+        publish(changes);
+        return archived;
+    }
+
+    @Override
+    @TargetApi(11)
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_GET_SYNC_METRICS.equals(method)) {
+            return SyncMetricsFile.toBundle(getContext());
+        }
+        if (WeatherContract.METHOD_GET_CURRENT_CONDITIONS.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("No location setting for " + method);
+            }
+            WeatherRow today = TodayWeatherCache.getInstance().get(getContext(), arg);
+            return today != null ? today.toBundle() : null;
+        }
+        if (WeatherContract.METHOD_GET_PROVIDER_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            try {
+                stats.putString(WeatherContract.PROVIDER_STATS_JSON,
+                        mStats.toJson(getContext().getPackageManager()).toString());
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+            return stats;
+        }
+        if (WeatherContract.METHOD_DUMP_PROVIDER_STATS.equals(method)) {
+            // A name, not a path, so the file can only land in the files directory
+            if (arg == null || arg.isEmpty() || arg.contains(File.separator)
+                    || arg.contains("/") || arg.contains("..")) {
+                throw new IllegalArgumentException("Not a file name for " + method + ": " + arg);
+            }
+            Bundle result = new Bundle();
+            try {
+                mStats.writeTo(new File(getContext().getFilesDir(), arg),
+                        getContext().getPackageManager());
+                result.putBoolean(WeatherContract.PROVIDER_STATS_WRITTEN, true);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error writing provider stats", e);
+                result.putBoolean(WeatherContract.PROVIDER_STATS_WRITTEN, false);
+            }
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Prints the provider stats, for adb shell dumpsys activity provider WeatherProvider.
+     */
+    @Override
+    @TargetApi(18)
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        try {
+            writer.println(mStats.toJson(getContext().getPackageManager()).toString(2));
+        } catch (JSONException e) {
+            writer.println("Error encoding provider stats: " + e);
+        }
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
     @Override
     @TargetApi(11)
     public void shutdown() {
+        mWriteQueue.quit();
         mOpenHelper.close();
         super.shutdown();
     }
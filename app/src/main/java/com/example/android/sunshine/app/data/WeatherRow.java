@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * One row of the weather table, for writers in this process that would rather not box every
+ * value into a ContentValues, and readers that want a single day.  See
+ * {@link WeatherProvider#bulkInsert(WeatherRow[])} and
+ * {@link WeatherContract#getCurrentConditions}.
+ */
+public class WeatherRow {
+
+    // Every column but _id, for fromCursor
+    static final String[] COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // these indices must match COLUMNS
+    private static final int INDEX_LOC_KEY = 0;
+    private static final int INDEX_DATE = 1;
+    private static final int INDEX_SHORT_DESC = 2;
+    private static final int INDEX_WEATHER_ID = 3;
+    private static final int INDEX_MIN_TEMP = 4;
+    private static final int INDEX_MAX_TEMP = 5;
+    private static final int INDEX_HUMIDITY = 6;
+    private static final int INDEX_PRESSURE = 7;
+    private static final int INDEX_WIND_SPEED = 8;
+    private static final int INDEX_DEGREES = 9;
+
+    // The _id of the location
+    public long locationId;
+    // Any time on the day; it is normalized on insert
+    public long date;
+    public String shortDesc;
+    public int weatherId;
+    public double minTemp;
+    public double maxTemp;
+    public double humidity;
+    public double pressure;
+    public double windSpeed;
+    public double degrees;
+
+    /**
+     * @return the cursor's current row, read through COLUMNS
+     */
+    static WeatherRow fromCursor(Cursor cursor) {
+        WeatherRow row = new WeatherRow();
+        row.locationId = cursor.getLong(INDEX_LOC_KEY);
+        row.date = cursor.getLong(INDEX_DATE);
+        row.shortDesc = cursor.getString(INDEX_SHORT_DESC);
+        row.weatherId = cursor.getInt(INDEX_WEATHER_ID);
+        row.minTemp = cursor.getDouble(INDEX_MIN_TEMP);
+        row.maxTemp = cursor.getDouble(INDEX_MAX_TEMP);
+        row.humidity = cursor.getDouble(INDEX_HUMIDITY);
+        row.pressure = cursor.getDouble(INDEX_PRESSURE);
+        row.windSpeed = cursor.getDouble(INDEX_WIND_SPEED);
+        row.degrees = cursor.getDouble(INDEX_DEGREES);
+        return row;
+    }
+
+    /**
+     * @return the row as {@link WeatherContract#METHOD_GET_CURRENT_CONDITIONS} returns it
+     */
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        bundle.putLong(WeatherEntry.COLUMN_DATE, date);
+        bundle.putString(WeatherEntry.COLUMN_SHORT_DESC, shortDesc);
+        bundle.putInt(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        bundle.putDouble(WeatherEntry.COLUMN_MIN_TEMP, minTemp);
+        bundle.putDouble(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        bundle.putDouble(WeatherEntry.COLUMN_HUMIDITY, humidity);
+        bundle.putDouble(WeatherEntry.COLUMN_PRESSURE, pressure);
+        bundle.putDouble(WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+        bundle.putDouble(WeatherEntry.COLUMN_DEGREES, degrees);
+        return bundle;
+    }
+
+    static WeatherRow fromBundle(Bundle bundle) {
+        WeatherRow row = new WeatherRow();
+        row.locationId = bundle.getLong(WeatherEntry.COLUMN_LOC_KEY);
+        row.date = bundle.getLong(WeatherEntry.COLUMN_DATE);
+        row.shortDesc = bundle.getString(WeatherEntry.COLUMN_SHORT_DESC);
+        row.weatherId = bundle.getInt(WeatherEntry.COLUMN_WEATHER_ID);
+        row.minTemp = bundle.getDouble(WeatherEntry.COLUMN_MIN_TEMP);
+        row.maxTemp = bundle.getDouble(WeatherEntry.COLUMN_MAX_TEMP);
+        row.humidity = bundle.getDouble(WeatherEntry.COLUMN_HUMIDITY);
+        row.pressure = bundle.getDouble(WeatherEntry.COLUMN_PRESSURE);
+        row.windSpeed = bundle.getDouble(WeatherEntry.COLUMN_WIND_SPEED);
+        row.degrees = bundle.getDouble(WeatherEntry.COLUMN_DEGREES);
+        return row;
+    }
+}
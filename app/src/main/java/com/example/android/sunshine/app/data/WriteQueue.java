@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs every write to the database on one thread.  The writes that arrive within a short window
+ * of each other share a transaction, so a burst of them -- a sync of several locations, a
+ * widget and the settings writing at once -- costs one commit, and one fsync, instead of one
+ * each, and no writer ever waits on another for the database lock.  A write's future completes
+ * once its group has committed, or failed.
+ *
+ * A write that throws rolls back the group it was in.  The others are then run again, each in
+ * a transaction of its own, so that only the one that threw fails.
+ *
+ * What can't run in a transaction at all, such as VACUUM, still runs on the writer thread, so
+ * it doesn't compete with the writes for the database: on its own, between two groups.
+ */
+final class WriteQueue {
+
+    // How long the first write of a group waits for others to join it
+    static final long GROUP_WINDOW_MILLIS = 2;
+    // How many writes a transaction takes at most, so a long burst still commits now and then
+    static final int MAX_GROUP_SIZE = 64;
+
+    /**
+     * Told about each transaction on the writer thread, to keep what the writes cache and
+     * announce in step with what commits.
+     */
+    interface Listener {
+        /**
+         * The group's transaction has begun, and its writes are about to run.
+         */
+        void onGroupStarted();
+
+        /**
+         * The group's writes have committed; their futures complete once this returns.
+         */
+        void onGroupCommitted();
+
+        /**
+         * The group's writes have been rolled back.
+         */
+        void onGroupRolledBack();
+    }
+
+    /*
+        A write, and its outcome once its group has ended.
+     */
+    private static final class Write<T> implements Future<T> {
+        private final Callable<T> mCallable;
+        // Whether it runs in a group's transaction, or on its own outside of any
+        private final boolean mTransactional;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private T mResult;
+        private Throwable mFailure;
+
+        Write(Callable<T> callable, boolean transactional) {
+            mCallable = callable;
+            mTransactional = transactional;
+        }
+
+        /**
+         * @return whether the write ran without throwing
+         */
+        boolean run() {
+            mResult = null;
+            mFailure = null;
+            try {
+                mResult = mCallable.call();
+                return true;
+            } catch (Throwable t) {
+                mFailure = t;
+                return false;
+            }
+        }
+
+        void complete() {
+            mDone.countDown();
+        }
+
+        void fail(Throwable failure) {
+            mResult = null;
+            mFailure = failure;
+            mDone.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // Once queued, it is as good as written
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return result();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private T result() throws ExecutionException {
+            if (mFailure != null) {
+                throw new ExecutionException(mFailure);
+            }
+            return mResult;
+        }
+    }
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final Listener mListener;
+    private final long mWindowNanos;
+    private final int mMaxGroupSize;
+    private final BlockingQueue<Write<?>> mQueue = new LinkedBlockingQueue<Write<?>>();
+
+    // Started with the first write, and again after quit(); only the thread itself clears it,
+    // once it has run out of writes, so there is never more than one
+    private Thread mThread;
+    // Whether the current thread is this queue's writer; one that is quitting still is
+    private final ThreadLocal<Boolean> mOnWriterThread = new ThreadLocal<Boolean>();
+
+    private final AtomicLong mCommits = new AtomicLong();
+    private final AtomicLong mWrites = new AtomicLong();
+
+    WriteQueue(SQLiteOpenHelper openHelper, Listener listener) {
+        this(openHelper, listener, GROUP_WINDOW_MILLIS, MAX_GROUP_SIZE);
+    }
+
+    WriteQueue(SQLiteOpenHelper openHelper, Listener listener, long windowMillis,
+               int maxGroupSize) {
+        mOpenHelper = openHelper;
+        mListener = listener;
+        mWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        mMaxGroupSize = maxGroupSize;
+    }
+
+    /**
+     * Queues the write.
+     *
+     * @return the write's future, which completes once the write has committed or failed
+     */
+    <T> Future<T> submit(Callable<T> callable) {
+        return submit(callable, true);
+    }
+
+    private <T> Future<T> submit(Callable<T> callable, boolean transactional) {
+        Write<T> write = new Write<T>(callable, transactional);
+        mQueue.add(write);
+        start();
+        return write;
+    }
+
+    /**
+     * Runs the write and waits for it to commit.  On the writer thread, as when a write calls
+     * another, it runs right away, in the transaction of the write that called it.
+     *
+     * @return what the write returned
+     * @throws Exception whatever the write threw
+     */
+    <T> T execute(Callable<T> callable) throws Exception {
+        return execute(callable, true);
+    }
+
+    /**
+     * Runs the job on the writer thread, between two groups rather than in one's transaction,
+     * and waits for it to finish.  It is for what SQLite won't run in a transaction, such as
+     * VACUUM; the writes it makes commit one at a time.
+     *
+     * @return what the job returned
+     * @throws Exception whatever the job threw
+     * @throws IllegalStateException if called from a write, which is in a transaction
+     */
+    <T> T executeOutsideTransaction(Callable<T> callable) throws Exception {
+        if (mOnWriterThread.get() != null) {
+            throw new IllegalStateException("Can't leave the transaction of the write running");
+        }
+        return execute(callable, false);
+    }
+
+    private <T> T execute(Callable<T> callable, boolean transactional) throws Exception {
+        if (mOnWriterThread.get() != null) {
+            return callable.call();
+        }
+        Future<T> future = submit(callable, transactional);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    // The write happens anyway, so its caller should hear how it went
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return how many transactions have committed
+     */
+    long getCommitCount() {
+        return mCommits.get();
+    }
+
+    /**
+     * @return how many writes have committed
+     */
+    long getWriteCount() {
+        return mWrites.get();
+    }
+
+    /**
+     * Stops the writer thread once it has written what is queued, and waits for it to.  The
+     * writes queued meanwhile are written before it stops; one queued after that starts it
+     * again.
+     */
+    void quit() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            if (thread == null) {
+                return;
+            }
+            thread.interrupt();
+        }
+        // A write can't wait for its own thread to stop
+        if (thread == Thread.currentThread()) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void start() {
+        if (mThread == null) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeGroups();
+                }
+            }, "WeatherWriter");
+            mThread.start();
+        }
+    }
+
+    private void writeGroups() {
+        mOnWriterThread.set(Boolean.TRUE);
+        List<Write<?>> group = new ArrayList<Write<?>>(mMaxGroupSize);
+        boolean quitting = false;
+        while (true) {
+            if (quitting && !hasWrites()) {
+                return;
+            }
+            // One that can't join a transaction, to run once the group before it has committed
+            Write<?> alone = null;
+            try {
+                Write<?> first = quitting ? mQueue.remove() : mQueue.take();
+                if (first.mTransactional) {
+                    group.add(first);
+                } else {
+                    alone = first;
+                }
+                long deadline = System.nanoTime() + mWindowNanos;
+                while (alone == null && group.size() < mMaxGroupSize) {
+                    long wait = quitting ? 0 : deadline - System.nanoTime();
+                    Write<?> next = wait > 0
+                            ? mQueue.poll(wait, TimeUnit.NANOSECONDS) : mQueue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (next.mTransactional) {
+                        group.add(next);
+                    } else {
+                        alone = next;
+                    }
+                }
+            } catch (InterruptedException e) {
+                quitting = true;
+            }
+            if (!group.isEmpty() && !commit(group)) {
+                for (Write<?> write : group) {
+                    commit(Collections.<Write<?>>singletonList(write));
+                }
+            }
+            group.clear();
+            if (alone != null) {
+                alone.run();
+                alone.complete();
+            }
+        }
+    }
+
+    /**
+     * @return whether there are writes left to run.  If not, the thread stops, and the next
+     * write queued starts another.
+     */
+    private synchronized boolean hasWrites() {
+        if (mQueue.isEmpty()) {
+            mThread = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the writes in one transaction, and completes them if it commits.  If one of them
+     * throws, the transaction is rolled back, and a group of one fails with what it threw.
+     *
+     * @return false if a group of more than one was rolled back, and its writes are still to
+     * be run again
+     */
+    private boolean commit(List<Write<?>> group) {
+        SQLiteDatabase db;
+        try {
+            db = mOpenHelper.getWritableDatabase();
+        } catch (RuntimeException e) {
+            failAll(group, e);
+            return true;
+        }
+
+        try {
+            mListener.onGroupStarted();
+            db.beginTransaction();
+        } catch (RuntimeException e) {
+            // Disk full, an I/O error, the database busy: the writes never ran
+            mListener.onGroupRolledBack();
+            failAll(group, e);
+            return true;
+        }
+
+        Write<?> failed = null;
+        RuntimeException failure = null;
+        try {
+            for (Write<?> write : group) {
+                if (!write.run()) {
+                    failed = write;
+                    break;
+                }
+            }
+            if (failed == null) {
+                db.setTransactionSuccessful();
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        try {
+            db.endTransaction();
+        } catch (RuntimeException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            // The commit itself failed; running the writes again wouldn't help
+            mListener.onGroupRolledBack();
+            failAll(group, failure);
+            return true;
+        }
+
+        if (failed != null) {
+            mListener.onGroupRolledBack();
+            if (group.size() > 1) {
+                return false;
+            }
+            failed.complete();
+            return true;
+        }
+        mCommits.incrementAndGet();
+        mWrites.addAndGet(group.size());
+        try {
+            mListener.onGroupCommitted();
+        } finally {
+            for (Write<?> write : group) {
+                write.complete();
+            }
+        }
+        return true;
+    }
+
+    private static void failAll(List<Write<?>> group, Throwable failure) {
+        for (Write<?> write : group) {
+            write.fail(failure);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the periodic sync interval from how much the forecast has been changing.
+ *
+ * A sync that brought nothing new stretches the interval, one where temperatures moved a lot or
+ * conditions flipped shrinks it, always within {@link #MIN_INTERVAL_SECONDS} and
+ * {@link #MAX_INTERVAL_SECONDS}.  Independently of that, the next sync never lands much later
+ * than the next local midnight, when tomorrow's row becomes today.  Yesterday's stays in the
+ * weather table until {@link HistoryCompactionService}, which only runs while charging, moves
+ * it into the history; the list and the widgets read from today on, so they don't show it.
+ */
+class AdaptiveSyncScheduler {
+    private static final String LOG_TAG = AdaptiveSyncScheduler.class.getSimpleName();
+
+    static final int MIN_INTERVAL_SECONDS = 60 * 60;
+    static final int MAX_INTERVAL_SECONDS = 60 * 60 * 12;
+
+    // How long after midnight the first sync of the day may come
+    static final int DAY_BOUNDARY_SLACK_SECONDS = 60 * 15;
+
+    // A sync counts as volatile if any temperature moved this much, in degrees Celsius,
+    // or this many days changed conditions
+    static final double VOLATILE_TEMP_DELTA = 3;
+    static final int VOLATILE_CONDITION_CHANGES = 2;
+
+    // and as stable if nothing moved more than this and no conditions changed
+    static final double STABLE_TEMP_DELTA = 1;
+
+    /**
+     * How much a sync changed the stored forecast.
+     */
+    static class Change {
+        // The largest change of any day's high or low, in degrees Celsius
+        double maxTempDelta;
+        // How many days now have different conditions
+        int conditionChanges;
+        // Whether anything about today changed
+        boolean todayChanged;
+
+        /**
+         * Compares two forecasts for the same location.  Days that are only in one of them
+         * don't count, as they're the forecast moving on rather than changing.
+         *
+         * @param today normalized date of today
+         */
+        static Change between(List<ContentValues> before, List<ContentValues> after, long today) {
+            Map<Long, ContentValues> beforeByDate = new HashMap<Long, ContentValues>();
+            for (ContentValues day : before) {
+                beforeByDate.put(day.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE), day);
+            }
+
+            Change change = new Change();
+            for (ContentValues day : after) {
+                long date = day.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                ContentValues old = beforeByDate.get(date);
+                if (old == null) {
+                    if (date == today) {
+                        change.todayChanged = true;
+                    }
+                    continue;
+                }
+                double delta = Math.max(
+                        delta(old, day, WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                        delta(old, day, WeatherContract.WeatherEntry.COLUMN_MIN_TEMP));
+                boolean conditionChanged = !old.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID)
+                        .equals(day.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+
+                change.maxTempDelta = Math.max(change.maxTempDelta, delta);
+                if (conditionChanged) {
+                    change.conditionChanges++;
+                }
+                if (date == today && (delta > 0 || conditionChanged)) {
+                    change.todayChanged = true;
+                }
+            }
+            return change;
+        }
+
+        boolean isVolatile() {
+            return maxTempDelta >= VOLATILE_TEMP_DELTA
+                    || conditionChanges >= VOLATILE_CONDITION_CHANGES;
+        }
+
+        boolean isStable() {
+            return maxTempDelta < STABLE_TEMP_DELTA && conditionChanges == 0 && !todayChanged;
+        }
+
+        private static double delta(ContentValues before, ContentValues after, String column) {
+            return Math.abs(after.getAsDouble(column) - before.getAsDouble(column));
+        }
+    }
+
+    private AdaptiveSyncScheduler() {
+    }
+
+    /**
+     * @return the interval to use after a sync that made this change: halved if it was volatile,
+     * half as long again if it was stable, otherwise unchanged
+     */
+    static int adapt(int intervalSeconds, Change change) {
+        int next = intervalSeconds;
+        if (change.isVolatile()) {
+            next = intervalSeconds / 2;
+        } else if (change.isStable()) {
+            next = intervalSeconds + intervalSeconds / 2;
+        }
+        return Math.max(MIN_INTERVAL_SECONDS, Math.min(MAX_INTERVAL_SECONDS, next));
+    }
+
+    /**
+     * @return the interval, shortened if need be so the next sync comes shortly after the next
+     * local midnight
+     */
+    static int beforeDayBoundary(int intervalSeconds, long now) {
+        Time time = new Time();
+        time.set(now);
+        int julianDay = Time.getJulianDay(now, time.gmtoff);
+        long nextMidnight = time.setJulianDay(julianDay + 1);
+
+        long untilBoundary = (nextMidnight - now) / 1000 + DAY_BOUNDARY_SLACK_SECONDS;
+        if (untilBoundary < intervalSeconds) {
+            return (int) Math.max(MIN_INTERVAL_SECONDS, untilBoundary);
+        }
+        return intervalSeconds;
+    }
+
+    /**
+     * Adapts the interval to a finished sync and reschedules the periodic sync if the interval
+     * changed.  Call from the sync thread.
+     *
+     * @param change what the sync changed for the preferred location, or null if it couldn't
+     * tell, in which case the interval stays as it was
+     */
+    static void onSyncFinished(Context context, Change change, long now) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String intervalKey = context.getString(R.string.pref_sync_interval_key);
+        String scheduledKey = context.getString(R.string.pref_sync_scheduled_interval_key);
+
+        int interval = prefs.getInt(intervalKey, SunshineSyncAdapter.SYNC_INTERVAL);
+        if (change != null) {
+            interval = adapt(interval, change);
+        }
+        int scheduled = beforeDayBoundary(interval, now);
+
+        SharedPreferences.Editor editor = prefs.edit().putInt(intervalKey, interval);
+        if (scheduled != prefs.getInt(scheduledKey, SunshineSyncAdapter.SYNC_INTERVAL)) {
+            Log.d(LOG_TAG, "Next sync in " + scheduled / 60 + " minutes");
+            SunshineSyncAdapter.configurePeriodicSync(context, scheduled, scheduled / 3);
+            editor.putInt(scheduledKey, scheduled);
+        }
+        editor.apply();
+    }
+}
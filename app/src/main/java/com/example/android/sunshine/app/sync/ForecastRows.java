@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.Vector;
+
+/**
+ * Collects the city and the dated weather rows as {@link ForecastParser} reads them.
+ */
+class ForecastRows implements ForecastParser.Callback {
+    final Vector<ContentValues> days = new Vector<ContentValues>();
+    // we work exclusively in UTC
+    final Time dayTime = new Time();
+    final int julianStartDay;
+
+    String cityName;
+    double cityLatitude;
+    double cityLongitude;
+
+    /**
+     * @param julianStartDay the day of the first forecast element.  OWM returns daily forecasts
+     * based upon the local time of the city, and the first day is always the current day.
+     */
+    ForecastRows(int julianStartDay) {
+        this.julianStartDay = julianStartDay;
+    }
+
+    @Override
+    public void onCity(String cityName, double lat, double lon) {
+        this.cityName = cityName;
+        this.cityLatitude = lat;
+        this.cityLongitude = lon;
+    }
+
+    @Override
+    public void onDay(int index, ContentValues weatherValues) {
+        // Cheating to convert this to UTC time, which is what we want anyhow
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                dayTime.setJulianDay(julianStartDay + index));
+        days.add(weatherValues);
+    }
+}
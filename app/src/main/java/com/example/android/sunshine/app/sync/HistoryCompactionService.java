@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherProvider;
+import com.google.android.gms.gcm.GcmNetworkManager;
+import com.google.android.gms.gcm.GcmTaskService;
+import com.google.android.gms.gcm.PeriodicTask;
+import com.google.android.gms.gcm.TaskParams;
+
+/**
+ * Once a day, while the device is charging, moves the days that have passed into the history,
+ * drops the history past the retention, and frees the pages that leaves behind.  Syncs only
+ * write the forecast, so none of this holds up the transaction they run in.
+ */
+public class HistoryCompactionService extends GcmTaskService {
+    private static final String LOG_TAG = HistoryCompactionService.class.getSimpleName();
+
+    private static final String TAG_COMPACT_HISTORY = "compact_history";
+
+    private static final long PERIOD_SECONDS = 60 * 60 * 24;
+    private static final long FLEX_SECONDS = 60 * 60 * 6;
+
+    /**
+     * Schedules the daily run, unless it already is.
+     */
+    public static void schedule(Context context) {
+        PeriodicTask task = new PeriodicTask.Builder()
+                .setService(HistoryCompactionService.class)
+                .setTag(TAG_COMPACT_HISTORY)
+                .setPeriod(PERIOD_SECONDS)
+                .setFlex(FLEX_SECONDS)
+                // The nearest thing to idle the scheduler offers on every version
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .setUpdateCurrent(false)
+                .build();
+        GcmNetworkManager.getInstance(context).schedule(task);
+    }
+
+    @Override
+    public void onInitializeTasks() {
+        // Scheduled tasks are dropped when the app or Google Play services is updated
+        schedule(this);
+    }
+
+    @Override
+    public int onRunTask(TaskParams params) {
+        ContentProviderClient client = getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        if (client == null) {
+            return GcmNetworkManager.RESULT_FAILURE;
+        }
+        try {
+            WeatherProvider provider = (WeatherProvider) client.getLocalContentProvider();
+            int archived = provider.compactHistory(
+                    getResources().getInteger(R.integer.history_retention_days));
+            Log.d(LOG_TAG, "Moved " + archived + " days into the history");
+            return GcmNetworkManager.RESULT_SUCCESS;
+        } finally {
+            client.release();
+        }
+    }
+}
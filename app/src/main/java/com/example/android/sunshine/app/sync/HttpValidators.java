@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The HTTP cache validators we keep for a location's forecast, stored next to the location in
+ * the location table.  They let a sync send a conditional request and skip all the work when the
+ * server answers 304 Not Modified.
+ *
+ * The location's retry backoff is kept alongside: after a failed download, periodic syncs leave
+ * the location alone for an exponentially growing, jittered delay.
+ */
+class HttpValidators {
+
+    private static final String[] VALIDATOR_PROJECTION = new String[] {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED,
+            WeatherContract.LocationEntry.COLUMN_FETCHED_AT,
+            WeatherContract.LocationEntry.COLUMN_MAX_AGE,
+            WeatherContract.LocationEntry.COLUMN_FAILURE_COUNT,
+            WeatherContract.LocationEntry.COLUMN_RETRY_AFTER
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_LOCATION_ID = 0;
+    private static final int INDEX_LOCATION_SETTING = 1;
+    private static final int INDEX_ETAG = 2;
+    private static final int INDEX_LAST_MODIFIED = 3;
+    private static final int INDEX_FETCHED_AT = 4;
+    private static final int INDEX_MAX_AGE = 5;
+    private static final int INDEX_FAILURE_COUNT = 6;
+    private static final int INDEX_RETRY_AFTER = 7;
+
+    // The first retry waits about this long, and every failure after that doubles it
+    static final long BASE_BACKOFF_MILLIS = 5 * 60 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 6 * 60 * 60 * 1000;
+
+    private static final String MAX_AGE_DIRECTIVE = "max-age=";
+
+    final String locationSetting;
+    // The location row these belong to, or -1 if the location hasn't been stored yet
+    final long locationId;
+    String eTag;
+    String lastModified;
+    long fetchedAt;
+    long maxAgeSeconds;
+    int failureCount;
+    long retryAfter;
+
+    private HttpValidators(String locationSetting, long locationId) {
+        this.locationSetting = locationSetting;
+        this.locationId = locationId;
+    }
+
+    /**
+     * Validators for a location we have never downloaded.  Its forecast is never fresh.
+     */
+    static HttpValidators none(String locationSetting) {
+        return new HttpValidators(locationSetting, -1);
+    }
+
+    /**
+     * Reads the validators of every stored location, keyed by location setting.
+     */
+    static Map<String, HttpValidators> loadAll(Context context) {
+        Map<String, HttpValidators> all = new LinkedHashMap<String, HttpValidators>();
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                VALIDATOR_PROJECTION,
+                null,
+                null,
+                null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                HttpValidators validators = new HttpValidators(
+                        cursor.getString(INDEX_LOCATION_SETTING), cursor.getLong(INDEX_LOCATION_ID));
+                validators.eTag = cursor.getString(INDEX_ETAG);
+                validators.lastModified = cursor.getString(INDEX_LAST_MODIFIED);
+                validators.fetchedAt = cursor.getLong(INDEX_FETCHED_AT);
+                validators.maxAgeSeconds = cursor.getLong(INDEX_MAX_AGE);
+                validators.failureCount = cursor.getInt(INDEX_FAILURE_COUNT);
+                validators.retryAfter = cursor.getLong(INDEX_RETRY_AFTER);
+                all.put(validators.locationSetting, validators);
+            }
+            cursor.close();
+        }
+        return all;
+    }
+
+    /**
+     * @return true if the server told us the forecast we have is still good at this time,
+     * so there's no need to even ask.
+     */
+    boolean isFresh(long now) {
+        return fetchedAt > 0 && now >= fetchedAt && now - fetchedAt < maxAgeSeconds * 1000;
+    }
+
+    /**
+     * @return true if an earlier failure asked periodic syncs to leave this location alone for
+     * now
+     */
+    boolean isBackingOff(long now) {
+        return now < retryAfter;
+    }
+
+    /**
+     * Records a failed download, and pushes the next retry out by BASE_BACKOFF_MILLIS doubled
+     * for every failure in a row, up to MAX_BACKOFF_MILLIS.  Half of the delay is random so that
+     * many clients that failed together don't all come back together.
+     */
+    void onFailure(long now, Random random) {
+        failureCount++;
+        long backoff = BASE_BACKOFF_MILLIS << Math.min(failureCount - 1, 16);
+        backoff = Math.min(MAX_BACKOFF_MILLIS, backoff);
+        retryAfter = now + backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+    }
+
+    void onSuccess() {
+        failureCount = 0;
+        retryAfter = 0;
+    }
+
+    /**
+     * Turns the request into a conditional one when we have something to revalidate.  Must be
+     * called before the connection is opened.
+     */
+    void applyTo(HttpURLConnection urlConnection) {
+        if (eTag != null) {
+            urlConnection.setRequestProperty("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Takes the validators from a 200 or a 304 response.  A 304 may leave out headers that
+     * haven't changed, in which case we keep the ones we sent.
+     */
+    void updateFrom(HttpURLConnection urlConnection, long now) throws IOException {
+        boolean notModified =
+                urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+        String responseETag = urlConnection.getHeaderField("ETag");
+        String responseLastModified = urlConnection.getHeaderField("Last-Modified");
+        if (responseETag != null || !notModified) {
+            eTag = responseETag;
+        }
+        if (responseLastModified != null || !notModified) {
+            lastModified = responseLastModified;
+        }
+        maxAgeSeconds = parseMaxAge(urlConnection.getHeaderField("Cache-Control"));
+        fetchedAt = now;
+    }
+
+    /**
+     * @return the validators as location columns, to be written with the forecast they
+     * describe
+     */
+    ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_ETAG, eTag);
+        values.put(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED, lastModified);
+        values.put(WeatherContract.LocationEntry.COLUMN_FETCHED_AT, fetchedAt);
+        values.put(WeatherContract.LocationEntry.COLUMN_MAX_AGE, maxAgeSeconds);
+        values.put(WeatherContract.LocationEntry.COLUMN_FAILURE_COUNT, failureCount);
+        values.put(WeatherContract.LocationEntry.COLUMN_RETRY_AFTER, retryAfter);
+        return values;
+    }
+
+    /**
+     * @return just the backoff columns, for a failed sync whose response we don't trust enough to
+     * keep its validators
+     */
+    ContentValues toBackoffContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_FAILURE_COUNT, failureCount);
+        values.put(WeatherContract.LocationEntry.COLUMN_RETRY_AFTER, retryAfter);
+        return values;
+    }
+
+    static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return 0;
+        }
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            if (directive.startsWith(MAX_AGE_DIRECTIVE)) {
+                try {
+                    return Math.max(0, Long.parseLong(
+                            directive.substring(MAX_AGE_DIRECTIVE.length()).trim()));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+}
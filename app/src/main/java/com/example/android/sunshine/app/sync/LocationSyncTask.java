@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import org.json.JSONException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * Downloads and parses the forecast for one location.  Nothing is written to the database here;
+ * {@link MultiLocationSyncEngine} writes every location's result together once they are all in.
+ *
+ * The download gives up at the sync's deadline, and {@link #cancel()} aborts it from another
+ * thread by closing the connection under it.
+ */
+class LocationSyncTask implements Callable<LocationSyncTask.Result> {
+    private static final String LOG_TAG = LocationSyncTask.class.getSimpleName();
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+    private static final int NUM_DAYS = 14;
+
+    // How long to wait for the server to accept the connection, and then for each read
+    static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    /**
+     * What happened when we asked for a location's forecast.
+     */
+    static class Result {
+        final String locationSetting;
+        final HttpValidators validators;
+
+        @SunshineSyncAdapter.LocationStatus int status = SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+        // The server answered 304, what we have is still current
+        boolean notModified;
+        // The sync was cancelled before we got an answer
+        boolean cancelled;
+        // The new forecast, or null if we didn't get one
+        ForecastRows forecast;
+        // Whether the outcome made it into the database
+        boolean stored;
+        // The days whose stored values actually changed, as normalized dates
+        final ArrayList<Long> changedDates = new ArrayList<Long>();
+
+        // How long each fetch phase took, indexed by the SyncRecord phase constants
+        final long[] phaseNanos = new long[SyncRecord.PHASE_COUNT];
+        long startNanos;
+        long endNanos;
+        // Bytes of response body read
+        long bytes;
+
+        Result(HttpValidators validators) {
+            this.locationSetting = validators.locationSetting;
+            this.validators = validators;
+        }
+
+        boolean hasNewForecast() {
+            return forecast != null;
+        }
+
+        /**
+         * @return true if the new forecast was stored and differs from what we had
+         */
+        boolean hasChanges() {
+            return stored && !changedDates.isEmpty();
+        }
+
+        /**
+         * @return a number that changes whenever the new forecast's content does
+         */
+        long getContentVersion() {
+            return forecast == null ? 0 : forecast.days.hashCode();
+        }
+    }
+
+    private final HttpValidators mValidators;
+    private final int mJulianStartDay;
+    private final long mDeadlineNanos;
+
+    private volatile boolean mCancelled;
+    private volatile HttpURLConnection mConnection;
+
+    /**
+     * @param deadlineNanos when the sync has to be done by, on the System.nanoTime() clock
+     */
+    LocationSyncTask(HttpValidators validators, int julianStartDay, long deadlineNanos) {
+        mValidators = validators;
+        mJulianStartDay = julianStartDay;
+        mDeadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Stops the download.  Safe to call from any thread, before, during or after {@link #call()}.
+     */
+    void cancel() {
+        mCancelled = true;
+        HttpURLConnection connection = mConnection;
+        if (connection != null) {
+            // Closes the socket, so a blocked connect or read fails right away
+            connection.disconnect();
+        }
+    }
+
+    HttpValidators getValidators() {
+        return mValidators;
+    }
+
+    @Override
+    public Result call() {
+        Result result = new Result(mValidators);
+        result.startNanos = System.nanoTime();
+        String locationQuery = mValidators.locationSetting;
+
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
+        HttpURLConnection urlConnection = null;
+
+        try {
+            final String QUERY_PARAM = "q";
+            final String FORMAT_PARAM = "mode";
+            final String UNITS_PARAM = "units";
+            final String DAYS_PARAM = "cnt";
+            final String APPID_PARAM = "APPID";
+
+            Uri builtUri = Uri.parse(SunshineSyncAdapter.sForecastBaseUrl).buildUpon()
+                    .appendQueryParameter(QUERY_PARAM, locationQuery)
+                    .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                    .appendQueryParameter(UNITS_PARAM, UNITS)
+                    .appendQueryParameter(DAYS_PARAM, Integer.toString(NUM_DAYS))
+                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                    .build();
+
+            URL url = new URL(builtUri.toString());
+
+            long remainingMillis = (mDeadlineNanos - System.nanoTime()) / 1000000;
+            if (remainingMillis <= 0) {
+                Log.w(LOG_TAG, "Out of time before fetching " + locationQuery);
+                result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+                return result;
+            }
+
+            // Create the request to OpenWeatherMap, and open the connection
+            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setConnectTimeout((int) Math.min(CONNECT_TIMEOUT_MILLIS, remainingMillis));
+            urlConnection.setReadTimeout((int) Math.min(READ_TIMEOUT_MILLIS, remainingMillis));
+            urlConnection.setRequestMethod("GET");
+            mValidators.applyTo(urlConnection);
+            mConnection = urlConnection;
+            if (mCancelled) {
+                // cancel() may have run before it could see the connection
+                result.cancelled = true;
+                return result;
+            }
+            long phaseStart = System.nanoTime();
+            urlConnection.connect();
+            phaseStart = endPhase(result, SyncRecord.PHASE_CONNECT, phaseStart);
+
+            int responseCode = urlConnection.getResponseCode();
+            phaseStart = endPhase(result, SyncRecord.PHASE_FIRST_BYTE, phaseStart);
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // What we stored last time is still current: nothing to parse, and only the
+                // new validators to write.
+                Log.d(LOG_TAG, "Forecast for " + locationQuery + " not modified");
+                mValidators.updateFrom(urlConnection, System.currentTimeMillis());
+                result.notModified = true;
+                result.status = SunshineSyncAdapter.LOCATION_STATUS_OK;
+                return result;
+            }
+
+            InputStream response = urlConnection.getInputStream();
+            if (response == null) {
+                // Nothing to do.
+                return result;
+            }
+            CountingInputStream inputStream = new CountingInputStream(response);
+            mValidators.updateFrom(urlConnection, System.currentTimeMillis());
+
+            // The forecast is parsed straight off the wire; an empty stream surfaces as an
+            // EOFException and is treated like any other failed download.
+            ForecastRows forecast = new ForecastRows(mJulianStartDay);
+            int errorCode;
+            try {
+                errorCode = ForecastParser.parse(inputStream, forecast);
+            } finally {
+                endPhase(result, SyncRecord.PHASE_DOWNLOAD, phaseStart);
+                result.bytes = inputStream.count;
+            }
+            switch (errorCode) {
+                case HttpURLConnection.HTTP_OK:
+                    result.forecast = forecast;
+                    result.status = SunshineSyncAdapter.LOCATION_STATUS_OK;
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    result.status = SunshineSyncAdapter.LOCATION_STATUS_INVALID;
+                    break;
+                default:
+                    result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+                    break;
+            }
+        } catch (IOException e) {
+            if (mCancelled) {
+                Log.d(LOG_TAG, "Fetching " + locationQuery + " was cancelled");
+                result.cancelled = true;
+                return result;
+            }
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            mConnection = null;
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+            result.endNanos = System.nanoTime();
+        }
+        return result;
+    }
+
+    /**
+     * Adds the time since phaseStart to the phase.
+     *
+     * @return the time now, which is when the next phase starts
+     */
+    private static long endPhase(Result result, int phase, long phaseStart) {
+        long now = System.nanoTime();
+        result.phaseNanos[phase] += now - phaseStart;
+        return now;
+    }
+
+    /**
+     * Counts the bytes read through it, so we know how much a download actually cost.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
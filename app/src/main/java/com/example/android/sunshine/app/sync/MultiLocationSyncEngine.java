@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.net.Uri;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Refreshes every location we know about, not just the preferred one, so switching between
+ * them doesn't have to wait for a download.
+ *
+ * Forecasts are downloaded and parsed concurrently on a small pool of background threads, within
+ * an overall time budget.  Locations whose forecast the server said is still fresh are skipped,
+ * and so are locations backing off after a failure, unless the sync is manual.  Everything that
+ * came back is then written in a single provider transaction.
+ *
+ * {@link #cancel()} aborts the downloads in progress, and a cancelled sync writes nothing.
+ */
+class MultiLocationSyncEngine {
+    private static final String LOG_TAG = MultiLocationSyncEngine.class.getSimpleName();
+
+    // No more than this many forecasts are downloaded at once, however many locations we track
+    static final int MAX_CONCURRENT_FETCHES = 4;
+
+    // Whatever hasn't been downloaded after this long waits for the next sync
+    static final long SYNC_BUDGET_MILLIS = 60 * 1000;
+
+    private final Context mContext;
+    private final Random mRandom = new Random();
+    private final List<LocationSyncTask> mTasks = new CopyOnWriteArrayList<LocationSyncTask>();
+    private volatile boolean mCancelled;
+    private final AtomicInteger mActiveFetches = new AtomicInteger();
+    private final AtomicInteger mPeakFetches = new AtomicInteger();
+    private final AtomicInteger mThreadsCreated = new AtomicInteger();
+
+    private final ThreadFactory mThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ForecastFetch #" + mThreadsCreated.incrementAndGet());
+        }
+    };
+
+    MultiLocationSyncEngine(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Refreshes the preferred location and every location stored in the database.
+     *
+     * @param manualSync if true, every location is revalidated even if it is still fresh
+     * @param record where the time spent fetching and writing is added up
+     * @return the outcome for every location that was due, keyed by location setting.  Locations
+     * that were still fresh are left out.
+     */
+    Map<String, LocationSyncTask.Result> sync(String preferredLocation, boolean manualSync,
+                                              SyncResult syncResult, SyncRecord record) {
+        long startTime = SystemClock.elapsedRealtime();
+        long now = System.currentTimeMillis();
+
+        // The preferred location goes first, so it is never the one left waiting in the queue
+        // when the budget runs out.
+        Map<String, HttpValidators> stored = HttpValidators.loadAll(mContext);
+        List<HttpValidators> candidates = new ArrayList<HttpValidators>(stored.size() + 1);
+        HttpValidators preferred = stored.remove(preferredLocation);
+        candidates.add(preferred != null ? preferred : HttpValidators.none(preferredLocation));
+        candidates.addAll(stored.values());
+        record.locations = candidates.size();
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        long deadlineNanos = System.nanoTime() + SYNC_BUDGET_MILLIS * 1000000;
+
+        final List<LocationSyncTask> tasks = new ArrayList<LocationSyncTask>(candidates.size());
+        for (HttpValidators validators : candidates) {
+            if (manualSync
+                    || (!validators.isFresh(now) && !validators.isBackingOff(now))) {
+                tasks.add(new LocationSyncTask(validators, julianStartDay, deadlineNanos));
+            }
+        }
+        mTasks.addAll(tasks);
+        if (mCancelled) {
+            return new LinkedHashMap<String, LocationSyncTask.Result>();
+        }
+
+        Map<String, LocationSyncTask.Result> results =
+                new LinkedHashMap<String, LocationSyncTask.Result>();
+        if (tasks.isEmpty()) {
+            Log.d(LOG_TAG, "All " + candidates.size() + " locations are still fresh");
+            return results;
+        }
+
+        List<Callable<LocationSyncTask.Result>> callables =
+                new ArrayList<Callable<LocationSyncTask.Result>>(tasks.size());
+        for (LocationSyncTask task : tasks) {
+            callables.add(counted(task));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(MAX_CONCURRENT_FETCHES, tasks.size()), mThreadFactory);
+        try {
+            List<Future<LocationSyncTask.Result>> futures =
+                    executor.invokeAll(callables, SYNC_BUDGET_MILLIS, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < futures.size(); i++) {
+                LocationSyncTask.Result result = collect(futures.get(i), tasks.get(i));
+                results.put(result.locationSetting, result);
+            }
+        } catch (InterruptedException e) {
+            // The sync was cancelled.  Write nothing rather than a partial sync.
+            Thread.currentThread().interrupt();
+            cancel();
+            results.clear();
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+        if (mCancelled) {
+            Log.d(LOG_TAG, "Sync cancelled, discarding " + results.size() + " results");
+            results.clear();
+            return results;
+        }
+
+        long firstStart = Long.MAX_VALUE;
+        long lastEnd = Long.MIN_VALUE;
+        for (LocationSyncTask.Result result : results.values()) {
+            // SyncManager retries the whole sync, with its own backoff, for any error counted in
+            // the SyncResult.  The other locations back off on their own through onFailure, so
+            // only the preferred location's failures are worth that.
+            if (result.locationSetting.equals(preferredLocation)) {
+                if (result.status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN) {
+                    syncResult.stats.numIoExceptions++;
+                } else if (result.status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID) {
+                    syncResult.stats.numParseExceptions++;
+                }
+            }
+            if (isFailure(result)) {
+                result.validators.onFailure(now, mRandom);
+            } else if (result.status == SunshineSyncAdapter.LOCATION_STATUS_OK) {
+                result.validators.onSuccess();
+            }
+
+            if (result.notModified) {
+                record.notModified++;
+            } else if (result.hasNewForecast()) {
+                record.fetched++;
+                record.rowsParsed += result.forecast.days.size();
+            } else {
+                record.failed++;
+            }
+            record.bytes += result.bytes;
+            for (int phase = 0; phase < SyncRecord.PHASE_COUNT; phase++) {
+                record.addPhase(phase, result.phaseNanos[phase]);
+            }
+            // Results for tasks that never ran have no times
+            if (result.endNanos != 0) {
+                firstStart = Math.min(firstStart, result.startNanos);
+                lastEnd = Math.max(lastEnd, result.endNanos);
+            }
+        }
+        if (lastEnd > firstStart) {
+            record.fetchWallNanos = lastEnd - firstStart;
+        }
+
+        long writeStart = System.nanoTime();
+        record.rowsChanged = write(results, syncResult);
+        record.addPhase(SyncRecord.PHASE_WRITE, System.nanoTime() - writeStart);
+
+        Log.d(LOG_TAG, "Synced " + tasks.size() + " of " + candidates.size() + " locations in "
+                + (SystemClock.elapsedRealtime() - startTime) + "ms, "
+                + mPeakFetches.get() + " at once");
+        return results;
+    }
+
+    /**
+     * Aborts the downloads in progress and makes {@link #sync} return without writing anything.
+     * Safe to call from any thread.
+     */
+    void cancel() {
+        mCancelled = true;
+        for (LocationSyncTask task : mTasks) {
+            task.cancel();
+        }
+    }
+
+    private static boolean isFailure(LocationSyncTask.Result result) {
+        return result.status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN
+                || result.status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+    }
+
+    /**
+     * @return the most downloads that ran at the same time
+     */
+    int getPeakConcurrentFetches() {
+        return mPeakFetches.get();
+    }
+
+    /**
+     * @return how many fetch threads were started
+     */
+    int getThreadsCreated() {
+        return mThreadsCreated.get();
+    }
+
+    private Callable<LocationSyncTask.Result> counted(final LocationSyncTask task) {
+        return new Callable<LocationSyncTask.Result>() {
+            @Override
+            public LocationSyncTask.Result call() {
+                int active = mActiveFetches.incrementAndGet();
+                int peak;
+                while (active > (peak = mPeakFetches.get())
+                        && !mPeakFetches.compareAndSet(peak, active)) {
+                    // somebody else raised the peak, try again
+                }
+                try {
+                    return task.call();
+                } finally {
+                    mActiveFetches.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    private LocationSyncTask.Result collect(Future<LocationSyncTask.Result> future,
+                                            LocationSyncTask task) throws InterruptedException {
+        if (!future.isCancelled()) {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Error syncing " + task.getValidators().locationSetting, e);
+            }
+        } else {
+            Log.w(LOG_TAG, "Ran out of time syncing " + task.getValidators().locationSetting);
+            // The interrupt doesn't reach a thread blocked on a socket
+            task.cancel();
+        }
+        LocationSyncTask.Result result = new LocationSyncTask.Result(task.getValidators());
+        result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        return result;
+    }
+
+    /**
+     * Writes every new forecast and every set of validators as one batch, which the provider
+     * applies in a single transaction.
+     *
+     * @return how many days' stored values changed
+     */
+    private int write(Map<String, LocationSyncTask.Result> results, SyncResult syncResult) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        List<LocationSyncTask.Result> written = new ArrayList<LocationSyncTask.Result>();
+        Map<LocationSyncTask.Result, Integer> firstDayOperation =
+                new HashMap<LocationSyncTask.Result, Integer>();
+        int downloaded = 0;
+
+        for (LocationSyncTask.Result result : results.values()) {
+            HttpValidators validators = result.validators;
+            if (result.notModified) {
+                operations.add(updateLocation(validators, validators.toContentValues()));
+                written.add(result);
+            } else if (result.hasNewForecast()) {
+                ForecastRows forecast = result.forecast;
+                int locationBackReference = -1;
+                if (validators.locationId >= 0) {
+                    operations.add(updateLocation(validators, validators.toContentValues()));
+                } else {
+                    ContentValues locationValues = validators.toContentValues();
+                    locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, result.locationSetting);
+                    locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, forecast.cityName);
+                    locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, forecast.cityLatitude);
+                    locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, forecast.cityLongitude);
+                    locationBackReference = operations.size();
+                    operations.add(ContentProviderOperation
+                            .newInsert(WeatherContract.LocationEntry.CONTENT_URI)
+                            .withValues(locationValues)
+                            .build());
+                }
+
+                // Each day is an upsert that only writes when the values changed, and whose
+                // result tells us whether it did
+                firstDayOperation.put(result, operations.size());
+                for (ContentValues weatherValues : forecast.days) {
+                    Uri dayUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                            result.locationSetting,
+                            weatherValues.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                    ContentProviderOperation.Builder builder = ContentProviderOperation
+                            .newUpdate(dayUri)
+                            .withValues(weatherValues);
+                    if (locationBackReference >= 0) {
+                        builder.withValueBackReference(
+                                WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationBackReference);
+                    } else {
+                        builder.withValue(
+                                WeatherContract.WeatherEntry.COLUMN_LOC_KEY, validators.locationId);
+                    }
+                    operations.add(builder.build());
+                }
+                downloaded += forecast.days.size();
+                written.add(result);
+            } else if (isFailure(result) && validators.locationId >= 0) {
+                // Only the backoff: whatever validators came with a failed response describe
+                // a forecast we didn't store
+                operations.add(updateLocation(validators, validators.toBackoffContentValues()));
+            }
+        }
+
+        // The days before today stay until HistoryCompactionService moves them into the history
+        if (operations.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            ContentProviderResult[] batchResults = mContext.getContentResolver()
+                    .applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            int changed = 0;
+            for (LocationSyncTask.Result result : written) {
+                result.stored = true;
+                Integer first = firstDayOperation.get(result);
+                if (first == null) {
+                    continue;
+                }
+                for (int i = 0; i < result.forecast.days.size(); i++) {
+                    Integer count = batchResults[first + i].count;
+                    if (count != null && count > 0) {
+                        result.changedDates.add(result.forecast.days.get(i)
+                                .getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                    }
+                }
+                changed += result.changedDates.size();
+            }
+            syncResult.stats.numUpdates += changed;
+            syncResult.stats.numSkippedEntries += downloaded - changed;
+            return changed;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error writing sync results", e);
+            syncResult.databaseError = true;
+            return 0;
+        }
+    }
+
+    private static ContentProviderOperation updateLocation(HttpValidators validators,
+                                                           ContentValues values) {
+        return ContentProviderOperation
+                .newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                .withSelection(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{validators.locationSetting})
+                .withValues(values)
+                .build();
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.SuppressLint;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.TaskStackBuilder;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.example.android.sunshine.app.MainActivity;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherRow;
+import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
+import com.example.android.sunshine.app.wear.SunshineWearableListenerService;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeApi;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The things {@link PostSyncDispatcher} tells about a forecast change.  They all run on the
+ * dispatcher's thread, so they are free to block.
+ */
+class PostSyncConsumers {
+    private static final String LOG_TAG = PostSyncConsumers.class.getSimpleName();
+
+    private PostSyncConsumers() {
+    }
+
+    static List<PostSyncDispatcher.Consumer> all(Context context) {
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>(4);
+        consumers.add(new Widgets());
+        consumers.add(new Muzei());
+        consumers.add(new Notification());
+        consumers.add(new Wear(context));
+        return consumers;
+    }
+
+    static class Widgets implements PostSyncDispatcher.Consumer {
+        @Override
+        public void onForecastChanged(Context context, String locationSetting) {
+            // Setting the package ensures that only components in our app will receive the broadcast
+            Intent dataUpdatedIntent = new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                    .setPackage(context.getPackageName());
+            context.sendBroadcast(dataUpdatedIntent);
+        }
+    }
+
+    static class Muzei implements PostSyncDispatcher.Consumer {
+        @Override
+        public void onForecastChanged(Context context, String locationSetting) {
+            // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
+            // Muzei background on lower API level devices
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                context.startService(new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                        .setClass(context, WeatherMuzeiSource.class));
+            }
+        }
+    }
+
+    static class Notification implements PostSyncDispatcher.Consumer {
+        private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+        private static final int WEATHER_NOTIFICATION_ID = 3004;
+
+        @Override
+        public void onForecastChanged(Context context, String locationSetting) {
+            //checking the last update and notify if it' the first of the day
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
+            boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
+                    Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
+
+            if ( displayNotifications ) {
+
+                String lastNotificationKey = context.getString(R.string.pref_last_notification);
+                long lastSync = prefs.getLong(lastNotificationKey, 0);
+
+                if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
+                    // Last sync was more than 1 day ago, let's send a notification with the weather.
+                    // The other consumers want the same row, which the provider keeps in memory
+                    WeatherRow today = WeatherContract.getCurrentConditions(
+                            context.getContentResolver(), locationSetting);
+
+                    if (today != null) {
+                        int weatherId = today.weatherId;
+                        double high = today.maxTemp;
+                        double low = today.minTemp;
+                        String desc = today.shortDesc;
+
+                        int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
+                        Resources resources = context.getResources();
+                        int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+                        String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+
+                        // On Honeycomb and higher devices, we can retrieve the size of the large icon
+                        // Prior to that, we use a fixed size
+                        @SuppressLint("InlinedApi")
+                        int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                                ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                                : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+                        @SuppressLint("InlinedApi")
+                        int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                                ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                                : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+
+                        // Retrieve the large icon
+                        Bitmap largeIcon;
+                        try {
+                            largeIcon = Glide.with(context)
+                                    .load(artUrl)
+                                    .asBitmap()
+                                    .error(artResourceId)
+                                    .fitCenter()
+                                    .into(largeIconWidth, largeIconHeight).get();
+                        } catch (InterruptedException | ExecutionException e) {
+                            Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+                            largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
+                        }
+                        String title = context.getString(R.string.app_name);
+
+                        // Define the text of the forecast.
+                        String contentText = String.format(context.getString(R.string.format_notification),
+                                desc,
+                                Utility.formatTemperature(context, high),
+                                Utility.formatTemperature(context, low));
+
+                        // NotificationCompatBuilder is a very convenient way to build backward-compatible
+                        // notifications.  Just throw in some data.
+                        NotificationCompat.Builder mBuilder =
+                                new NotificationCompat.Builder(context)
+                                        .setColor(resources.getColor(R.color.primary_light))
+                                        .setSmallIcon(iconId)
+                                        .setLargeIcon(largeIcon)
+                                        .setContentTitle(title)
+                                        .setContentText(contentText);
+
+                        // Make something interesting happen when the user clicks on the notification.
+                        // In this case, opening the app is sufficient.
+                        Intent resultIntent = new Intent(context, MainActivity.class);
+
+                        // The stack builder object will contain an artificial back stack for the
+                        // started Activity.
+                        // This ensures that navigating backward from the Activity leads out of
+                        // your application to the Home screen.
+                        TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+                        stackBuilder.addNextIntent(resultIntent);
+                        PendingIntent resultPendingIntent =
+                                stackBuilder.getPendingIntent(
+                                        0,
+                                        PendingIntent.FLAG_UPDATE_CURRENT
+                                );
+                        mBuilder.setContentIntent(resultPendingIntent);
+
+                        NotificationManager mNotificationManager =
+                                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+                        // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
+                        mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
+
+                        //refreshing last sync
+                        SharedPreferences.Editor editor = prefs.edit();
+                        editor.putLong(lastNotificationKey, System.currentTimeMillis());
+                        editor.commit();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Asks the Wear listener service to push the new forecast to the watch.
+     */
+    static class Wear implements PostSyncDispatcher.Consumer {
+        private static final long CONNECT_TIMEOUT_SECONDS = 30;
+        private static final long CALL_TIMEOUT_SECONDS = 10;
+
+        private final GoogleApiClient mGoogleApiClient;
+
+        Wear(Context context) {
+            mGoogleApiClient = new GoogleApiClient.Builder(context)
+                    .addApi(Wearable.API)
+                    .build();
+        }
+
+        @Override
+        public void onForecastChanged(Context context, String locationSetting) {
+            ConnectionResult connectionResult =
+                    mGoogleApiClient.blockingConnect(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!connectionResult.isSuccess()) {
+                Log.w(LOG_TAG, "Couldn't connect to Wear: " + connectionResult);
+                return;
+            }
+            try {
+                // Play services can hang, and every other consumer waits behind this one
+                NodeApi.GetLocalNodeResult getLocalNodeResult =
+                        Wearable.NodeApi.getLocalNode(mGoogleApiClient)
+                                .await(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (!getLocalNodeResult.getStatus().isSuccess()) {
+                    Log.w(LOG_TAG, "Couldn't get the local Wear node: "
+                            + getLocalNodeResult.getStatus());
+                    return;
+                }
+                Node localNode = getLocalNodeResult.getNode();
+                if (localNode == null) {
+                    Log.w(LOG_TAG, "No local Wear node");
+                    return;
+                }
+
+                MessageApi.SendMessageResult sendMessageResult = Wearable.MessageApi.sendMessage(
+                        mGoogleApiClient,
+                        localNode.getId(),
+                        SunshineWearableListenerService.SEND_UPDATE_PATH,
+                        SunshineWearableListenerService.SEND_UPDATE_MSG.getBytes())
+                        .await(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (!sendMessageResult.getStatus().isSuccess()) {
+                    Log.w(LOG_TAG, "Couldn't send the update to Wear: "
+                            + sendMessageResult.getStatus());
+                }
+            } finally {
+                mGoogleApiClient.disconnect();
+            }
+        }
+    }
+}
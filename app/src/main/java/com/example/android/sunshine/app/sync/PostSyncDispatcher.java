@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells everything that shows the forecast (widgets, Muzei, the notification and Wear) that it
+ * changed.
+ *
+ * Updates posted within {@link #COALESCE_WINDOW_MILLIS} of each other are delivered once, and an
+ * update whose content version was already delivered isn't delivered again, so a manual refresh
+ * followed by a periodic sync wakes the consumers up only once.  The consumers run one after the
+ * other on a single background thread.
+ */
+class PostSyncDispatcher {
+    private static final String LOG_TAG = PostSyncDispatcher.class.getSimpleName();
+
+    static final long COALESCE_WINDOW_MILLIS = 2000;
+
+    /**
+     * Something that shows the forecast and needs refreshing when it changes.
+     */
+    interface Consumer {
+        /**
+         * Called on the dispatcher's thread, so it may block.
+         */
+        void onForecastChanged(Context context, String locationSetting);
+    }
+
+    private static PostSyncDispatcher sInstance;
+
+    private final Context mContext;
+    private final List<Consumer> mConsumers;
+    private final long mWindowMillis;
+    private final ScheduledExecutorService mExecutor;
+
+    // Guarded by this
+    private String mPendingLocation;
+    private long mPendingVersion;
+    private String mDeliveredLocation;
+    private long mDeliveredVersion;
+    private int mDeliveryCount;
+
+    static synchronized PostSyncDispatcher getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new PostSyncDispatcher(appContext, PostSyncConsumers.all(appContext),
+                    COALESCE_WINDOW_MILLIS);
+        }
+        return sInstance;
+    }
+
+    PostSyncDispatcher(Context context, List<Consumer> consumers, long windowMillis) {
+        mContext = context;
+        mConsumers = consumers;
+        mWindowMillis = windowMillis;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "PostSyncDispatcher");
+            }
+        });
+    }
+
+    /**
+     * Schedules the consumers to be told about a forecast change, unless this content version
+     * is already waiting or was the last one delivered.
+     *
+     * @param contentVersion anything that changes whenever the forecast's content does
+     * @return true if the update will be delivered, false if it was merged into another one
+     */
+    synchronized boolean post(String locationSetting, long contentVersion) {
+        if (mPendingLocation != null) {
+            // Already waiting for the window to close; the newest content wins.
+            mPendingLocation = locationSetting;
+            mPendingVersion = contentVersion;
+            return false;
+        }
+        if (locationSetting.equals(mDeliveredLocation) && contentVersion == mDeliveredVersion) {
+            Log.d(LOG_TAG, "Forecast version for " + locationSetting + " already delivered");
+            return false;
+        }
+        mPendingLocation = locationSetting;
+        mPendingVersion = contentVersion;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        }, mWindowMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * @return how many times the consumers have been told about a change
+     */
+    synchronized int getDeliveryCount() {
+        return mDeliveryCount;
+    }
+
+    private void deliver() {
+        String locationSetting;
+        synchronized (this) {
+            locationSetting = mPendingLocation;
+            if (locationSetting.equals(mDeliveredLocation)
+                    && mPendingVersion == mDeliveredVersion) {
+                // Changed and then changed back while we were waiting
+                mPendingLocation = null;
+                return;
+            }
+            mDeliveredLocation = locationSetting;
+            mDeliveredVersion = mPendingVersion;
+            mPendingLocation = null;
+            mDeliveryCount++;
+        }
+
+        long start = System.nanoTime();
+        for (Consumer consumer : mConsumers) {
+            try {
+                consumer.onForecastChanged(mContext, locationSetting);
+            } catch (RuntimeException e) {
+                // One broken consumer shouldn't keep the others stale
+                Log.e(LOG_TAG, "Error updating " + consumer.getClass().getSimpleName(), e);
+            }
+        }
+        Log.d(LOG_TAG, "Updated " + mConsumers.size() + " consumers in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+}
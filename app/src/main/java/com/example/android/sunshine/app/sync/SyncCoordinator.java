@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of which locations have a sync waiting or running, and which were synced a moment
+ * ago, so the same location isn't downloaded twice in a row.
+ *
+ * A request for a location that is already waiting or running joins that sync.  A request for a
+ * location that finished syncing within {@link #FRESH_WINDOW_MILLIS} is turned away unless it is
+ * forced.  The state of the preferred location is kept in the shared preferences for the UI,
+ * along with when its sync was requested, so that a sync that never started stops showing as
+ * waiting once it has timed out.
+ */
+public class SyncCoordinator {
+    private static final String LOG_TAG = SyncCoordinator.class.getSimpleName();
+
+    // A location synced this recently isn't synced again unless the request is forced
+    static final long FRESH_WINDOW_MILLIS = 5 * 60 * 1000;
+
+    // A requested sync that hasn't started after this long is assumed to have been dropped
+    public static final long PENDING_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({SYNC_STATE_IDLE, SYNC_STATE_PENDING, SYNC_STATE_RUNNING})
+    public @interface SyncState {}
+
+    public static final int SYNC_STATE_IDLE = 0;
+    public static final int SYNC_STATE_PENDING = 1;
+    public static final int SYNC_STATE_RUNNING = 2;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({REQUEST_STARTED, REQUEST_JOINED, REQUEST_FRESH})
+    @interface RequestOutcome {}
+
+    // A new sync needs to be requested
+    static final int REQUEST_STARTED = 0;
+    // A sync for the location is already waiting or running
+    static final int REQUEST_JOINED = 1;
+    // The location was synced moments ago
+    static final int REQUEST_FRESH = 2;
+
+    private static class Entry {
+        @SyncState int state = SYNC_STATE_IDLE;
+        long requestedAt;
+        long completedAt;
+    }
+
+    private static SyncCoordinator sInstance;
+
+    private final Context mContext;
+    // Guarded by this
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    public static synchronized SyncCoordinator getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncCoordinator(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    SyncCoordinator(Context context) {
+        mContext = context;
+        // Whatever a previous process saved, no sync of this one's is waiting or running yet
+        reportState();
+    }
+
+    /**
+     * Decides whether a sync for the location needs to be requested.  If it does, the location
+     * is marked as waiting, and the caller has to request the sync.
+     *
+     * @param force if true, a location that was just synced is synced again
+     */
+    synchronized @RequestOutcome int request(String locationSetting, boolean force, long now) {
+        Entry entry = getEntry(locationSetting);
+        if (entry.state == SYNC_STATE_RUNNING
+                || (entry.state == SYNC_STATE_PENDING
+                        && now - entry.requestedAt < PENDING_TIMEOUT_MILLIS)) {
+            Log.d(LOG_TAG, "Joining the sync for " + locationSetting);
+            return REQUEST_JOINED;
+        }
+        if (!force && entry.completedAt > 0 && now - entry.completedAt < FRESH_WINDOW_MILLIS) {
+            Log.d(LOG_TAG, locationSetting + " was synced moments ago");
+            // a request that timed out waiting isn't waiting any more
+            entry.state = SYNC_STATE_IDLE;
+            reportState();
+            return REQUEST_FRESH;
+        }
+        entry.state = SYNC_STATE_PENDING;
+        entry.requestedAt = now;
+        reportState();
+        return REQUEST_STARTED;
+    }
+
+    /**
+     * Marks a location as syncing, whoever asked for it.
+     */
+    synchronized void onSyncStarted(String locationSetting) {
+        getEntry(locationSetting).state = SYNC_STATE_RUNNING;
+        reportState();
+    }
+
+    /**
+     * Marks the location as no longer syncing, and every location the sync refreshed as fresh.
+     *
+     * @param results the outcome for every location that was synced, as returned by
+     * {@link MultiLocationSyncEngine#sync}
+     */
+    synchronized void onSyncFinished(String locationSetting,
+                                     Map<String, LocationSyncTask.Result> results, long now) {
+        getEntry(locationSetting).state = SYNC_STATE_IDLE;
+        for (LocationSyncTask.Result result : results.values()) {
+            if (result.status == SunshineSyncAdapter.LOCATION_STATUS_OK) {
+                Entry entry = getEntry(result.locationSetting);
+                entry.completedAt = now;
+                if (entry.state == SYNC_STATE_PENDING) {
+                    // refreshed along with the location that was asked for
+                    entry.state = SYNC_STATE_IDLE;
+                }
+            }
+        }
+        reportState();
+    }
+
+    synchronized @SyncState int getState(String locationSetting) {
+        Entry entry = mEntries.get(locationSetting);
+        return entry == null ? SYNC_STATE_IDLE : entry.state;
+    }
+
+    private Entry getEntry(String locationSetting) {
+        Entry entry = mEntries.get(locationSetting);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(locationSetting, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Saves the preferred location's state where the UI can listen for it.
+     */
+    private void reportState() {
+        Entry entry = mEntries.get(Utility.getPreferredLocation(mContext));
+        @SyncState int state = entry == null ? SYNC_STATE_IDLE : entry.state;
+        long requestedAt = entry == null ? 0 : entry.requestedAt;
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String stateKey = mContext.getString(R.string.pref_sync_state_key);
+        String requestedAtKey = mContext.getString(R.string.pref_sync_requested_at_key);
+        if (sp.getInt(stateKey, SYNC_STATE_IDLE) != state
+                || sp.getLong(requestedAtKey, 0) != requestedAt) {
+            sp.edit().putInt(stateKey, state).putLong(requestedAtKey, requestedAt).apply();
+        }
+    }
+}
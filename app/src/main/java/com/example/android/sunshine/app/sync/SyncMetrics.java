@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.SyncMetricsFile;
+
+import org.json.JSONException;
+
+/**
+ * Saves each finished sync's record to the {@link SyncMetricsFile}, where the provider reads
+ * them for {@link com.example.android.sunshine.app.data.WeatherContract#METHOD_GET_SYNC_METRICS}.
+ */
+class SyncMetrics {
+    private static final String LOG_TAG = SyncMetrics.class.getSimpleName();
+
+    private SyncMetrics() {
+    }
+
+    static void add(Context context, SyncRecord record) {
+        try {
+            SyncMetricsFile.append(context, record.toJson());
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Error encoding sync record", e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import com.example.android.sunshine.app.data.SyncMetricsFile;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Where one sync spent its time, and how much it moved.
+ *
+ * Phase times are measured with the monotonic clock.  Fetch phases are summed over every
+ * location the sync downloaded, which may have run concurrently, so they can add up to more
+ * than the sync's total time.
+ */
+class SyncRecord {
+
+    // Opening the connection
+    static final int PHASE_CONNECT = 0;
+    // From the request going out until the response headers are in
+    static final int PHASE_FIRST_BYTE = 1;
+    // Reading the body.  The parser reads straight from the stream, so this includes parsing.
+    static final int PHASE_DOWNLOAD = 2;
+    // Building and applying the batch: locations, upserted days and the old-row delete
+    static final int PHASE_WRITE = 3;
+    // Handing the change to the post-sync dispatcher.  Widgets, Muzei, the notification and
+    // Wear are then updated off the sync thread.
+    static final int PHASE_FAN_OUT = 4;
+
+    static final int PHASE_COUNT = 5;
+
+    static final String[] PHASE_NAMES = new String[] {
+            "connect", "first_byte", "download", "write", "fan_out"
+    };
+
+    // Wall clock time the sync started, in milliseconds since the epoch
+    long startedAt;
+    long totalNanos;
+    // Time from the first download starting until the last one finished
+    long fetchWallNanos;
+    final long[] phaseNanos = new long[PHASE_COUNT];
+
+    boolean manual;
+    int locations;
+    int fetched;
+    int notModified;
+    int failed;
+    long bytes;
+    int rowsParsed;
+    int rowsChanged;
+
+    private long mStartNanos;
+
+    /**
+     * @return a record whose total time runs from now until {@link #finish()}
+     */
+    static SyncRecord start(boolean manual) {
+        SyncRecord record = new SyncRecord();
+        record.startedAt = System.currentTimeMillis();
+        record.mStartNanos = System.nanoTime();
+        record.manual = manual;
+        return record;
+    }
+
+    void finish() {
+        totalNanos = System.nanoTime() - mStartNanos;
+    }
+
+    void addPhase(int phase, long nanos) {
+        phaseNanos[phase] += nanos;
+    }
+
+    long getTotalMillis() {
+        return totalNanos / 1000000;
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(SyncMetricsFile.KEY_STARTED_AT, startedAt);
+        json.put(SyncMetricsFile.KEY_TOTAL_MS, totalNanos / 1000000);
+        json.put(SyncMetricsFile.KEY_FETCH_WALL_MS, fetchWallNanos / 1000000);
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            json.put(PHASE_NAMES[phase] + SyncMetricsFile.PHASE_SUFFIX,
+                    phaseNanos[phase] / 1000000);
+        }
+        json.put(SyncMetricsFile.KEY_MANUAL, manual);
+        json.put(SyncMetricsFile.KEY_LOCATIONS, locations);
+        json.put(SyncMetricsFile.KEY_FETCHED, fetched);
+        json.put(SyncMetricsFile.KEY_NOT_MODIFIED, notModified);
+        json.put(SyncMetricsFile.KEY_FAILED, failed);
+        json.put(SyncMetricsFile.KEY_BYTES, bytes);
+        json.put(SyncMetricsFile.KEY_ROWS_PARSED, rowsParsed);
+        json.put(SyncMetricsFile.KEY_ROWS_CHANGED, rowsChanged);
+        return json;
+    }
+}
@@ -3,10 +3,8 @@ package com.example.android.sunshine.app.wear;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.support.annotation.NonNull;
@@ -16,6 +14,7 @@ import android.util.Log;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherRow;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
@@ -42,16 +41,6 @@ public class SunshineWearableListenerService extends WearableListenerService
     private static final String MIN_TEMP_KEY = "min-temp";
     private static final String TIMESTAMP_KEY = "timestamp";
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
-    };
-
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-
     GoogleApiClient mGoogleApiClient;
 
 //    public SunshineWearableListenerService() {
@@ -97,14 +86,12 @@ public class SunshineWearableListenerService extends WearableListenerService
 
     private void sendUpdateToWear() {
         String locationQuery = Utility.getPreferredLocation(this);
-        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-        Cursor cursor = getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+        WeatherRow today = WeatherContract.getCurrentConditions(getContentResolver(), locationQuery);
 
-        if (cursor.moveToFirst()) {
-            int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-            double high = cursor.getDouble(INDEX_MAX_TEMP);
-            double low = cursor.getDouble(INDEX_MIN_TEMP);
+        if (today != null) {
+            int weatherId = today.weatherId;
+            double high = today.maxTemp;
+            double low = today.minTemp;
 
             Log.e(TAG, "Sending update: "
                     + "weather-id = " + weatherId